@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The differences between two trees of {@link DirCacheTree} Nodes.
+ *
+ * When a whole Directory is added or removed only the Directory itself is reported, its descendants are implicitly included.
+ * A Node that changes type (from a File to a Directory, or vice versa) is reported as both removed and added.
+ * A Node is reported as modified if it exists in both trees but its attributes (modified timestamp, or size for Files) differ.
+ *
+ * The differences are found by walking both trees together, subtrees that are the same instance (or equal) are skipped,
+ * so the cost of calculating a ChangeSet is proportional to the number of changes rather than the size of the tree.
+ *
+ * @author jtalbut
+ */
+public class ChangeSet {
+
+  private final DirCacheTree.Directory previous;
+  private final DirCacheTree.Directory current;
+  private final List<DirCacheTree.Node> added;
+  private final List<DirCacheTree.Node> removed;
+  private final List<DirCacheTree.Node> modified;
+
+  private ChangeSet(DirCacheTree.Directory previous, DirCacheTree.Directory current) {
+    this.previous = previous;
+    this.current = current;
+    this.added = new ArrayList<>();
+    this.removed = new ArrayList<>();
+    this.modified = new ArrayList<>();
+  }
+
+  /**
+   * Calculate the differences between two trees.
+   *
+   * @param previous The root of the previous tree, may be null.
+   * @param current The root of the current tree, may be null.
+   * @return The differences between the two trees.
+   */
+  public static ChangeSet diff(DirCacheTree.Directory previous, DirCacheTree.Directory current) {
+    ChangeSet result = new ChangeSet(previous, current);
+    if (previous == null) {
+      if (current != null) {
+        result.added.add(current);
+      }
+    } else if (current == null) {
+      result.removed.add(previous);
+    } else {
+      result.diffNodes(previous, current);
+    }
+    return result;
+  }
+
+  private void diffNodes(DirCacheTree.Node before, DirCacheTree.Node after) {
+    if (before == after || before.equals(after)) {
+      return;
+    }
+    if (before.getType() != after.getType()) {
+      removed.add(before);
+      added.add(after);
+      return;
+    }
+    if (before.getModifiedEpochNanos() != after.getModifiedEpochNanos()
+            || (before instanceof DirCacheTree.File beforeFile && beforeFile.getSize() != ((DirCacheTree.File) after).getSize())) {
+      modified.add(after);
+    }
+    if (before instanceof DirCacheTree.Directory beforeDir) {
+      DirCacheTree.Directory afterDir = (DirCacheTree.Directory) after;
+      for (DirCacheTree.Node afterChild : afterDir.getChildren()) {
+        DirCacheTree.Node beforeChild = beforeDir.get(afterChild.getName());
+        if (beforeChild == null) {
+          added.add(afterChild);
+        } else {
+          diffNodes(beforeChild, afterChild);
+        }
+      }
+      for (DirCacheTree.Node beforeChild : beforeDir.getChildren()) {
+        if (afterDir.get(beforeChild.getName()) == null) {
+          removed.add(beforeChild);
+        }
+      }
+    }
+  }
+
+  /**
+   * Create a new ChangeSet containing only the Nodes from this ChangeSet that match a predicate.
+   *
+   * Note that descendants of added or removed Directories are not reported individually, so they are not tested against the predicate.
+   *
+   * @param predicate The test for the Nodes to keep.
+   * @return A new ChangeSet containing only the Nodes from this ChangeSet that match the predicate.
+   */
+  public ChangeSet filter(Predicate<DirCacheTree.Node> predicate) {
+    ChangeSet result = new ChangeSet(previous, current);
+    added.stream().filter(predicate).forEach(result.added::add);
+    removed.stream().filter(predicate).forEach(result.removed::add);
+    modified.stream().filter(predicate).forEach(result.modified::add);
+    return result;
+  }
+
+  /**
+   * Get the root of the tree before the changes.
+   * @return the root of the tree before the changes, may be null.
+   */
+  public DirCacheTree.Directory getPrevious() {
+    return previous;
+  }
+
+  /**
+   * Get the root of the tree after the changes.
+   * @return the root of the tree after the changes, may be null.
+   */
+  public DirCacheTree.Directory getCurrent() {
+    return current;
+  }
+
+  /**
+   * Get the Nodes that are in the current tree but were not in the previous tree.
+   * @return the Nodes that are in the current tree but were not in the previous tree.
+   */
+  public List<DirCacheTree.Node> getAdded() {
+    return Collections.unmodifiableList(added);
+  }
+
+  /**
+   * Get the Nodes that were in the previous tree but are not in the current tree.
+   * @return the Nodes that were in the previous tree but are not in the current tree.
+   */
+  public List<DirCacheTree.Node> getRemoved() {
+    return Collections.unmodifiableList(removed);
+  }
+
+  /**
+   * Get the Nodes (from the current tree) that are in both trees but whose attributes have changed.
+   * @return the Nodes (from the current tree) that are in both trees but whose attributes have changed.
+   */
+  public List<DirCacheTree.Node> getModified() {
+    return Collections.unmodifiableList(modified);
+  }
+
+  /**
+   * Return true if there are no differences between the two trees.
+   * @return true if there are no differences between the two trees.
+   */
+  public boolean isEmpty() {
+    return added.isEmpty() && removed.isEmpty() && modified.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "ChangeSet{" + "added=" + added + ", removed=" + removed + ", modified=" + modified + '}';
+  }
+
+}
@@ -21,7 +21,14 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import uk.co.spudsoft.dircache.impl.ColumnarDirCache;
 import uk.co.spudsoft.dircache.impl.DirCacheImpl;
 
 /**
@@ -43,7 +50,8 @@ public interface DirCache extends AutoCloseable {
   /**
    * Create a dir cache of a given path, monitoring for any changes that occur.
    * 
-   * Note that all the Nodes of a DirCache are immutable, whenever a change occurs the cache is rebuilt from the root.
+   * Note that all the Nodes of a DirCache are immutable, whenever a change occurs the changed directories are rebuilt and copied up to a new root
+   * (unchanged subtrees are shared between the old and new trees).
    * As with most caches, the cache must be read more than written to make sense.
    * 
    * @param root The root of the directory cache, which should be a directory.
@@ -59,6 +67,122 @@ public interface DirCache extends AutoCloseable {
     return new DirCacheImpl(root, stabilizationgLag, ignore, pollPeriod).start();
   }
   
+  /**
+   * Create a dir cache of a given path, monitoring for any changes that occur, without waiting for the initial walk of the tree.
+   * 
+   * The initial walk is performed on a background thread, so this may be called on a non-blocking thread.
+   * To make parts of the tree available before the initial walk finishes construct a {@link DirCacheImpl}, 
+   * set its priority paths and call {@link DirCacheImpl#startAsync()}.
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @return a future that is completed with the newly created DirCache instance when the initial walk has finished.
+   * The future is completed exceptionally with a FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws FileNotFoundException declared for consistency with {@link #cache(java.nio.file.Path, java.time.Duration, java.util.regex.Pattern, java.time.Duration)},
+   * a missing root is reported through the returned future.
+   * @throws IOException declared for consistency with {@link #cache(java.nio.file.Path, java.time.Duration, java.util.regex.Pattern, java.time.Duration)},
+   * failures are reported through the returned future.
+   */
+  static CompletableFuture<DirCache> cacheAsync(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod) throws FileNotFoundException, IOException {
+    return new DirCacheImpl(root, stabilizationgLag, ignore, pollPeriod).startAsync();
+  }
+  
+  /**
+   * Create a dir cache of a given path, monitoring for any changes that occur, using a ForkJoinPool to walk the full tree.
+   * 
+   * Sibling directories are listed concurrently on the walkPool, so the initial walk of a very large tree (or a tree on a high latency filesystem)
+   * scales with the parallelism of the pool rather than the total number of entries.
+   * The walkPool is also used for polling and for the full walk that follows a WatchService overflow.
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @param walkPool ForkJoinPool to use for walking the full tree, or null to walk the tree on the calling thread.
+   * @return a newly created DirCache instance.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  static DirCache cache(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod, ForkJoinPool walkPool) throws FileNotFoundException, IOException {
+    return new DirCacheImpl(root, stabilizationgLag, ignore, pollPeriod, walkPool).start();
+  }
+  
+  /**
+   * Create a dir cache of a given path, monitoring for any changes that occur, using a ForkJoinPool to walk the full tree
+   * with up to maxConcurrentIo directories being read at the same time.
+   * 
+   * This is intended for high latency (network) filesystems, where the time taken to walk the tree is dominated by waiting for each readdir and stat.
+   * Reading a directory is treated as a blocking operation, so the walkPool will add threads to keep the filesystem busy without needing a large pool of its own.
+   * Only the reads in progress count as blocked (tasks waiting for their turn to read do not), so the reads add at most maxConcurrentIo threads to the walkPool,
+   * though it may still add threads of its own whilst tasks wait to join their subdirectories.
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @param walkPool ForkJoinPool to use for walking the full tree.
+   * @param maxConcurrentIo The maximum number of directories to read at the same time.
+   * @return a newly created DirCache instance.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  static DirCache cache(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod, ForkJoinPool walkPool, int maxConcurrentIo) throws FileNotFoundException, IOException {
+    return new DirCacheImpl(root, stabilizationgLag, ignore, pollPeriod, walkPool, maxConcurrentIo).start();
+  }
+  
+  /**
+   * Create a dir cache of a given path, monitoring for any changes that occur, that persists the tree in a snapshot file between runs.
+   * 
+   * If the snapshotFile exists (and was written for the same root and ignore pattern) the tree is loaded from it, so this does not block for a full walk.
+   * The loaded tree is then checked against the disc in the background and the listener is notified if anything changed whilst the DirCache was not running.
+   * The listener is added before the DirCache is started, so that notification cannot be missed;
+   * a listener added to the returned DirCache may be too late to see it.
+   * The snapshotFile is written when the DirCache is closed.
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @param snapshotFile The file used to persist the tree.
+   * @param listener Listener to be notified of the changes found by the check against the disc, and of all later changes, may be null.
+   * @return a newly created DirCache instance.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  static DirCache cacheWithSnapshot(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod, Path snapshotFile, DirCacheListener listener) throws FileNotFoundException, IOException {
+    DirCacheImpl result = new DirCacheImpl(root, stabilizationgLag, ignore, pollPeriod).setSnapshotFile(snapshotFile);
+    if (listener != null) {
+      result.addListener(listener);
+    }
+    return result.start();
+  }
+  
+  /**
+   * Create a dir cache of a given path that holds the tree off-heap, monitoring for any changes that occur.
+   * 
+   * The tree is held in primitive columns outside of the heap and the Nodes returned are views that are created as the tree is navigated,
+   * so the heap used does not grow with the size of the tree.
+   * Each change replaces the entire off-heap tree, so this is intended for trees with millions of entries that change infrequently.
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @return a newly created DirCache instance.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  static DirCache cacheOffHeap(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod) throws FileNotFoundException, IOException {
+    return new ColumnarDirCache(root, stabilizationgLag, ignore, pollPeriod).start();
+  }
+  
   /**
    * Return the Directory at the root of the tree.
    * This will be the Directory object representing the original root Path.
@@ -66,6 +190,114 @@ public interface DirCache extends AutoCloseable {
    */
   DirCacheTree.Directory getRoot();
   
+  /**
+   * Get the current state of the tree, the root and the time of the walk that found it, as a single consistent snapshot.
+   * 
+   * This is a single volatile read, a new snapshot is published after every walk.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @return the current state of the tree.
+   */
+  default DirCacheSnapshot getSnapshot() {
+    throw new UnsupportedOperationException("getSnapshot is not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Return true if the tree has changed since a previous snapshot.
+   * 
+   * This is intended for cheap freshness checks on request paths: keep the generation of the snapshot that a result was derived from and
+   * ask whether it is still current.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param generation The generation of a previous snapshot, from {@link DirCacheSnapshot#getGeneration()}.
+   * @return true if the tree has changed since the snapshot with the given generation was published.
+   */
+  default boolean hasChangedSince(long generation) {
+    throw new UnsupportedOperationException("hasChangedSince is not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Find a Node by its path relative to the root of the tree.
+   * 
+   * The relativePath uses '/' as the separator, leading, trailing and repeated separators and "." segments are ignored.
+   * The empty path (or "/") refers to the root.
+   * 
+   * Lookups use an index of the full path of every Node, which is built on the first call and then maintained as the tree changes.
+   * If the relativePath is already normalized a successful lookup does not allocate.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param relativePath The path of the Node relative to the root of the tree.
+   * @return The Node, or null if there is no Node at that path.
+   * @throws IllegalArgumentException if the relativePath contains a ".." segment.
+   */
+  default DirCacheTree.Node lookup(String relativePath) {
+    throw new UnsupportedOperationException("lookup is not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Find a Node by its Path.
+   * 
+   * A relative Path is resolved against the root of the tree, an absolute Path must be within the root of the tree.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param path The Path of the Node.
+   * @return The Node, or null if there is no Node at that Path.
+   * @throws IllegalArgumentException if the path contains a ".." segment.
+   */
+  default DirCacheTree.Node lookup(Path path) {
+    throw new UnsupportedOperationException("lookup is not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Find the Nodes whose paths relative to the root of the tree match a glob.
+   * 
+   * The glob uses the syntax of {@link java.nio.file.FileSystem#getPathMatcher(java.lang.String)}.
+   * The search walks the current tree directly, starting at the Directory named by the leading segments of the glob that do not contain special characters,
+   * and only enters a Directory if its path could lead to a match, so the cost is proportional to the part of the tree that the glob can reach.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param glob the glob to match against the paths of the Nodes.
+   * @return A lazy Stream of the matching Nodes, each Directory before its contents.
+   */
+  default Stream<DirCacheTree.Node> find(String glob) {
+    throw new UnsupportedOperationException("find is not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Find the Nodes that match a predicate.
+   * 
+   * Every Node in the current tree is tested, use {@link #find(java.util.function.Predicate, java.util.function.Predicate)} to skip subtrees.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param predicate the predicate to test each Node against.
+   * @return A lazy Stream of the matching Nodes, each Directory before its contents.
+   */
+  default Stream<DirCacheTree.Node> find(Predicate<? super DirCacheTree.Node> predicate) {
+    throw new UnsupportedOperationException("find is not supported by " + getClass().getName());
+  }
+  
+  /**
+   * Find the Nodes that match a predicate, only searching the Directories that match another predicate.
+   * 
+   * The descend predicate can use the aggregates held by each Directory to skip whole subtrees, for example
+   * {@code find(d -> d.getNewestFileModifiedEpochNanos() >= since, n -> n.getModifiedEpochNanos() >= since)} does not enter any Directory that contains no File modified since the given time.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param descend the predicate that a Directory must match for its contents to be searched (a Directory that does not match can still be found by the predicate).
+   * @param predicate the predicate to test each Node against.
+   * @return A lazy Stream of the matching Nodes, each Directory before its contents.
+   */
+  default Stream<DirCacheTree.Node> find(Predicate<? super DirCacheTree.Directory> descend, Predicate<? super DirCacheTree.Node> predicate) {
+    throw new UnsupportedOperationException("find is not supported by " + getClass().getName());
+  }
+  
   /**
    * Start the DirCache monitoring.
    * This does not usually need to be called as the factory method does it.
@@ -89,17 +321,171 @@ public interface DirCache extends AutoCloseable {
    * The callback is optional, clients can simply depend upon the cached structure.
    * The primary use of the callback is expected to be the invalidation of secondary caches (of processed files).
    * 
+   * The callback is run on a shared pool of daemon threads, never on the thread that detects changes.
+   * It is never called concurrently with itself, changes found whilst it is running result in a single further call.
+   * 
    * @param callback the callback to be called after each (stable) directory change.
    * @return this, so that the call may be fluent.
    */
   DirCache setCallback(Runnable callback);
 
+  /**
+   * Add a listener to be called after each (stable) directory change with the details of what has changed.
+   * 
+   * Listeners are called at the same time as the callback, but they are only called if something has actually changed.
+   * Each listener receives the differences between the tree at the previous notification and the current tree.
+   * 
+   * The listener is run on the same shared pool of daemon threads as the callback, 
+   * see {@link #addListener(uk.co.spudsoft.dircache.DirCacheListener, java.util.concurrent.Executor)}.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param listener the listener to be called after each (stable) directory change.
+   * @return this, so that the call may be fluent.
+   */
+  default DirCache addListener(DirCacheListener listener) {
+    throw new UnsupportedOperationException("addListener is not supported by " + getClass().getName());
+  }
+
+  /**
+   * Add a listener to be called, using the given Executor, after each (stable) directory change with the details of what has changed.
+   * 
+   * The listener is never called concurrently with itself.
+   * If changes are found whilst the listener is still running they are coalesced into a single ChangeSet for the next call,
+   * so a slow listener receives fewer, larger, ChangeSets rather than an unbounded backlog.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param listener the listener to be called after each (stable) directory change.
+   * @param executor the Executor on which the listener is to be called.
+   * @return this, so that the call may be fluent.
+   */
+  default DirCache addListener(DirCacheListener listener, Executor executor) {
+    throw new UnsupportedOperationException("addListener is not supported by " + getClass().getName());
+  }
+
+  /**
+   * Subscribe a listener to changes within a subtree.
+   * 
+   * The listener is only called when something within the subtree changes, and the ChangeSet it receives 
+   * is the differences between the previous and current Directory at the prefix (either of which may be null, if the Directory did not or does not exist).
+   * Subscriptions are indexed by their prefix, so parts of the tree that have not changed cost nothing however many subscriptions they have.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param prefix the Directory at the root of the subtree, relative to the root of the tree or absolute within it.
+   * @param listener the listener to be called after each (stable) change within the subtree.
+   * @return this, so that the call may be fluent.
+   * @throws IllegalArgumentException if the prefix is not within the root of the tree, or contains a ".." segment.
+   */
+  default DirCache subscribe(Path prefix, DirCacheListener listener) {
+    throw new UnsupportedOperationException("subscribe is not supported by " + getClass().getName());
+  }
+
+  /**
+   * Subscribe a listener to changes to Nodes whose paths match a glob.
+   * 
+   * The glob uses the syntax of {@link java.nio.file.FileSystem#getPathMatcher(java.lang.String)}, and is matched against the path of each changed Node relative to the root of the tree.
+   * The listener is only called if at least one changed Node matches, and the ChangeSet that it receives contains only the Nodes that match.
+   * Note that when a Directory is added or removed its descendants are not reported individually, so they are not matched.
+   * 
+   * The subscription is indexed by the leading segments of the glob that do not contain special characters (for example "a/b" for "a/b/**&#47;*.txt").
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param glob the glob to match against the paths of changed Nodes.
+   * @param listener the listener to be called after each (stable) change to matching Nodes.
+   * @return this, so that the call may be fluent.
+   */
+  default DirCache subscribe(String glob, DirCacheListener listener) {
+    throw new UnsupportedOperationException("subscribe is not supported by " + getClass().getName());
+  }
+
+  /**
+   * Remove all the subscriptions for a listener previously subscribed by {@link #subscribe(java.nio.file.Path, uk.co.spudsoft.dircache.DirCacheListener)}
+   * or {@link #subscribe(java.lang.String, uk.co.spudsoft.dircache.DirCacheListener)}.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param listener the listener to unsubscribe.
+   * @return this, so that the call may be fluent.
+   */
+  default DirCache unsubscribe(DirCacheListener listener) {
+    throw new UnsupportedOperationException("unsubscribe is not supported by " + getClass().getName());
+  }
+
+  /**
+   * Remove a listener previously added by {@link #addListener(uk.co.spudsoft.dircache.DirCacheListener)}.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @param listener the listener to remove.
+   * @return this, so that the call may be fluent.
+   */
+  default DirCache removeListener(DirCacheListener listener) {
+    throw new UnsupportedOperationException("removeListener is not supported by " + getClass().getName());
+  }
+
   /**
    * Get the timestamp of the last file walk.
    * @return the timestamp of the last file walk.
    */
   LocalDateTime getLastWalkTime();
 
+  /**
+   * Get the time taken by the last file walk (or incremental poll).
+   * This can be used to tune the poll period.
+   * The default implementation returns null, for implementations written before this method was added.
+   * 
+   * @return the time taken by the last file walk, or null if no walk has been completed.
+   */
+  default Duration getLastWalkDuration() {
+    return null;
+  }
+
+  /**
+   * Get the number of change notifications that have been discarded because they were for entries that match the ignore pattern.
+   * 
+   * Such notifications do not cause a rescan and do not delay the callback.
+   * 
+   * The default implementation returns zero, for implementations written before this method was added.
+   * 
+   * @return the number of change notifications that have been discarded.
+   */
+  default long getIgnoredEventCount() {
+    return 0;
+  }
+
+  /**
+   * Get a Flow.Publisher of the changes to the tree.
+   * 
+   * Each subscriber starts from the snapshot that is current when it subscribes, and receives an event each time the tree changes, subject to its demand.
+   * Events are not queued: if the tree changes more than once whilst a subscriber has no outstanding demand the next event
+   * it receives takes it straight to the latest snapshot (see {@link DirCacheChangeEvent#isCoalesced()}).
+   * 
+   * Subscribers are signalled on the same shared pool of daemon threads as the callback, and are completed when the DirCache is closed.
+   * 
+   * The default implementation throws UnsupportedOperationException, for implementations written before this method was added.
+   * 
+   * @return a Flow.Publisher of the changes to the tree.
+   */
+  default Flow.Publisher<DirCacheChangeEvent> getChangePublisher() {
+    throw new UnsupportedOperationException("getChangePublisher is not supported by " + getClass().getName());
+  }
+
+  /**
+   * Get the longest time taken by a single call to the callback or to any listener.
+   * 
+   * The callback and listeners do not run on the threads that detect changes, but this can be used to identify listeners that cannot keep up.
+   * 
+   * The default implementation returns zero, for implementations written before this method was added.
+   * 
+   * @return the longest time taken by a single call to the callback or to any listener.
+   */
+  default Duration getMaxListenerDuration() {
+    return Duration.ZERO;
+  }
+
   /**
    * Perform a synchronous refresh of the view of the filesystem.
    * This should be used sparingly, it's intended for use when a client has made a specific change the filesystem that we know needs to be picked up.
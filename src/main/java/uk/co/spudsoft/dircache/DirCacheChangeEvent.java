@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An event published by {@link DirCache#getChangePublisher()} when the tree changes.
+ *
+ * Each event takes a subscriber from the snapshot it last saw (the previous generation) to a newer snapshot.
+ * If the subscriber was not ready for events whilst the tree changed more than once the intermediate snapshots are skipped,
+ * and the event reports all the paths affected since the previous generation.
+ *
+ * @author jtalbut
+ */
+public final class DirCacheChangeEvent {
+
+  private final DirCacheSnapshot snapshot;
+  private final long previousGeneration;
+  private final List<Path> paths;
+
+  /**
+   * Constructor.
+   *
+   * @param snapshot The snapshot that the event takes the subscriber to.
+   * @param previousGeneration The generation of the snapshot that the subscriber last saw.
+   * @param paths The paths of the Nodes that have been added, removed or modified since the previous generation.
+   */
+  public DirCacheChangeEvent(DirCacheSnapshot snapshot, long previousGeneration, List<Path> paths) {
+    this.snapshot = snapshot;
+    this.previousGeneration = previousGeneration;
+    this.paths = Collections.unmodifiableList(paths);
+  }
+
+  /**
+   * Get the snapshot that the event takes the subscriber to.
+   * @return the snapshot that the event takes the subscriber to.
+   */
+  public DirCacheSnapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Get the generation of the snapshot that the event takes the subscriber to.
+   * @return the generation of the snapshot that the event takes the subscriber to.
+   */
+  public long getGeneration() {
+    return snapshot.getGeneration();
+  }
+
+  /**
+   * Get the generation of the snapshot that the subscriber last saw.
+   * @return the generation of the snapshot that the subscriber last saw.
+   */
+  public long getPreviousGeneration() {
+    return previousGeneration;
+  }
+
+  /**
+   * Return true if this event supersedes more than one change, because the subscriber was not ready for events.
+   * @return true if this event supersedes more than one change.
+   */
+  public boolean isCoalesced() {
+    return snapshot.getGeneration() - previousGeneration > 1;
+  }
+
+  /**
+   * Get the paths of the Nodes that have been added, removed or modified since the previous generation.
+   *
+   * As with {@link ChangeSet}, when a whole Directory is added or removed only the Directory itself is reported.
+   *
+   * @return the paths of the Nodes that have been added, removed or modified since the previous generation.
+   */
+  public List<Path> getPaths() {
+    return paths;
+  }
+
+  @Override
+  public String toString() {
+    return "DirCacheChangeEvent{" + "generation=" + getGeneration() + ", previousGeneration=" + previousGeneration + ", paths=" + paths + '}';
+  }
+
+}
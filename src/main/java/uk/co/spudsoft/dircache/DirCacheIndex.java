@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache;
+
+/**
+ * The secondary indexes of Files that a DirCache can maintain for queries on its {@link DirCacheSnapshot}.
+ *
+ * @author jtalbut
+ */
+public enum DirCacheIndex {
+
+  /**
+   * Index Files by their extension, for {@link DirCacheSnapshot#getFilesWithExtension(java.lang.String)}.
+   */
+  EXTENSION,
+
+  /**
+   * Index Files by their modified timestamp, for {@link DirCacheSnapshot#getFilesModifiedBetween(java.time.LocalDateTime, java.time.LocalDateTime)}.
+   */
+  MODIFIED,
+
+  /**
+   * Index Files by their size, for {@link DirCacheSnapshot#getFilesWithSizeBetween(long, long)}.
+   */
+  SIZE
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache;
+
+/**
+ * Listener to be notified of the changes found by a {@link DirCache}.
+ *
+ * @author jtalbut
+ */
+@FunctionalInterface
+public interface DirCacheListener {
+
+  /**
+   * Called after each (stable) directory change with the differences since the previous notification.
+   *
+   * @param changes The Nodes that have been added, removed or modified since the previous notification.
+   */
+  void changed(ChangeSet changes);
+
+}
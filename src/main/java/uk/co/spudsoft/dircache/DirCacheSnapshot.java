@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A consistent view of the state of a {@link DirCache} at a point in time.
+ *
+ * A DirCache publishes a new DirCacheSnapshot after every walk, so the root and the walk time always belong together.
+ * The generation is incremented each time the tree changes (and only then), so a caller can tell whether anything has changed
+ * since it last looked by comparing a single long.
+ *
+ * If the DirCache has been configured with any {@link DirCacheIndex} the snapshot can also answer queries about the Files in the tree
+ * without walking it.
+ *
+ * @author jtalbut
+ */
+public final class DirCacheSnapshot {
+
+  private final DirCacheTree.Directory root;
+  private final LocalDateTime walkTime;
+  private final long generation;
+  private final FileIndexes indexes;
+
+  /**
+   * The secondary indexes of the Files in a tree.
+   *
+   * Each method returns null if the relevant index is not maintained.
+   */
+  public interface FileIndexes {
+
+    /**
+     * Find the Files with a given extension.
+     * @param extension The extension, in lower case and without the leading '.', the empty string for files without an extension.
+     * @return the Files with the extension, in path order, or null if Files are not indexed by extension.
+     */
+    List<DirCacheTree.File> withExtension(String extension);
+
+    /**
+     * Find the Files with modified timestamps in a range.
+     * @param fromEpochNanos The earliest modified timestamp, in nanoseconds since the epoch (UTC), inclusive.
+     * @param toEpochNanos The latest modified timestamp, in nanoseconds since the epoch (UTC), inclusive.
+     * @return the Files with modified timestamps in the range, oldest first, or null if Files are not indexed by modified timestamp.
+     */
+    List<DirCacheTree.File> modifiedBetween(long fromEpochNanos, long toEpochNanos);
+
+    /**
+     * Find the Files with sizes in a range.
+     * @param minSize The smallest size, inclusive.
+     * @param maxSize The largest size, inclusive.
+     * @return the Files with sizes in the range, smallest first, or null if Files are not indexed by size.
+     */
+    List<DirCacheTree.File> sizeBetween(long minSize, long maxSize);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param root The root of the tree, may be null if the tree has not been walked.
+   * @param walkTime The time of the walk that found the tree, may be null if the tree has not been walked.
+   * @param generation The number of times that the tree has changed.
+   */
+  public DirCacheSnapshot(DirCacheTree.Directory root, LocalDateTime walkTime, long generation) {
+    this(root, walkTime, generation, null);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param root The root of the tree, may be null if the tree has not been walked.
+   * @param walkTime The time of the walk that found the tree, may be null if the tree has not been walked.
+   * @param generation The number of times that the tree has changed.
+   * @param indexes The secondary indexes of the Files in the tree, may be null if no indexes are maintained.
+   */
+  public DirCacheSnapshot(DirCacheTree.Directory root, LocalDateTime walkTime, long generation, FileIndexes indexes) {
+    this.root = root;
+    this.walkTime = walkTime;
+    this.generation = generation;
+    this.indexes = indexes;
+  }
+
+  /**
+   * Get the root of the tree.
+   * @return the root of the tree, may be null if the tree has not been walked.
+   */
+  public DirCacheTree.Directory getRoot() {
+    return root;
+  }
+
+  /**
+   * Get the time of the last walk, which may be later than the last change to the tree.
+   * @return the time of the last walk, may be null if the tree has not been walked.
+   */
+  public LocalDateTime getWalkTime() {
+    return walkTime;
+  }
+
+  /**
+   * Get the generation of the tree, which is incremented each time the tree changes.
+   * @return the generation of the tree.
+   */
+  public long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Get the digest of the whole tree, see {@link DirCacheTree.Node#getDigest()}.
+   * @return the digest of the whole tree, or zero if the tree has not been walked.
+   */
+  public long getDigest() {
+    return root == null ? 0 : root.getDigest();
+  }
+
+  /**
+   * Find the Files with a given extension (the part of the name after the last '.', ignoring case).
+   * 
+   * This requires the {@link DirCacheIndex#EXTENSION} index.
+   * 
+   * @param extension The extension, with or without the leading '.'; the empty string finds files without an extension.
+   * @return the Files with the extension, in path order.
+   * @throws IllegalStateException if Files are not indexed by extension.
+   */
+  public List<DirCacheTree.File> getFilesWithExtension(String extension) {
+    String key = extension.startsWith(".") ? extension.substring(1) : extension;
+    return require(indexes == null ? null : indexes.withExtension(key.toLowerCase(Locale.ROOT)), DirCacheIndex.EXTENSION);
+  }
+
+  /**
+   * Find the Files whose modified timestamps are in a range.
+   * 
+   * This requires the {@link DirCacheIndex#MODIFIED} index.
+   * 
+   * @param from The earliest modified timestamp (UTC), inclusive, null for no lower limit.
+   * @param to The latest modified timestamp (UTC), inclusive, null for no upper limit.
+   * @return the Files whose modified timestamps are in the range, oldest first.
+   * @throws IllegalStateException if Files are not indexed by modified timestamp.
+   */
+  public List<DirCacheTree.File> getFilesModifiedBetween(LocalDateTime from, LocalDateTime to) {
+    long fromNanos = from == null ? Long.MIN_VALUE : DirCacheTree.toEpochNanos(from);
+    long toNanos = to == null ? Long.MAX_VALUE : DirCacheTree.toEpochNanos(to);
+    return require(indexes == null ? null : indexes.modifiedBetween(fromNanos, toNanos), DirCacheIndex.MODIFIED);
+  }
+
+  /**
+   * Find the Files whose sizes are in a range.
+   * 
+   * This requires the {@link DirCacheIndex#SIZE} index.
+   * 
+   * @param minSize The smallest size, in bytes, inclusive.
+   * @param maxSize The largest size, in bytes, inclusive.
+   * @return the Files whose sizes are in the range, smallest first.
+   * @throws IllegalStateException if Files are not indexed by size.
+   */
+  public List<DirCacheTree.File> getFilesWithSizeBetween(long minSize, long maxSize) {
+    return require(indexes == null ? null : indexes.sizeBetween(minSize, maxSize), DirCacheIndex.SIZE);
+  }
+
+  private static List<DirCacheTree.File> require(List<DirCacheTree.File> result, DirCacheIndex index) {
+    if (result == null) {
+      throw new IllegalStateException("The DirCache does not maintain the " + index + " index");
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "DirCacheSnapshot{" + "generation=" + generation + ", walkTime=" + walkTime + ", root=" + root + '}';
+  }
+
+}
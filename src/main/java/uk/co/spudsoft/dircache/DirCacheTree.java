@@ -19,11 +19,9 @@ package uk.co.spudsoft.dircache;
 import jakarta.validation.constraints.NotNull;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -42,16 +40,155 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
   private DirCacheTree() {
   }
   
+  private static final long DIGEST_SEED = 0xcbf29ce484222325L;
+  private static final long DIGEST_PRIME = 0x100000001b3L;
+  
+  private static long digest(long hash, long value) {
+    long result = hash;
+    for (int i = 0; i < 8; ++i) {
+      result ^= (value >>> (i * 8)) & 0xff;
+      result *= DIGEST_PRIME;
+    }
+    return result;
+  }
+  
+  private static long digest(long hash, String value) {
+    long result = hash;
+    for (int i = 0; i < value.length(); ++i) {
+      char c = value.charAt(i);
+      result ^= c & 0xff;
+      result *= DIGEST_PRIME;
+      result ^= c >>> 8;
+      result *= DIGEST_PRIME;
+    }
+    return digest(result, value.length());
+  }
+  
+  private static long finishDigest(long hash) {
+    // Murmur3 finalizer to spread the FNV bits across the whole long
+    long result = hash;
+    result ^= result >>> 33;
+    result *= 0xff51afd7ed558ccdL;
+    result ^= result >>> 33;
+    result *= 0xc4ceb9fe1a85ec53L;
+    result ^= result >>> 33;
+    return result;
+  }
+  
+  /**
+   * The value of a modified timestamp that is null.
+   */
+  private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+  
+  /**
+   * Convert a LocalDateTime (in UTC) to nanoseconds since the epoch, saturating at the limits of a long.
+   * @param modified The timestamp to convert, may be null.
+   * @return The number of nanoseconds since the epoch.
+   */
+  public static long toEpochNanos(LocalDateTime modified) {
+    if (modified == null) {
+      return NO_TIMESTAMP;
+    }
+    long seconds = modified.toEpochSecond(ZoneOffset.UTC);
+    try {
+      return Math.addExact(Math.multiplyExact(seconds, 1_000_000_000L), modified.getNano());
+    } catch (ArithmeticException ex) {
+      return seconds < 0 ? NO_TIMESTAMP + 1 : Long.MAX_VALUE;
+    }
+  }
+  
+  private static LocalDateTime fromEpochNanos(long modified) {
+    if (modified == NO_TIMESTAMP) {
+      return null;
+    }
+    return LocalDateTime.ofEpochSecond(Math.floorDiv(modified, 1_000_000_000L), (int) Math.floorMod(modified, 1_000_000_000L), ZoneOffset.UTC);
+  }
+  
+  /**
+   * The order in which the children of a Directory are held, directories first and then by name.
+   * @param o1 The first Node to compare.
+   * @param o2 The second Node to compare.
+   * @return a negative integer, zero, or a positive integer as o1 is less than, equal to, or greater than o2.
+   */
+  public static int compareNodes(Node o1, Node o2) {
+    if (o1 == o2) {
+      return 0;
+    }
+    if (o1 instanceof Directory && o2 instanceof File) {
+      return -1;
+    } else if (o2 instanceof Directory && o1 instanceof File) {
+      return 1;
+    }
+    if (o1 == null) {
+      return -1;
+    } else if (o2 == null) {
+      return 1;
+    } 
+    return o1.getName().compareTo(o2.getName());
+  }
+  
   public abstract static class Node implements FileTree.FileTreeNode {
     protected final String name;
+    /**
+     * The path of the Node.
+     * 
+     * @deprecated Files do not store their path, so this is null for a File; use {@link #getPath()}.
+     */
+    @Deprecated
     protected final Path path;
-    protected final LocalDateTime modified;
+    /**
+     * The modified timestamp, in nanoseconds since the epoch (UTC).
+     */
+    protected final long modified;
 
+    /**
+     * Constructor.
+     * @param path The path represented by this Node.
+     * @param modified The modified timestamp.
+     * @deprecated Use {@link #Node(java.nio.file.Path, java.lang.String, long)}, which does not need a LocalDateTime.
+     */
+    @Deprecated
     public Node(Path path, LocalDateTime modified) {
-      this.name = path.getFileName().toString();
+      this(path, path.getFileName().toString(), toEpochNanos(modified));
+    }
+
+    /**
+     * Constructor.
+     * @param path The path represented by this Node, may be null if the subclass overrides {@link #getPath()}.
+     * @param name The name of the Node.
+     * @param modified The modified timestamp, in nanoseconds since the epoch (UTC).
+     */
+    protected Node(Path path, String name, long modified) {
       this.path = path;
+      this.name = name;
       this.modified = modified;
     }
+    
+    /**
+     * Get the digest of this Node.
+     * 
+     * For a File the digest is calculated from the name, size and modified timestamp.
+     * For a Directory the digest is calculated from the name, modified timestamp and the digests of all its children,
+     * so two Directories with the same digest almost certainly contain the same subtree.
+     * The digest is calculated once, when the Node is created, so it may be used as a cheap ETag for a directory listing.
+     * 
+     * @return the digest of this Node.
+     */
+    public abstract long getDigest();
+    
+    /**
+     * Start calculating a digest for this Node.
+     * @return the initial value of the digest, based on the name and the modified timestamp.
+     */
+    protected long startDigest() {
+      long hash = digest(DIGEST_SEED, getType().ordinal());
+      hash = digest(hash, name);
+      if (modified != NO_TIMESTAMP) {
+        hash = digest(hash, Math.floorDiv(modified, 1_000_000_000L));
+        hash = digest(hash, Math.floorMod(modified, 1_000_000_000L));
+      }
+      return hash;
+    }
 
     @Override
     public String getName() {
@@ -68,16 +205,34 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
 
     /**
      * Get the modified timestamp.
+     * 
+     * The timestamp is stored as a primitive, so this creates a new LocalDateTime on each call.
+     * Use {@link #getModifiedEpochNanos()} to compare timestamps without allocating.
+     * 
      * @return the modified timestamp.
      */
     public LocalDateTime getModified() {
+      return fromEpochNanos(modified);
+    }
+
+    /**
+     * Get the modified timestamp as the number of nanoseconds since the epoch (UTC).
+     * @return the modified timestamp as the number of nanoseconds since the epoch (UTC).
+     */
+    public long getModifiedEpochNanos() {
       return modified;
     }
 
+    /**
+     * Calculate a hash code from the members of Node.
+     * @return a hash code from the members of Node.
+     * @deprecated Nodes use their digest as their hash code, use {@link #getDigest()}.
+     */
+    @Deprecated
     protected int privateMembersHashCode() {
       int hash = 5;
-      hash = 23 * hash + Objects.hashCode(this.path);
-      hash = 23 * hash + Objects.hashCode(this.modified);
+      hash = 23 * hash + Objects.hashCode(getPath());
+      hash = 23 * hash + Long.hashCode(this.modified);
       hash = 23 * hash + Objects.hashCode(this.name);
       return hash;
     }
@@ -86,11 +241,8 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
       if (!Objects.equals(this.name, other.name)) {
         return false;
       }
-      if (!Objects.equals(this.path, other.path)) {
-        return false;
-      }
-      if (!Objects.equals(this.modified, other.modified)) {
-        logger.debug("{} changed at {}", this.path, this.modified);
+      if (this.modified != other.modified) {
+        logger.debug("{} changed at {}", getPath(), getModified());
         return false;
       }
       return true;
@@ -101,7 +253,16 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
   public static class Directory extends Node implements FileTree.FileTreeDir<Node> {
    
     private final List<Node> children;
-    private final Map<String, Node> childrenByName;
+    /**
+     * The number of children that are Directories, or -1 if the children are not in the order given by compareNodes.
+     */
+    private final int dirCount;
+    private final long digest;
+    private final long totalSize;
+    private final long fileCount;
+    private final long directoryCount;
+    private final long oldestFile;
+    private final long newestFile;
 
     /**
      * Constructor.
@@ -110,10 +271,165 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
      * @param children The children of the Directory - in the order returned by FileWalker (which will be dirs first, then probably sorted by name).
      */
     public Directory(Path path, LocalDateTime modified, List<Node> children) {
-      super(path, modified);
-      this.children = Collections.unmodifiableList(children);
-      this.childrenByName = new HashMap<>(children.size() * 2);
-      children.forEach(n -> childrenByName.put(n.getName(), n));
+      this(path, path.getFileName().toString(), toEpochNanos(modified), children);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * Children that are dirs first and then sorted by name (as produced by the DirCache) can be found by binary search, 
+     * any other order falls back to a linear search.
+     * 
+     * @param path The path represented by this Node.
+     * @param name The name of the Node, which should be the last element of the path (passing in an existing String avoids duplicating it).
+     * @param modified The modified timestamp, in nanoseconds since the epoch (UTC).
+     * @param children The children of the Directory.
+     */
+    public Directory(Path path, String name, long modified, List<Node> children) {
+      super(path, name, modified);
+      this.children = List.copyOf(children);
+      long hash = startDigest();
+      int dirs = 0;
+      long size = 0;
+      long files = 0;
+      long directories = 0;
+      long oldest = NO_TIMESTAMP;
+      long newest = NO_TIMESTAMP;
+      boolean sorted = true;
+      Node previous = null;
+      for (Node child : this.children) {
+        hash = digest(hash, child.getDigest());
+        if (child instanceof Directory dir) {
+          ++dirs;
+          size += dir.totalSize;
+          files += dir.fileCount;
+          directories += dir.directoryCount + 1;
+          oldest = oldest(oldest, dir.oldestFile);
+          newest = Math.max(newest, dir.newestFile);
+        } else if (child instanceof File file) {
+          size += file.size;
+          ++files;
+          oldest = oldest(oldest, file.modified);
+          newest = Math.max(newest, file.modified);
+        }
+        if (previous != null && compareNodes(previous, child) >= 0) {
+          sorted = false;
+        }
+        previous = child;
+      }
+      this.dirCount = sorted ? dirs : -1;
+      this.digest = finishDigest(hash);
+      this.totalSize = size;
+      this.fileCount = files;
+      this.directoryCount = directories;
+      this.oldestFile = oldest;
+      this.newestFile = newest;
+    }
+    
+    private static long oldest(long first, long second) {
+      if (first == NO_TIMESTAMP) {
+        return second;
+      } else if (second == NO_TIMESTAMP) {
+        return first;
+      }
+      return Math.min(first, second);
+    }
+
+    /**
+     * Constructor for subclasses that provide a view of a Directory stored elsewhere.
+     * 
+     * No children are held by this class, so subclasses must override {@link #getChildren()}, {@link #get(java.lang.String)} and {@link #getDir(java.lang.String)}.
+     * 
+     * @param path The path represented by this Node.
+     * @param name The name of the Node.
+     * @param modified The modified timestamp, in nanoseconds since the epoch (UTC).
+     * @param digest The digest of the Directory, as would be calculated from its children.
+     * @param totalSize The total size of all the Files below the Directory.
+     * @param fileCount The number of Files below the Directory.
+     * @param directoryCount The number of Directories below the Directory.
+     * @param oldestFile The modified timestamp of the oldest File below the Directory, in nanoseconds since the epoch (UTC).
+     * @param newestFile The modified timestamp of the newest File below the Directory, in nanoseconds since the epoch (UTC).
+     */
+    protected Directory(Path path, String name, long modified, long digest, long totalSize, long fileCount, long directoryCount, long oldestFile, long newestFile) {
+      super(path, name, modified);
+      this.children = null;
+      this.dirCount = -1;
+      this.digest = digest;
+      this.totalSize = totalSize;
+      this.fileCount = fileCount;
+      this.directoryCount = directoryCount;
+      this.oldestFile = oldestFile;
+      this.newestFile = newestFile;
+    }
+
+    @Override
+    public long getDigest() {
+      return digest;
+    }
+    
+    /**
+     * Get the total size of all the Files anywhere below this Directory.
+     * 
+     * This, like the other aggregates, is calculated once, when the Directory is created, from the aggregates of its children,
+     * so it costs nothing to ask for the size of a large subtree.
+     * 
+     * @return the total size of all the Files below this Directory, in bytes.
+     */
+    public long getTotalSize() {
+      return totalSize;
+    }
+    
+    /**
+     * Get the number of Files anywhere below this Directory.
+     * @return the number of Files below this Directory.
+     */
+    public long getFileCount() {
+      return fileCount;
+    }
+    
+    /**
+     * Get the number of Directories anywhere below this Directory (not including this Directory).
+     * @return the number of Directories below this Directory.
+     */
+    public long getDirectoryCount() {
+      return directoryCount;
+    }
+    
+    /**
+     * Get the modified timestamp of the oldest File anywhere below this Directory.
+     * @return the modified timestamp of the oldest File below this Directory, or null if there are no Files (with timestamps) below this Directory.
+     */
+    public LocalDateTime getOldestFileModified() {
+      return fromEpochNanos(oldestFile);
+    }
+    
+    /**
+     * Get the modified timestamp of the oldest File anywhere below this Directory.
+     * @return the modified timestamp of the oldest File below this Directory, in nanoseconds since the epoch (UTC), 
+     * or Long.MIN_VALUE if there are no Files (with timestamps) below this Directory.
+     */
+    public long getOldestFileModifiedEpochNanos() {
+      return oldestFile;
+    }
+    
+    /**
+     * Get the modified timestamp of the newest File anywhere below this Directory.
+     * @return the modified timestamp of the newest File below this Directory, or null if there are no Files (with timestamps) below this Directory.
+     */
+    public LocalDateTime getNewestFileModified() {
+      return fromEpochNanos(newestFile);
+    }
+    
+    /**
+     * Get the modified timestamp of the newest File anywhere below this Directory.
+     * 
+     * This can be used to skip a whole subtree that cannot contain any File modified after a given time.
+     * 
+     * @return the modified timestamp of the newest File below this Directory, in nanoseconds since the epoch (UTC), 
+     * or Long.MIN_VALUE if there are no Files (with timestamps) below this Directory.
+     */
+    public long getNewestFileModifiedEpochNanos() {
+      return newestFile;
     }
     
     /**
@@ -136,13 +452,40 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
       return children;
     }
 
+    private Node search(int from, int to, String name) {
+      int low = from;
+      int high = to - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        Node child = children.get(mid);
+        int cmp = child.getName().compareTo(name);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return child;
+        }
+      }
+      return null;
+    }
+
     /**
      * Get a child by name.
      * @param name The name of the child to get.
      * @return The child Node, or null if the child is not known.
      */
     public Node get(String name) {
-      return childrenByName.get(name);
+      if (dirCount < 0) {
+        for (Node child : children) {
+          if (child.getName().equals(name)) {
+            return child;
+          }
+        }
+        return null;
+      }
+      Node result = search(0, dirCount, name);
+      return result == null ? search(dirCount, children.size(), name) : result;
     }    
 
     /**
@@ -151,7 +494,7 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
      * @return The child Directory, or null if the child is not known or is not a directory.
      */
     public Directory getDir(String name) {
-      Node child = childrenByName.get(name);
+      Node child = dirCount < 0 ? get(name) : search(0, dirCount, name);
       if (child instanceof Directory) {
         return (Directory) child;
       } else {
@@ -174,7 +517,7 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
             BiFunction<Directory, List<MN>, ? extends MN> dirMapper,
             Function<File, ? extends MN> fileMapper
     ) {
-      List<MN> mappedChildren = children
+      List<MN> mappedChildren = getChildren()
               .stream()
               .map(n -> {
                 if (n instanceof File) {
@@ -192,7 +535,7 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
     }
     
     private <F> void flatten(List<F> mapped, Function<File, F> mapper) {
-      children.stream().forEach(node -> {
+      getChildren().stream().forEach(node -> {
         if (node instanceof File f) {
           F mappedFile = mapper.apply(f);
           if (mappedFile != null) {
@@ -219,9 +562,7 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
     
     @Override
     public int hashCode() {
-      int hash = super.privateMembersHashCode();
-      hash = 89 * hash + Objects.hashCode(this.childrenByName);
-      return hash;
+      return Long.hashCode(digest);
     }
 
     @Override
@@ -232,28 +573,37 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
       if (obj == null) {
         return false;
       }
-      if (getClass() != obj.getClass()) {
+      if (!(obj instanceof Directory)) {
         return false;
       }
       final Directory other = (Directory) obj;
+      if (this.digest != other.digest) {
+        logger.debug("{} changed at {}", getPath(), getModified());
+        return false;
+      }
       if (!super.privateMembersEqual(other)) {
         return false;
       }
-      
-      return Objects.equals(this.childrenByName, other.childrenByName);
+      // The digest covers the digests of all the children, so the subtrees are not compared node by node
+      return Objects.equals(getPath(), other.getPath());
     }
     
 
     @Override
     public String toString() {
-      return path + " (" + childrenByName.size() + " children @ " + modified + ')';
+      return getPath() + " (" + getChildren().size() + " children @ " + getModified() + ')';
     }
     
   }
   
   public static class File extends Node {
 
+    /**
+     * The path of the parent directory, usually the same instance as the path of the parent Directory Node.
+     */
+    private final Path parent;
     private final long size;
+    private final long digest;
 
     /**
      * Constructor.
@@ -262,8 +612,41 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
      * @param size The size of the file, in bytes.
      */
     public File(Path path, LocalDateTime modified, long size) {
-      super(path, modified);
+      this(path.getParent(), path.getFileName().toString(), toEpochNanos(modified), size);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * The path of the File is not stored, it is derived from the parent path and the name when it is required.
+     * 
+     * @param parent The path of the directory containing the file, may be null for a relative path with a single element.
+     * @param name The name of the file (passing in an existing String avoids duplicating it).
+     * @param modified The modified timestamp, in nanoseconds since the epoch (UTC).
+     * @param size The size of the file, in bytes.
+     */
+    public File(Path parent, String name, long modified, long size) {
+      super(null, name, modified);
+      this.parent = parent;
       this.size = size;
+      this.digest = finishDigest(digest(startDigest(), size));
+    }
+
+    /**
+     * Get the {@link java.nio.file.Path} that relates to this Node.
+     * 
+     * The path is not stored, so this creates a new Path on each call.
+     * 
+     * @return the {@link java.nio.file.Path} that relates to this Node.
+     */
+    @Override
+    public Path getPath() {
+      return parent == null ? Path.of(name) : parent.resolve(name);
+    }
+
+    @Override
+    public long getDigest() {
+      return digest;
     }
 
     /**
@@ -286,9 +669,7 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
 
     @Override
     public int hashCode() {
-      int hash = super.privateMembersHashCode();
-      hash = 23 * hash + (int) (this.size ^ (this.size >>> 32));
-      return hash;
+      return Long.hashCode(digest);
     }
 
     @Override
@@ -299,20 +680,20 @@ public class DirCacheTree implements FileTree<DirCacheTree.Node> {
       if (obj == null) {
         return false;
       }
-      if (getClass() != obj.getClass()) {
+      if (!(obj instanceof File)) {
         return false;
       }
       final File other = (File) obj;
       if (this.size != other.size) {
-        logger.debug("{} changed size from {} to {}", this.path, other.size, this.size);
+        logger.debug("{} changed size from {} to {}", getPath(), other.size, this.size);
         return false;
       }
-      return super.privateMembersEqual(other);
+      return super.privateMembersEqual(other) && Objects.equals(this.parent, other.parent);
     }
 
     @Override
     public String toString() {
-      return path + " (" + size + " bytes @ " + modified + ')';
+      return getPath() + " (" + size + " bytes @ " + getModified() + ')';
     }
   }
   
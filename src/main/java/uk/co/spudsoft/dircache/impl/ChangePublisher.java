@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.spudsoft.dircache.ChangeSet;
+import uk.co.spudsoft.dircache.DirCacheChangeEvent;
+import uk.co.spudsoft.dircache.DirCacheSnapshot;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * A Flow.Publisher of the changes to a DirCache.
+ *
+ * Each subscription only records the last snapshot it delivered and the latest snapshot, it never queues events.
+ * When the subscriber has demand and the latest snapshot is newer than the last one delivered a single event is produced
+ * covering everything that changed between them, so a slow subscriber receives fewer, coalesced, events.
+ *
+ * All signals to a subscriber are made serially on the Executor, never on the thread that found the change.
+ *
+ * @author jtalbut
+ */
+final class ChangePublisher implements Flow.Publisher<DirCacheChangeEvent> {
+
+  private static final Logger logger = LoggerFactory.getLogger(ChangePublisher.class);
+
+  private final Executor executor;
+  private final Supplier<DirCacheSnapshot> current;
+  private final List<ChangeSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  /**
+   * Constructor.
+   *
+   * @param executor The Executor on which to signal subscribers.
+   * @param current Supplier of the current snapshot, which is the starting point for new subscribers.
+   */
+  ChangePublisher(Executor executor, Supplier<DirCacheSnapshot> current) {
+    this.executor = executor;
+    this.current = current;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super DirCacheChangeEvent> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("Subscriber may not be null");
+    }
+    ChangeSubscription subscription = new ChangeSubscription(subscriber, current.get());
+    subscriptions.add(subscription);
+    subscription.signal();
+  }
+
+  /**
+   * Make a new snapshot available to all subscribers.
+   *
+   * @param snapshot The new snapshot.
+   */
+  void publish(DirCacheSnapshot snapshot) {
+    for (ChangeSubscription subscription : subscriptions) {
+      subscription.offer(snapshot);
+    }
+  }
+
+  /**
+   * Complete all subscriptions, because the DirCache has been closed.
+   */
+  void complete() {
+    for (ChangeSubscription subscription : subscriptions) {
+      subscription.complete();
+    }
+  }
+
+  private final class ChangeSubscription implements Flow.Subscription {
+
+    private final Flow.Subscriber<? super DirCacheChangeEvent> subscriber;
+
+    private DirCacheSnapshot delivered;
+    private DirCacheSnapshot latest;
+    private long demand;
+    private boolean subscribed;
+    private boolean completing;
+    private boolean done;
+    private Throwable error;
+    private boolean running;
+
+    ChangeSubscription(Flow.Subscriber<? super DirCacheChangeEvent> subscriber, DirCacheSnapshot start) {
+      this.subscriber = subscriber;
+      this.delivered = start;
+      this.latest = start;
+    }
+
+    void offer(DirCacheSnapshot snapshot) {
+      synchronized (this) {
+        if (snapshot.getGeneration() <= latest.getGeneration()) {
+          return;
+        }
+        latest = snapshot;
+      }
+      signal();
+    }
+
+    void complete() {
+      synchronized (this) {
+        completing = true;
+      }
+      signal();
+    }
+
+    @Override
+    public void request(long n) {
+      synchronized (this) {
+        if (n <= 0) {
+          error = new IllegalArgumentException("Request for " + n + " items, must be positive");
+        } else {
+          demand += n;
+          if (demand < 0) {
+            demand = Long.MAX_VALUE;
+          }
+        }
+      }
+      signal();
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (this) {
+        done = true;
+      }
+      subscriptions.remove(this);
+    }
+
+    private void signal() {
+      synchronized (this) {
+        if (running || done) {
+          return;
+        }
+        running = true;
+      }
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException ex) {
+        logger.warn("Executor rejected signal to {}: ", subscriber, ex);
+        synchronized (this) {
+          running = false;
+        }
+      }
+    }
+
+    private void drain() {
+      while (true) {
+        boolean needsSubscribe = false;
+        Throwable failure = null;
+        boolean finish = false;
+        DirCacheSnapshot from = null;
+        DirCacheSnapshot to = null;
+        synchronized (this) {
+          if (done) {
+            running = false;
+            return;
+          } else if (!subscribed) {
+            subscribed = true;
+            needsSubscribe = true;
+          } else if (error != null) {
+            failure = error;
+            done = true;
+          } else if (demand > 0 && latest.getGeneration() > delivered.getGeneration()) {
+            from = delivered;
+            to = latest;
+            delivered = latest;
+            if (demand != Long.MAX_VALUE) {
+              --demand;
+            }
+          } else if (completing) {
+            finish = true;
+            done = true;
+          } else {
+            running = false;
+            return;
+          }
+        }
+        try {
+          if (needsSubscribe) {
+            subscriber.onSubscribe(this);
+          } else if (failure != null) {
+            subscriptions.remove(this);
+            subscriber.onError(failure);
+          } else if (finish) {
+            subscriptions.remove(this);
+            subscriber.onComplete();
+          } else {
+            subscriber.onNext(event(from, to));
+          }
+        } catch (Throwable ex) {
+          logger.warn("Subscriber {} failed: ", subscriber, ex);
+          cancel();
+        }
+      }
+    }
+  }
+
+  private static DirCacheChangeEvent event(DirCacheSnapshot from, DirCacheSnapshot to) {
+    ChangeSet changes = ChangeSet.diff(from.getRoot(), to.getRoot());
+    List<Path> paths = new ArrayList<>(changes.getAdded().size() + changes.getRemoved().size() + changes.getModified().size());
+    for (DirCacheTree.Node node : changes.getAdded()) {
+      paths.add(node.getPath());
+    }
+    for (DirCacheTree.Node node : changes.getRemoved()) {
+      paths.add(node.getPath());
+    }
+    for (DirCacheTree.Node node : changes.getModified()) {
+      paths.add(node.getPath());
+    }
+    return new DirCacheChangeEvent(to, from.getGeneration(), paths);
+  }
+
+}
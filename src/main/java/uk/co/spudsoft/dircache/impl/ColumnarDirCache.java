@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * Implementation of the {@link uk.co.spudsoft.dircache.DirCache} interface that holds the tree off-heap.
+ * 
+ * The tree is walked in exactly the same way as {@link DirCacheImpl}, but each new tree is copied into a {@link ColumnarTree}
+ * and the on-heap tree is discarded, so the heap used by the cache does not grow with the size of the tree.
+ * The Nodes returned from {@link #getRoot()} are views of the off-heap tree that are created as they are navigated,
+ * callers should not hold on to them for longer than necessary.
+ * 
+ * Every change results in a complete new ColumnarTree (replacing the previous one), so this is only suitable for very large trees that change infrequently.
+ * Note that {@link #lookup(java.lang.String)} creates an on-heap index of every Node, so it should not be used with this implementation if the heap is a concern.
+ *
+ * @author jtalbut
+ */
+public class ColumnarDirCache extends DirCacheImpl {
+
+  /**
+   * Constructor.
+   * Create an off-heap dir cache of a given path, monitoring for any changes that occur.
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  public ColumnarDirCache(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod) throws FileNotFoundException, IOException {
+    super(root, stabilizationgLag, ignore, pollPeriod);
+  }
+
+  /**
+   * Constructor.
+   * Create an off-heap dir cache of a given path, monitoring for any changes that occur, using a ForkJoinPool to walk the full tree.
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @param walkPool ForkJoinPool to use for walking the full tree, or null to walk the tree on the calling thread.
+   * @param maxConcurrentIo The maximum number of directories to read at the same time, ignored if walkPool is null.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  public ColumnarDirCache(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod, ForkJoinPool walkPool, int maxConcurrentIo) throws FileNotFoundException, IOException {
+    super(root, stabilizationgLag, ignore, pollPeriod, walkPool, maxConcurrentIo);
+  }
+
+  @Override
+  public ColumnarDirCache start() throws IOException {
+    super.start();
+    return this;
+  }
+
+  @Override
+  protected DirCacheTree.Directory store(DirCacheTree.Directory newRoot) {
+    if (newRoot == null) {
+      return null;
+    }
+    return ColumnarTree.encode(newRoot).getRoot();
+  }
+
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * An immutable tree of Nodes held off-heap in primitive columns.
+ *
+ * Nodes are numbered in breadth first order, with the root as zero, so the children of each Directory are contiguous
+ * (and in the order given by {@link DirCacheTree#compareNodes(uk.co.spudsoft.dircache.DirCacheTree.Node, uk.co.spudsoft.dircache.DirCacheTree.Node)}).
+ * Each column is a direct ByteBuffer holding one value per Node, names are held as UTF-16 in a single CharBuffer.
+ * The sizes column holds the size of each File and the total size of each Directory, the other aggregates are only used for Directories.
+ *
+ * The only objects on the heap are the buffers themselves, Nodes are created on demand as views of the columns and can be discarded as soon as the caller has finished with them.
+ * Directory views look up their children by binary search of the columns.
+ *
+ * @author jtalbut
+ */
+final class ColumnarTree {
+
+  private static final byte TYPE_DIR = 0;
+  private static final byte TYPE_FILE = 1;
+
+  private final Path rootPath;
+  private final int count;
+  private final ByteBuffer firstChildren;
+  private final ByteBuffer childCounts;
+  private final ByteBuffer dirCounts;
+  private final ByteBuffer nameOffsets;
+  private final ByteBuffer nameLengths;
+  private final ByteBuffer sizes;
+  private final ByteBuffer modifieds;
+  private final ByteBuffer digests;
+  private final ByteBuffer fileCounts;
+  private final ByteBuffer directoryCounts;
+  private final ByteBuffer oldestFiles;
+  private final ByteBuffer newestFiles;
+  private final ByteBuffer types;
+  private final CharBuffer names;
+
+  private ColumnarTree(Path rootPath, int count, int nameChars) {
+    this.rootPath = rootPath;
+    this.count = count;
+    this.firstChildren = ByteBuffer.allocateDirect(count * Integer.BYTES);
+    this.childCounts = ByteBuffer.allocateDirect(count * Integer.BYTES);
+    this.dirCounts = ByteBuffer.allocateDirect(count * Integer.BYTES);
+    this.nameOffsets = ByteBuffer.allocateDirect(count * Integer.BYTES);
+    this.nameLengths = ByteBuffer.allocateDirect(count * Integer.BYTES);
+    this.sizes = ByteBuffer.allocateDirect(count * Long.BYTES);
+    this.modifieds = ByteBuffer.allocateDirect(count * Long.BYTES);
+    this.digests = ByteBuffer.allocateDirect(count * Long.BYTES);
+    this.fileCounts = ByteBuffer.allocateDirect(count * Long.BYTES);
+    this.directoryCounts = ByteBuffer.allocateDirect(count * Long.BYTES);
+    this.oldestFiles = ByteBuffer.allocateDirect(count * Long.BYTES);
+    this.newestFiles = ByteBuffer.allocateDirect(count * Long.BYTES);
+    this.types = ByteBuffer.allocateDirect(count);
+    this.names = ByteBuffer.allocateDirect(nameChars * Character.BYTES).asCharBuffer();
+  }
+
+  /**
+   * Copy a tree into a new ColumnarTree.
+   *
+   * @param root The root of the tree to copy.
+   * @return A new ColumnarTree containing the same Nodes as the tree.
+   */
+  static ColumnarTree encode(DirCacheTree.Directory root) {
+    int count = 0;
+    long nameChars = 0;
+    Deque<DirCacheTree.Node> stack = new ArrayDeque<>();
+    stack.push(root);
+    while (!stack.isEmpty()) {
+      DirCacheTree.Node node = stack.pop();
+      ++count;
+      nameChars += node.getName().length();
+      if (node instanceof DirCacheTree.Directory dir) {
+        dir.getChildren().forEach(stack::push);
+      }
+    }
+    if (nameChars > Integer.MAX_VALUE / Character.BYTES) {
+      throw new IllegalArgumentException("Tree is too large to be held in a ColumnarTree");
+    }
+
+    ColumnarTree tree = new ColumnarTree(root.getPath(), count, (int) nameChars);
+    Deque<DirCacheTree.Directory> dirs = new ArrayDeque<>();
+    Deque<Integer> dirIndexes = new ArrayDeque<>();
+    int next = 0;
+    int nameOffset = 0;
+    nameOffset = tree.write(next++, root, nameOffset);
+    dirs.add(root);
+    dirIndexes.add(0);
+    while (!dirs.isEmpty()) {
+      DirCacheTree.Directory dir = dirs.poll();
+      int index = dirIndexes.poll();
+      List<DirCacheTree.Node> children = sorted(dir.getChildren());
+      int dirCount = 0;
+      tree.firstChildren.putInt(index * Integer.BYTES, next);
+      tree.childCounts.putInt(index * Integer.BYTES, children.size());
+      for (DirCacheTree.Node child : children) {
+        int childIndex = next++;
+        nameOffset = tree.write(childIndex, child, nameOffset);
+        if (child instanceof DirCacheTree.Directory childDir) {
+          ++dirCount;
+          dirs.add(childDir);
+          dirIndexes.add(childIndex);
+        }
+      }
+      tree.dirCounts.putInt(index * Integer.BYTES, dirCount);
+    }
+    return tree;
+  }
+
+  private static List<DirCacheTree.Node> sorted(List<DirCacheTree.Node> children) {
+    for (int i = 1; i < children.size(); ++i) {
+      if (DirCacheTree.compareNodes(children.get(i - 1), children.get(i)) >= 0) {
+        List<DirCacheTree.Node> result = new ArrayList<>(children);
+        result.sort(DirCacheTree::compareNodes);
+        return result;
+      }
+    }
+    return children;
+  }
+
+  private int write(int index, DirCacheTree.Node node, int nameOffset) {
+    String name = node.getName();
+    nameOffsets.putInt(index * Integer.BYTES, nameOffset);
+    nameLengths.putInt(index * Integer.BYTES, name.length());
+    for (int i = 0; i < name.length(); ++i) {
+      names.put(nameOffset + i, name.charAt(i));
+    }
+    modifieds.putLong(index * Long.BYTES, node.getModifiedEpochNanos());
+    digests.putLong(index * Long.BYTES, node.getDigest());
+    if (node instanceof DirCacheTree.File file) {
+      types.put(index, TYPE_FILE);
+      sizes.putLong(index * Long.BYTES, file.getSize());
+    } else if (node instanceof DirCacheTree.Directory dir) {
+      types.put(index, TYPE_DIR);
+      sizes.putLong(index * Long.BYTES, dir.getTotalSize());
+      fileCounts.putLong(index * Long.BYTES, dir.getFileCount());
+      directoryCounts.putLong(index * Long.BYTES, dir.getDirectoryCount());
+      oldestFiles.putLong(index * Long.BYTES, dir.getOldestFileModifiedEpochNanos());
+      newestFiles.putLong(index * Long.BYTES, dir.getNewestFileModifiedEpochNanos());
+    }
+    return nameOffset + name.length();
+  }
+
+  /**
+   * Get the number of Nodes in the tree.
+   * @return the number of Nodes in the tree.
+   */
+  int size() {
+    return count;
+  }
+
+  /**
+   * Get a view of the root of the tree.
+   * @return a view of the root of the tree.
+   */
+  DirCacheTree.Directory getRoot() {
+    return new DirectoryView(0, rootPath);
+  }
+
+  private String name(int index) {
+    int offset = nameOffsets.getInt(index * Integer.BYTES);
+    char[] chars = new char[nameLengths.getInt(index * Integer.BYTES)];
+    names.get(offset, chars);
+    return new String(chars);
+  }
+
+  private int compareName(int index, String name) {
+    int offset = nameOffsets.getInt(index * Integer.BYTES);
+    int length = nameLengths.getInt(index * Integer.BYTES);
+    int common = Math.min(length, name.length());
+    for (int i = 0; i < common; ++i) {
+      char c = names.get(offset + i);
+      if (c != name.charAt(i)) {
+        return c - name.charAt(i);
+      }
+    }
+    return length - name.length();
+  }
+
+  private DirCacheTree.Node node(int index, Path parentPath) {
+    String name = name(index);
+    long modified = modifieds.getLong(index * Long.BYTES);
+    if (types.get(index) == TYPE_DIR) {
+      return new DirectoryView(index, parentPath.resolve(name), name);
+    } else {
+      return new DirCacheTree.File(parentPath, name, modified, sizes.getLong(index * Long.BYTES));
+    }
+  }
+
+  private int search(int from, int to, String name) {
+    int low = from;
+    int high = to - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareName(mid, name);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * A Directory whose attributes and children are held in the columns of the ColumnarTree.
+   */
+  private final class DirectoryView extends DirCacheTree.Directory {
+
+    private final int index;
+
+    DirectoryView(int index, Path path) {
+      this(index, path, name(index));
+    }
+
+    DirectoryView(int index, Path path, String name) {
+      super(path, name, modifieds.getLong(index * Long.BYTES), digests.getLong(index * Long.BYTES),
+              sizes.getLong(index * Long.BYTES), fileCounts.getLong(index * Long.BYTES), directoryCounts.getLong(index * Long.BYTES),
+              oldestFiles.getLong(index * Long.BYTES), newestFiles.getLong(index * Long.BYTES));
+      this.index = index;
+    }
+
+    private int firstChild() {
+      return firstChildren.getInt(index * Integer.BYTES);
+    }
+
+    private int childCount() {
+      return childCounts.getInt(index * Integer.BYTES);
+    }
+
+    private int dirCount() {
+      return dirCounts.getInt(index * Integer.BYTES);
+    }
+
+    @Override
+    public List<DirCacheTree.Node> getChildren() {
+      int first = firstChild();
+      int size = childCount();
+      Path path = getPath();
+      return new AbstractList<>() {
+        @Override
+        public DirCacheTree.Node get(int i) {
+          if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i);
+          }
+          return node(first + i, path);
+        }
+
+        @Override
+        public int size() {
+          return size;
+        }
+      };
+    }
+
+    @Override
+    public DirCacheTree.Node get(String name) {
+      int first = firstChild();
+      int found = search(first, first + dirCount(), name);
+      if (found < 0) {
+        found = search(first + dirCount(), first + childCount(), name);
+      }
+      return found < 0 ? null : node(found, getPath());
+    }
+
+    @Override
+    public DirCacheTree.Directory getDir(String name) {
+      int first = firstChild();
+      int found = search(first, first + dirCount(), name);
+      return found < 0 ? null : (DirCacheTree.Directory) node(found, getPath());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj instanceof DirectoryView other && other.tree() == ColumnarTree.this) {
+        return other.index == index;
+      }
+      return super.equals(obj);
+    }
+
+    @Override
+    public int hashCode() {
+      return super.hashCode();
+    }
+
+    private ColumnarTree tree() {
+      return ColumnarTree.this;
+    }
+
+    @Override
+    public String toString() {
+      return getPath() + " (" + childCount() + " children @ " + getModified() + ')';
+    }
+  }
+
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.spudsoft.dircache.DirCache;
+
+/**
+ * Shared resources for running many DirCache instances in one JVM.
+ *
+ * A standalone DirCache has its own WatchService, its own thread to wait on it and its own Timer for polling.
+ * DirCaches that use an engine instead share one WatchService (and one thread waiting on it) per FileSystem,
+ * and run all of their work (processing changes, debouncing and polling) on a single ScheduledExecutorService,
+ * so the number of threads does not grow with the number of caches.
+ *
+ * The work for any one DirCache is never run concurrently, even if the scheduler has more than one thread: each DirCache has a {@link Lane}
+ * that passes its tasks to the scheduler one at a time, in the order they became due.
+ * Work for different DirCaches may run concurrently if the scheduler has more than one thread.
+ * With the default single thread scheduler a slow task for one DirCache (such as a full walk of a large tree) delays the work
+ * of all the others, a scheduler with more threads avoids this.
+ *
+ * @author jtalbut
+ */
+public final class DirCacheEngine implements AutoCloseable {
+
+  private static final Logger logger = LoggerFactory.getLogger(DirCacheEngine.class);
+
+  private final ScheduledExecutorService scheduler;
+  private final boolean ownScheduler;
+  private final Map<FileSystem, Watcher> watchers = new HashMap<>();
+  private boolean closed;
+
+  /**
+   * Constructor, creating an engine that runs all work on a single thread.
+   */
+  public DirCacheEngine() {
+    this(Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "DirCacheEngine#scheduler");
+      thread.setDaemon(true);
+      return thread;
+    }), true);
+  }
+
+  /**
+   * Constructor, creating an engine that runs all work on the given scheduler.
+   *
+   * The scheduler is not shut down when the engine is closed.
+   *
+   * @param scheduler The ScheduledExecutorService to use for all work.
+   */
+  public DirCacheEngine(ScheduledExecutorService scheduler) {
+    this(scheduler, false);
+  }
+
+  private DirCacheEngine(ScheduledExecutorService scheduler, boolean ownScheduler) {
+    this.scheduler = scheduler;
+    this.ownScheduler = ownScheduler;
+  }
+
+  /**
+   * Create a dir cache of a given path that uses this engine, monitoring for any changes that occur.
+   *
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @return a newly created DirCache instance.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  public DirCache cache(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod) throws FileNotFoundException, IOException {
+    return new DirCacheImpl(root, stabilizationgLag, ignore, pollPeriod).setEngine(this).start();
+  }
+
+  /**
+   * Close the engine, stopping all the threads that it has started.
+   *
+   * Any DirCaches still using the engine will no longer be notified of changes.
+   */
+  @Override
+  public void close() {
+    List<Watcher> toClose;
+    synchronized (watchers) {
+      closed = true;
+      toClose = new ArrayList<>(watchers.values());
+      watchers.clear();
+    }
+    for (Watcher watcher : toClose) {
+      watcher.close();
+    }
+    if (ownScheduler) {
+      scheduler.shutdownNow();
+    }
+  }
+
+  /**
+   * Get the number of directories being watched for all DirCaches.
+   * Where more than one DirCache watches the same directory it is only counted once.
+   * @return the number of directories being watched for all DirCaches.
+   */
+  public int getWatchCount() {
+    int count = 0;
+    synchronized (watchers) {
+      for (Watcher watcher : watchers.values()) {
+        count += watcher.routes.size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Start watching a directory for a DirCache.
+   *
+   * If more than one DirCache watches the same directory they share a WatchKey and each is notified of every event.
+   *
+   * @param cache The DirCache that will be notified of changes in the directory.
+   * @param dir The directory to watch.
+   * @return The WatchKey for the directory.
+   * @throws IOException if the directory cannot be watched.
+   */
+  WatchKey register(DirCacheImpl cache, Path dir) throws IOException {
+    Watcher watcher = watcher(dir.getFileSystem());
+    synchronized (watcher) {
+      WatchKey key = dir.register(watcher.watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+      List<DirCacheImpl> caches = watcher.routes.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>());
+      if (!caches.contains(cache)) {
+        caches.add(cache);
+      }
+      return key;
+    }
+  }
+
+  /**
+   * Stop watching a directory for a DirCache.
+   *
+   * The WatchKey is only cancelled when no DirCaches are watching the directory.
+   *
+   * @param cache The DirCache that was notified of changes in the directory.
+   * @param key The WatchKey returned by {@link #register(uk.co.spudsoft.dircache.impl.DirCacheImpl, java.nio.file.Path)}.
+   */
+  void unregister(DirCacheImpl cache, WatchKey key) {
+    Watcher watcher;
+    synchronized (watchers) {
+      watcher = watchers.get(((Path) key.watchable()).getFileSystem());
+    }
+    if (watcher == null) {
+      return;
+    }
+    synchronized (watcher) {
+      List<DirCacheImpl> caches = watcher.routes.get(key);
+      if (caches != null) {
+        caches.remove(cache);
+        if (caches.isEmpty()) {
+          watcher.routes.remove(key);
+          key.cancel();
+        }
+      }
+    }
+  }
+
+  /**
+   * Create a new Lane, through which all the work for a single DirCache should be run.
+   * @return a new Lane.
+   */
+  Lane newLane() {
+    return new Lane();
+  }
+
+  private Watcher watcher(FileSystem fileSystem) throws IOException {
+    synchronized (watchers) {
+      if (closed) {
+        throw new IllegalStateException("DirCacheEngine has been closed");
+      }
+      Watcher watcher = watchers.get(fileSystem);
+      if (watcher == null) {
+        watcher = new Watcher(fileSystem);
+        watchers.put(fileSystem, watcher);
+      }
+      return watcher;
+    }
+  }
+
+  /**
+   * Serializes the work for a single DirCache on the shared scheduler.
+   *
+   * Tasks that are due are queued and passed to the scheduler one at a time, so no two tasks in a Lane ever run concurrently.
+   * After each task the Lane goes to the back of the scheduler's queue, so a DirCache with a lot of work does not hold on to a thread.
+   * Delays are timed by the scheduler, a task is only queued in the Lane once it is due, and cancelling a task
+   * stops it running even if it is already queued.
+   */
+  final class Lane {
+
+    private final Queue<Runnable> queue = new ArrayDeque<>();
+    private boolean running;
+
+    private Lane() {
+    }
+
+    Future<?> submit(Runnable task) {
+      LaneTask laneTask = new LaneTask(task);
+      execute(laneTask);
+      return laneTask;
+    }
+
+    ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+      LaneTask laneTask = new LaneTask(task);
+      laneTask.trigger(delayMillis);
+      return laneTask;
+    }
+
+    /**
+     * Run a task repeatedly, with a fixed delay between the end of one run and the start of the next.
+     * 
+     * As with {@link ScheduledExecutorService#scheduleWithFixedDelay(java.lang.Runnable, long, long, java.util.concurrent.TimeUnit)},
+     * if the task throws an exception it is not run again.
+     */
+    ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelayMillis, long delayMillis) {
+      LaneTask laneTask = new PeriodicLaneTask(task, delayMillis);
+      laneTask.trigger(initialDelayMillis);
+      return laneTask;
+    }
+
+    private void execute(Runnable task) {
+      synchronized (this) {
+        queue.add(task);
+        if (running) {
+          return;
+        }
+        running = true;
+      }
+      scheduler.execute(this::runNext);
+    }
+
+    private void runNext() {
+      Runnable task;
+      synchronized (this) {
+        task = queue.poll();
+      }
+      try {
+        task.run();
+      } finally {
+        synchronized (this) {
+          running = !queue.isEmpty();
+        }
+        if (running) {
+          try {
+            scheduler.execute(this::runNext);
+          } catch (RejectedExecutionException ex) {
+            logger.debug("DirCacheEngine scheduler no longer accepting tasks: ", ex);
+          }
+        }
+      }
+    }
+
+    /**
+     * A task in the Lane, which is queued when its trigger on the scheduler fires.
+     */
+    private class LaneTask extends FutureTask<Void> implements ScheduledFuture<Void> {
+
+      private volatile ScheduledFuture<?> trigger;
+
+      LaneTask(Runnable task) {
+        super(task, null);
+      }
+
+      void trigger(long delayMillis) {
+        trigger = scheduler.schedule(() -> execute(this), delayMillis, TimeUnit.MILLISECONDS);
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        ScheduledFuture<?> current = trigger;
+        if (current != null) {
+          current.cancel(false);
+        }
+        return super.cancel(mayInterruptIfRunning);
+      }
+
+      @Override
+      public long getDelay(TimeUnit unit) {
+        ScheduledFuture<?> current = trigger;
+        return current == null ? 0 : current.getDelay(unit);
+      }
+
+      @Override
+      public int compareTo(Delayed o) {
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+      }
+    }
+
+    /**
+     * A task in the Lane that triggers itself again each time it completes.
+     */
+    private class PeriodicLaneTask extends LaneTask {
+
+      private final long delayMillis;
+
+      PeriodicLaneTask(Runnable task, long delayMillis) {
+        super(task);
+        this.delayMillis = delayMillis;
+      }
+
+      @Override
+      public void run() {
+        if (runAndReset()) {
+          try {
+            trigger(delayMillis);
+          } catch (RejectedExecutionException ex) {
+            logger.debug("DirCacheEngine scheduler no longer accepting tasks: ", ex);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The WatchService for a single FileSystem, and the thread that waits on it and routes WatchKeys to DirCaches.
+   */
+  private static class Watcher {
+
+    private final WatchService watchService;
+    private final Map<WatchKey, List<DirCacheImpl>> routes = new ConcurrentHashMap<>();
+    private final Thread thread;
+
+    Watcher(FileSystem fileSystem) throws IOException {
+      this.watchService = fileSystem.newWatchService();
+      this.thread = new Thread(this::run, "DirCacheEngine#watch: " + fileSystem);
+      this.thread.setDaemon(true);
+      this.thread.start();
+    }
+
+    private void run() {
+      while (true) {
+        WatchKey key;
+        try {
+          key = watchService.take();
+        } catch (ClosedWatchServiceException ex) {
+          return;
+        } catch (InterruptedException ex) {
+          continue;
+        }
+        List<WatchEvent<?>> events = key.pollEvents();
+        boolean valid = key.reset();
+        List<DirCacheImpl> caches;
+        // Wait for any registration of this key to complete before looking up the caches
+        synchronized (this) {
+          caches = valid ? routes.get(key) : routes.remove(key);
+        }
+        if (caches != null) {
+          Path dir = (Path) key.watchable();
+          for (DirCacheImpl cache : caches) {
+            try {
+              cache.watchEvents(dir, events, valid);
+            } catch (Throwable ex) {
+              logger.warn("Failed to pass events for {} to {}: ", dir, cache, ex);
+            }
+          }
+        }
+      }
+    }
+
+    void close() {
+      try {
+        watchService.close();
+      } catch (IOException ex) {
+        logger.info("Failed to close dir cache engine file watcher: ", ex);
+      }
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        logger.info("Interrupted whilst waiting for thread to stop");
+      }
+    }
+  }
+
+}
@@ -19,12 +19,15 @@ package uk.co.spudsoft.dircache.impl;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import static java.nio.file.FileVisitOption.FOLLOW_LINKS;
 import java.nio.file.FileVisitResult;
 import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
@@ -34,8 +37,10 @@ import java.nio.file.WatchService;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -47,12 +52,34 @@ import java.util.Set;
 import java.util.Stack;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.co.spudsoft.dircache.DirCache;
+import uk.co.spudsoft.dircache.DirCacheChangeEvent;
+import uk.co.spudsoft.dircache.DirCacheIndex;
+import uk.co.spudsoft.dircache.DirCacheListener;
+import uk.co.spudsoft.dircache.DirCacheSnapshot;
 import uk.co.spudsoft.dircache.DirCacheTree;
 
 /**
@@ -63,29 +90,114 @@ import uk.co.spudsoft.dircache.DirCacheTree;
 public class DirCacheImpl implements DirCache {
 
   private static final Logger logger = LoggerFactory.getLogger(DirCacheImpl.class);
+  
+  /**
+   * The default period between checks of directories that are not being watched.
+   */
+  private static final long DEFAULT_COLD_CHECK_PERIOD_MILLIS = 1000;
+  
+  /**
+   * The default maximum number of directories that are not being watched to check each period.
+   */
+  private static final int DEFAULT_COLD_CHECKS_PER_PERIOD = 1000;
+  
+  /**
+   * The period between batches of file checks by the rolling scan of incremental polling.
+   */
+  private static final long ROLLING_SCAN_PERIOD_MILLIS = 100;
+  
+  /**
+   * By default the callback is delayed by no more than this multiple of the stabilization lag, however often changes are seen.
+   */
+  static final long DEFAULT_MAX_NOTIFICATION_DELAY_FACTOR = 10;
+  
+  /**
+   * The Executor used for the callback and for listeners added without one.
+   * Each listener has at most one task running at a time, so this only needs as many threads as there are slow listeners.
+   */
+  private static final Executor DEFAULT_LISTENER_EXECUTOR = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "DirCache#listener");
+    thread.setDaemon(true);
+    return thread;
+  });
+  
+  /**
+   * The delay before the first poll, in addition to a random part of the poll period.
+   */
+  private static final long INITIAL_POLL_DELAY_MILLIS = 500;
+  
+  /**
+   * With adaptive polling, the poll period is at least this multiple of the duration of the last walk.
+   */
+  static final long ADAPTIVE_POLL_FACTOR = 4;
+  
+  /**
+   * The maximum variation of each poll period, as a proportion of the period.
+   */
+  static final double POLL_JITTER = 0.1;
 
   private final Object readLock = new Object();
   private final Object scanLock = new Object();
-  private final Map<Path, WatchKey> watches = new HashMap<>();
+  private final Map<Path, WatchKey> watches = new ConcurrentHashMap<>();
   private final AtomicBoolean stopped = new AtomicBoolean(false);
   private final Path rootPath;
+  private final Path absoluteRootPath;
   private final long stabilizationgLagMillis;
   private final long pollPeriodMillis;
   private final Pattern ignore;
+  private final ForkJoinPool walkPool;
+  private final Semaphore ioPermits;
   private Thread thread;
+  private Thread startupThread;
+  private Future<?> startupTask;
+  private DirCacheEngine engine;
+  private DirCacheEngine.Lane lane;
+  private ScheduledFuture<?> pollingFuture;
+  private final PendingChanges queuedChanges = new PendingChanges();
+  private ScheduledFuture<?> quietTimer;
+  private boolean batching;
+  private long batchDeadline;
+  private long maxNotificationDelayMillis;
+  private WatchBudget watchBudget = new WatchBudget(Integer.MAX_VALUE);
+  private long coldCheckPeriodMillis = DEFAULT_COLD_CHECK_PERIOD_MILLIS;
+  private int coldChecksPerPeriod = DEFAULT_COLD_CHECKS_PER_PERIOD;
+  private final Object coldCheckLock = new Object();
+  private Timer coldCheckTimer;
+  private ScheduledFuture<?> coldCheckFuture;
+  private boolean incrementalPolling;
+  private long rollingScanBatch;
+  private Path rollingScanCursor;
+  private ScheduledFuture<?> rollingScanFuture;
+  private final Object pollLock = new Object();
+  private long maxPollPeriodMillis;
+  private volatile Duration lastWalkDuration;
+  private final AtomicLong ignoredEvents = new AtomicLong();
+  private Path snapshotFile;
+  private List<Path> priorityPaths = List.of();
   private Timer pollingTimer;
   private PollTask pollingTask;
   private WatchService watcher;
-  private volatile LocalDateTime lastWalkTime;
-  private volatile DirCacheTree.Directory rootNode;
+  private final AtomicReference<DirCacheSnapshot> state = new AtomicReference<>(new DirCacheSnapshot(null, null, 0));
+  private volatile PathIndex index;
+  private SecondaryIndexes fileIndexes;
   
-  private Runnable callback;  
+  /**
+   * Lock held whilst notifying, so that notifications from the watch thread, the poll timer and refresh are made in generation order.
+   */
+  private final Object notifyLock = new Object();
+  private final AtomicReference<DirCacheTree.Directory> lastNotifiedRoot = new AtomicReference<>();
+  private final List<ListenerDispatcher> listeners = new CopyOnWriteArrayList<>();
+  private volatile ListenerDispatcher callback;
+  private final AtomicLong maxListenerNanos = new AtomicLong();
+  private final SubscriptionIndex subscriptions = new SubscriptionIndex();
+  private final ChangePublisher changePublisher = new ChangePublisher(DEFAULT_LISTENER_EXECUTOR, this::getSnapshot);
 
   /**
    * Constructor.
    * Create a dir cache of a given path, monitoring for any changes that occur.
    * 
-   * Note that all the Nodes of a DirCache are immutable, whenever a change occurs the cache is rebuilt from the root.
+   * Note that all the Nodes of a DirCache are immutable, whenever a change occurs the changed directories are rebuilt and copied up to a new root
+   * (unchanged subtrees are shared between the old and new trees).
    * As with most caches, the cache must be read more than written to make sense.
    * 
    * @param root The root of the directory cache, which should be a directory.
@@ -97,12 +209,68 @@ public class DirCacheImpl implements DirCache {
    * @throws IOException if attempts to walk the directory tree fail.
    */
   public DirCacheImpl(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod) throws FileNotFoundException, IOException {
+    this(root, stabilizationgLag, ignore, pollPeriod, null);
+  }
+
+  /**
+   * Constructor.
+   * Create a dir cache of a given path, monitoring for any changes that occur, using a ForkJoinPool to walk the full tree.
+   * 
+   * When walkPool is not null full walks (at startup, on polling and after a WatchService overflow) list sibling directories concurrently,
+   * which can significantly reduce the time taken to walk very large trees or trees on high latency filesystems.
+   * The resulting tree is identical to that produced by the single threaded walk.
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @param walkPool ForkJoinPool to use for walking the full tree, or null to walk the tree on the calling thread.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  public DirCacheImpl(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod, ForkJoinPool walkPool) throws FileNotFoundException, IOException {
+    this(root, stabilizationgLag, ignore, pollPeriod, walkPool, walkPool == null ? 0 : walkPool.getParallelism());
+  }
+
+  /**
+   * Constructor.
+   * Create a dir cache of a given path, monitoring for any changes that occur, using a ForkJoinPool to walk the full tree
+   * with up to maxConcurrentIo directories being read at the same time.
+   * 
+   * Reading a directory is treated as a blocking operation by the walkPool, so on high latency filesystems (where the walk is dominated
+   * by waiting for each readdir and stat rather than by CPU) maxConcurrentIo may be considerably higher than the parallelism of the walkPool
+   * and the walkPool will add threads to keep that many reads in flight.
+   * Tasks waiting for one of the maxConcurrentIo permits are not treated as blocked, so the reads add at most maxConcurrentIo threads to the walkPool
+   * (the walkPool may still add threads of its own whilst tasks wait to join their subdirectories).
+   * 
+   * @param root The root of the directory cache, which should be a directory.
+   * @param stabilizationgLag Time to wait after a file has changed before notifying the caller.
+   * Note that the file structure is picked up by the DirCache immediately, it is only the callbacks that are delayed.
+   * @param ignore Regular expression of files to ignore.
+   * @param pollPeriod Rescan the entire filesystem on every poll period, to be used on filesystems that don't support notifications.
+   * @param walkPool ForkJoinPool to use for walking the full tree, or null to walk the tree on the calling thread.
+   * @param maxConcurrentIo The maximum number of directories to read at the same time, ignored if walkPool is null.
+   * @throws FileNotFoundException if the root Path cannot be found, or if it is not a directory.
+   * @throws IOException if attempts to walk the directory tree fail.
+   */
+  public DirCacheImpl(Path root, Duration stabilizationgLag, Pattern ignore, Duration pollPeriod, ForkJoinPool walkPool, int maxConcurrentIo) throws FileNotFoundException, IOException {
     this.rootPath = root;
+    this.absoluteRootPath = root.toAbsolutePath().normalize();
+    this.walkPool = walkPool;
+    if (walkPool == null) {
+      this.ioPermits = null;
+    } else if (maxConcurrentIo <= 0) {
+      throw new IllegalArgumentException("maxConcurrentIo must be positive");
+    } else {
+      this.ioPermits = new Semaphore(maxConcurrentIo);
+    }
     if (stabilizationgLag == null) {
       this.stabilizationgLagMillis = -1;
     } else {
       this.stabilizationgLagMillis = stabilizationgLag.toMillis();
     }
+    this.maxNotificationDelayMillis = Math.max(0, this.stabilizationgLagMillis) * DEFAULT_MAX_NOTIFICATION_DELAY_FACTOR;
     if (pollPeriod == null) {
       this.pollPeriodMillis = -1;
     } else {
@@ -113,36 +281,451 @@ public class DirCacheImpl implements DirCache {
 
   @Override
   public DirCacheTree.Directory getRoot() {
-    return rootNode;
+    return state.get().getRoot();
+  }
+
+  @Override
+  public DirCacheSnapshot getSnapshot() {
+    return state.get();
+  }
+
+  @Override
+  public boolean hasChangedSince(long generation) {
+    return state.get().getGeneration() != generation;
+  }
+
+  @Override
+  public DirCacheTree.Node lookup(String relativePath) {
+    return getIndex().get(PathIndex.key(relativePath));
+  }
+
+  @Override
+  public DirCacheTree.Node lookup(Path path) {
+    String key = relativeKey(path);
+    return key == null ? null : getIndex().get(key);
+  }
+  
+  @Override
+  public Stream<DirCacheTree.Node> find(String glob) {
+    return TreeQuery.glob(getRoot(), glob);
+  }
+
+  @Override
+  public Stream<DirCacheTree.Node> find(Predicate<? super DirCacheTree.Node> predicate) {
+    return TreeQuery.find(getRoot(), dir -> true, predicate);
+  }
+
+  @Override
+  public Stream<DirCacheTree.Node> find(Predicate<? super DirCacheTree.Directory> descend, Predicate<? super DirCacheTree.Node> predicate) {
+    return TreeQuery.find(getRoot(), descend, predicate);
+  }
+  
+  /**
+   * Convert a Path into a key for the {@link PathIndex}.
+   * 
+   * @param path A Path relative to the root of the tree, or an absolute Path.
+   * @return The path relative to the root of the tree, with '/' separators, or null if the path is absolute and not within the root of the tree.
+   * @throws IllegalArgumentException if the path contains a ".." segment.
+   */
+  private String relativeKey(Path path) {
+    Path relative = path;
+    if (path.isAbsolute()) {
+      if (!path.startsWith(absoluteRootPath)) {
+        return null;
+      }
+      relative = absoluteRootPath.relativize(path);
+    }
+    StringBuilder key = new StringBuilder();
+    for (Path segment : relative) {
+      String name = segment.toString();
+      if ("..".equals(name)) {
+        throw new IllegalArgumentException("Path may not contain \"..\"");
+      } else if (!name.isEmpty() && !".".equals(name)) {
+        if (key.length() > 0) {
+          key.append('/');
+        }
+        key.append(name);
+      }
+    }
+    return key.toString();
+  }
+  
+  /**
+   * Get the index of the current tree, creating it if this is the first lookup.
+   * 
+   * The index is only built when it is first needed, so that a DirCache that is never used for lookups does not pay for it.
+   * After that it is kept up to date by {@link #publish(uk.co.spudsoft.dircache.DirCacheTree.Directory, java.time.LocalDateTime)}.
+   * 
+   * @return the index of the current tree.
+   */
+  private PathIndex getIndex() {
+    PathIndex result = index;
+    if (result == null) {
+      synchronized (readLock) {
+        result = index;
+        if (result == null) {
+          result = PathIndex.build(state.get().getRoot());
+          index = result;
+        }
+      }
+    }
+    return result;
   }
 
   private class PollTask extends TimerTask {
 
     @Override
     public void run() {
-      walkWithCallback("poll");
+      if (stopped.get()) {
+        return;
+      }
+      try {
+        if (incrementalPolling) {
+          if (pollIncrementally()) {
+            notifyListeners();
+          }
+        } else {
+          walkWithCallback("poll");
+        }
+      } catch (Throwable ex) {
+        logger.warn("Failed to poll dir cache of {}: ", rootPath, ex);
+      } finally {
+        // The next poll is only scheduled when this one has finished, so polls can never overlap
+        Duration duration = lastWalkDuration;
+        schedulePoll(pollDelay(pollPeriodMillis, maxPollPeriodMillis, duration == null ? 0 : duration.toMillis(), ThreadLocalRandom.current().nextDouble(-1, 1)));
+      }
+    }
+    
+  }
+  
+  private class RollingScanTask extends TimerTask {
+
+    @Override
+    public void run() {
+      // An exception must not stop the Timer (or the engine from running the task again)
+      try {
+        rollingScan();
+      } catch (Throwable ex) {
+        logger.warn("Failed to scan files of dir cache of {}: ", rootPath, ex);
+      }
+    }
+    
+  }
+  
+  private class ColdCheckTask extends TimerTask {
+
+    @Override
+    public void run() {
+      // An exception must not stop the Timer (or the engine from running the task again)
+      try {
+        checkColdDirectories();
+      } catch (Throwable ex) {
+        logger.warn("Failed to check cold directories of dir cache of {}: ", rootPath, ex);
+      }
     }
     
   }
   
   @Override
   public DirCacheImpl start() throws IOException {
+    DirCacheTree.Directory snapshot = begin();
+    if (snapshot == null) {
+      walkWithCallback("initialization");
+    } else {
+      startReconcile(snapshot);
+    }
+    startWatching();
+    startPolling();
+    return this;
+  }
+
+  /**
+   * Start the DirCache monitoring without waiting for the initial walk of the tree.
+   * 
+   * The initial walk is performed on a background thread and the returned future is completed when it has finished.
+   * If a snapshot file has been set and can be loaded the future is completed immediately (the snapshot is reconciled in the background).
+   * 
+   * If priority paths have been set (see {@link #setPriorityPaths(java.util.List)}) they are walked first, in order,
+   * and a partial tree is published as each one completes, so {@link #getRoot()} and {@link #lookup(java.lang.String)} can be used
+   * for those subtrees before the full walk has finished.
+   * Each partial tree is also notified to the callback and listeners.
+   * Until the future completes {@link #getRoot()} may return null.
+   * 
+   * @return A future that is completed with this DirCache when the initial walk has finished.
+   * The future is completed exceptionally with a FileNotFoundException if the root Path cannot be found or is not a directory,
+   * and exceptionally if the watch service cannot be started, or if the DirCache is stopped before the walk finishes.
+   */
+  public CompletableFuture<DirCache> startAsync() {
+    CompletableFuture<DirCache> result = new CompletableFuture<>();
+    if (!Files.isDirectory(rootPath)) {
+      result.completeExceptionally(new FileNotFoundException("Root of DirCache is not a directory: " + rootPath));
+      return result;
+    }
+    DirCacheTree.Directory snapshot;
+    try {
+      snapshot = begin();
+    } catch (Throwable ex) {
+      result.completeExceptionally(ex);
+      return result;
+    }
+    if (snapshot != null) {
+      startReconcile(snapshot);
+      startWatching();
+      startPolling();
+      result.complete(this);
+    } else {
+      // Watch from the start so that changes to priority paths are picked up whilst the rest of the tree is walked
+      startWatching();
+      startInBackground(() -> initialize(result), "DirCache#initialization");
+    }
+    return result;
+  }
+  
+  private DirCacheTree.Directory begin() throws IOException {
     logger.info("Starting DirCache of {}", rootPath);
     stopped.set(false);
-    watcher = FileSystems.getDefault().newWatchService();
-    walkWithCallback("initialization");
-    if (stabilizationgLagMillis >= 0) {
+    if (engine == null) {
+      watcher = FileSystems.getDefault().newWatchService();
+    }
+    DirCacheTree.Directory snapshot = loadSnapshot();
+    if (snapshot != null) {
+      lastNotifiedRoot.set(state.get().getRoot());
+    }
+    return snapshot;
+  }
+  
+  private void startReconcile(DirCacheTree.Directory snapshot) {
+    startInBackground(() -> reconcileWithCallback(snapshot), "DirCache#reconcile");
+  }
+  
+  private void startInBackground(Runnable task, String name) {
+    if (engine == null) {
+      startupThread = new Thread(task, name + ": " + rootPath.toString());
+      startupThread.start();
+    } else {
+      startupTask = lane.submit(task);
+    }
+  }
+  
+  private void startWatching() {
+    // With an engine the watch events are delivered by the engine
+    if (stabilizationgLagMillis >= 0 && engine == null) {
       thread = new Thread(this::thread, "DirCache#watch: " + rootPath.toString());
       thread.start();
     }
+  }
+  
+  private void startPolling() {
     if (pollPeriodMillis > 0) {
-      pollingTimer = new Timer();
+      synchronized (pollLock) {
+        if (engine == null) {
+          pollingTimer = new Timer();
+          if (rollingScanBatch > 0) {
+            pollingTimer.schedule(new RollingScanTask(), ROLLING_SCAN_PERIOD_MILLIS, ROLLING_SCAN_PERIOD_MILLIS);
+          }
+        } else if (rollingScanBatch > 0) {
+          rollingScanFuture = lane.scheduleWithFixedDelay(new RollingScanTask(), ROLLING_SCAN_PERIOD_MILLIS, ROLLING_SCAN_PERIOD_MILLIS);
+        }
+      }
+      // Start at a random point in the period so that caches started together do not poll together
+      schedulePoll(INITIAL_POLL_DELAY_MILLIS + ThreadLocalRandom.current().nextLong(pollPeriodMillis));
+    }
+  }
+  
+  private void schedulePoll(long delayMillis) {
+    synchronized (pollLock) {
+      if (stopped.get()) {
+        return;
+      }
       pollingTask = new PollTask();
-      pollingTimer.scheduleAtFixedRate(pollingTask, 500, pollPeriodMillis);
+      if (engine == null) {
+        if (pollingTimer != null) {
+          pollingTimer.schedule(pollingTask, delayMillis);
+        }
+      } else {
+        pollingFuture = lane.schedule(pollingTask, delayMillis);
+      }
+    }
+  }
+  
+  /**
+   * Calculate the delay before the next poll.
+   * 
+   * @param periodMillis The configured poll period.
+   * @param maxPeriodMillis The maximum poll period for adaptive polling, or zero if polling is not adaptive.
+   * @param lastDurationMillis The duration of the last walk.
+   * @param random A random number between -1 and 1, used to add jitter.
+   * @return The delay before the next poll.
+   */
+  static long pollDelay(long periodMillis, long maxPeriodMillis, long lastDurationMillis, double random) {
+    long period = periodMillis;
+    if (maxPeriodMillis > periodMillis) {
+      long adaptive = lastDurationMillis > Long.MAX_VALUE / ADAPTIVE_POLL_FACTOR ? Long.MAX_VALUE : lastDurationMillis * ADAPTIVE_POLL_FACTOR;
+      period = Math.min(maxPeriodMillis, Math.max(periodMillis, adaptive));
+    }
+    return Math.max(1, period + (long) (period * POLL_JITTER * random));
+  }
+  
+  private void initialize(CompletableFuture<DirCache> result) {
+    try {
+      Set<Path> complete = new HashSet<>();
+      for (Path dir : priorityPaths) {
+        if (stopped.get()) {
+          break;
+        }
+        if (walkPriorityPath(dir, complete)) {
+          notifyListeners();
+        }
+      }
+      if (!stopped.get() && walk("initialization", complete)) {
+        notifyListeners();
+      }
+      if (stopped.get()) {
+        result.completeExceptionally(new CancellationException("DirCache of " + rootPath + " stopped before the initial walk completed"));
+      } else {
+        startPolling();
+        result.complete(this);
+      }
+    } catch (Throwable ex) {
+      logger.warn("Failed to initialize dir cache of {}: ", rootPath, ex);
+      result.completeExceptionally(ex);
+    }
+  }
+  
+  /**
+   * Set the paths to be walked first by {@link #startAsync()}.
+   * 
+   * Each path is relative to the root, using '/' as the separator.
+   * Paths are walked in the order given, paths that do not exist (or are within a path that has already been walked) are skipped.
+   * 
+   * @param priorityPaths The paths to be walked first, may be null.
+   * @return this, so that the call may be fluent.
+   * @throws IllegalArgumentException if any of the paths contain a ".." segment.
+   */
+  public DirCacheImpl setPriorityPaths(List<String> priorityPaths) {
+    List<Path> paths = new ArrayList<>();
+    if (priorityPaths != null) {
+      for (String priorityPath : priorityPaths) {
+        String key = PathIndex.key(priorityPath);
+        if (!key.isEmpty()) {
+          paths.add(rootPath.resolve(key));
+        }
+      }
     }
+    this.priorityPaths = List.copyOf(paths);
     return this;
   }
-
+  
+  /**
+   * Set the engine that provides the WatchService and threads for this DirCache.
+   * 
+   * Without an engine the DirCache has its own WatchService, watch thread and polling Timer.
+   * This must be called before {@link #start()}.
+   * 
+   * @param engine The engine to use, or null for the DirCache to have its own resources.
+   * @return this, so that the call may be fluent.
+   */
+  public DirCacheImpl setEngine(DirCacheEngine engine) {
+    this.engine = engine;
+    this.lane = engine == null ? null : engine.newLane();
+    return this;
+  }
+  
+  /**
+   * Allow the poll period to grow when walks are slow.
+   * 
+   * Polls never overlap: the next poll is scheduled when the previous one finishes.
+   * With adaptive polling the period is also at least four times the duration of the last walk (so walking takes no more than
+   * a quarter of the time), up to maxPeriod.
+   * The configured poll period remains the minimum.
+   * 
+   * This must be called before {@link #start()}.
+   * 
+   * @param maxPeriod The maximum poll period, null to disable adaptive polling.
+   * @return this, so that the call may be fluent.
+   */
+  public DirCacheImpl setAdaptivePolling(Duration maxPeriod) {
+    this.maxPollPeriodMillis = maxPeriod == null ? 0 : maxPeriod.toMillis();
+    return this;
+  }
+  
+  /**
+   * Make each poll check directory modified timestamps instead of walking the full tree.
+   * 
+   * On each poll period every directory in the tree is stat'd, and only those whose modified timestamp has changed are relisted.
+   * The modified timestamp of a directory does not change when the content of a file in it changes, so in addition a rolling scan
+   * stats the files in the tree continuously (in small batches every 100ms), at no more than filesPerSecond, 
+   * starting again from the beginning when it reaches the end of the tree.
+   * A change to the content of a file will thus be picked up within (number of files / filesPerSecond) seconds.
+   * 
+   * This has no effect unless a poll period is set.
+   * This must be called before {@link #start()}.
+   * 
+   * @param filesPerSecond The maximum number of files to stat per second in the rolling scan, zero to only check directories.
+   * @return this, so that the call may be fluent.
+   * @throws IllegalArgumentException if filesPerSecond is negative.
+   */
+  public DirCacheImpl setIncrementalPolling(int filesPerSecond) {
+    if (filesPerSecond < 0) {
+      throw new IllegalArgumentException("Files per second may not be negative");
+    }
+    this.incrementalPolling = true;
+    this.rollingScanBatch = (filesPerSecond * ROLLING_SCAN_PERIOD_MILLIS + 999) / 1000;
+    return this;
+  }
+  
+  /**
+   * Limit the number of directories that are watched by the WatchService.
+   * 
+   * Each watched directory uses a kernel resource (on Linux an inotify watch, limited by fs.inotify.max_user_watches).
+   * Directories beyond the budget (or that cannot be watched because the kernel limit has been reached) are "cold", and are instead checked
+   * every checkPeriod by comparing their modified timestamp with the tree.
+   * Directories move between being watched and being cold according to how often they are seen to change.
+   * 
+   * Note that the modified timestamp of a directory only changes when entries are added, removed or renamed, so changes to the content
+   * of existing files in cold directories are not seen until the directory is watched, or the next full walk.
+   * 
+   * This must be called before {@link #start()}.
+   * 
+   * At most 1000 cold directories are checked each period, see {@link #setWatchBudget(int, java.time.Duration, int)}.
+   * 
+   * @param maxWatches The maximum number of directories to watch.
+   * @param checkPeriod The period between checks of cold directories, null for the default of one second.
+   * @return this, so that the call may be fluent.
+   * @throws IllegalArgumentException if maxWatches is negative or checkPeriod is not positive.
+   */
+  public DirCacheImpl setWatchBudget(int maxWatches, Duration checkPeriod) {
+    return setWatchBudget(maxWatches, checkPeriod, DEFAULT_COLD_CHECKS_PER_PERIOD);
+  }
+  
+  /**
+   * Limit the number of directories that are watched by the WatchService, and the number of cold directories checked each period.
+   * 
+   * As for {@link #setWatchBudget(int, java.time.Duration)}, but each period only the next maxChecksPerPeriod cold directories (in path order,
+   * continuing from where the previous check stopped) are checked, so the cost of a check does not grow with the number of cold directories.
+   * A change to a cold directory may therefore take up to (cold directories / maxChecksPerPeriod) periods to be seen.
+   * 
+   * This must be called before {@link #start()}.
+   * 
+   * @param maxWatches The maximum number of directories to watch.
+   * @param checkPeriod The period between checks of cold directories, null for the default of one second.
+   * @param maxChecksPerPeriod The maximum number of cold directories to check each period.
+   * @return this, so that the call may be fluent.
+   * @throws IllegalArgumentException if maxWatches is negative, checkPeriod is not positive or maxChecksPerPeriod is not positive.
+   */
+  public DirCacheImpl setWatchBudget(int maxWatches, Duration checkPeriod, int maxChecksPerPeriod) {
+    if (checkPeriod != null && (checkPeriod.isNegative() || checkPeriod.isZero())) {
+      throw new IllegalArgumentException("Check period must be positive");
+    }
+    if (maxChecksPerPeriod <= 0) {
+      throw new IllegalArgumentException("Checks per period must be positive");
+    }
+    this.watchBudget = new WatchBudget(maxWatches);
+    this.coldCheckPeriodMillis = checkPeriod == null ? DEFAULT_COLD_CHECK_PERIOD_MILLIS : checkPeriod.toMillis();
+    this.coldChecksPerPeriod = maxChecksPerPeriod;
+    return this;
+  }
+  
   @Override
   public DirCacheImpl stop() {
     stopped.set(true);
@@ -157,47 +740,398 @@ public class DirCacheImpl implements DirCache {
       if (thread != null) {
         thread.join();
       }
+      if (startupThread != null) {
+        startupThread.join();
+      }
+      if (startupTask != null) {
+        startupTask.get();
+      }
     } catch (InterruptedException ex) {
       logger.info("Interrupted whilst waiting for thread to stop");
+    } catch (ExecutionException ex) {
+      logger.info("Startup of dir cache failed: ", ex.getCause());
     }
     watcher = null;
     thread = null;
+    startupThread = null;
+    startupTask = null;
+    if (engine != null) {
+      for (WatchKey key : watches.values()) {
+        engine.unregister(this, key);
+      }
+    }
     watches.clear();
-    if (pollingTimer != null) {
-      pollingTimer.cancel();
+    synchronized (pollLock) {
+      if (pollingTimer != null) {
+        pollingTimer.cancel();
+      }
+      pollingTimer = null;
+      if (pollingFuture != null) {
+        pollingFuture.cancel(false);
+      }
+      pollingFuture = null;
+      if (rollingScanFuture != null) {
+        rollingScanFuture.cancel(false);
+      }
+      rollingScanFuture = null;
     }
-    pollingTimer = null;
+    rollingScanCursor = null;
+    synchronized (queuedChanges) {
+      if (quietTimer != null) {
+        quietTimer.cancel(false);
+      }
+      quietTimer = null;
+      queuedChanges.clear();
+      batching = false;
+    }
+    synchronized (coldCheckLock) {
+      if (coldCheckTimer != null) {
+        coldCheckTimer.cancel();
+      }
+      coldCheckTimer = null;
+      if (coldCheckFuture != null) {
+        coldCheckFuture.cancel(false);
+      }
+      coldCheckFuture = null;
+    }
+    watchBudget.clear();
     return this;
   }
 
   @Override
   public void close() {
     stop();
+    saveSnapshot();
+    changePublisher.complete();
   }
 
-  @Override
-  public DirCacheImpl setCallback(Runnable callback) {
-    this.callback = callback;
+  /**
+   * Set the file to be used to persist the tree between runs.
+   * 
+   * If the snapshot file exists when the DirCache is started the tree is loaded from it and is available immediately,
+   * the tree is then checked against the disc in the background and the callback is called if anything has changed.
+   * Directories whose modified timestamp has not changed are not relisted, though the files in them are still checked.
+   * The snapshot file is written when the DirCache is closed.
+   * 
+   * This must be called before {@link #start()} to have any effect on startup.
+   * 
+   * @param snapshotFile The file to be used to persist the tree, or null to disable persistence.
+   * @return this, so that the call may be fluent.
+   */
+  public DirCacheImpl setSnapshotFile(Path snapshotFile) {
+    this.snapshotFile = snapshotFile;
     return this;
   }
-
-  @Override
-  public LocalDateTime getLastWalkTime() {
-    return lastWalkTime;
-  }
+  
+  /**
+   * Set the secondary indexes to maintain for queries on the {@link DirCacheSnapshot}.
+   * 
+   * The indexes are built on the first walk and then updated incrementally with each change, 
+   * each snapshot has its own (immutable) indexes that share most of their structure with those of the previous snapshot.
+   * 
+   * This must be called before {@link #start()}.
+   * 
+   * @param indexes The indexes to maintain.
+   * @return this, so that the call may be fluent.
+   */
+  public DirCacheImpl setIndexes(DirCacheIndex... indexes) {
+    Set<DirCacheIndex> enabled = EnumSet.noneOf(DirCacheIndex.class);
+    enabled.addAll(Arrays.asList(indexes));
+    synchronized (readLock) {
+      this.fileIndexes = SecondaryIndexes.empty(enabled);
+    }
+    return this;
+  }
+  
+  /**
+   * Set the maximum time between the first change in a batch and the callback.
+   * 
+   * Each change restarts the stabilization lag, so without a limit a directory that is written to continuously would delay the callback forever.
+   * Once the maximum delay has passed the pending changes are applied and the callback is called even if changes are still being seen,
+   * subsequent changes start a new batch.
+   * 
+   * The default is ten times the stabilization lag.
+   * 
+   * This must be called before {@link #start()}.
+   * 
+   * @param maxDelay The maximum time between the first change in a batch and the callback, null for no limit.
+   * @return this, so that the call may be fluent.
+   * @throws IllegalArgumentException if maxDelay is negative.
+   */
+  public DirCacheImpl setMaxNotificationDelay(Duration maxDelay) {
+    if (maxDelay != null && maxDelay.isNegative()) {
+      throw new IllegalArgumentException("Maximum notification delay may not be negative");
+    }
+    this.maxNotificationDelayMillis = maxDelay == null ? Long.MAX_VALUE : maxDelay.toMillis();
+    return this;
+  }
+  
+  private DirCacheTree.Directory loadSnapshot() {
+    if (snapshotFile == null || !Files.isRegularFile(snapshotFile)) {
+      return null;
+    }
+    try {
+      DirCacheTree.Directory snapshot = SnapshotFile.read(snapshotFile, rootPath, ignore.pattern());
+      if (snapshot == null) {
+        logger.info("Snapshot {} is not for {} and will not be used", snapshotFile, rootPath);
+        return null;
+      }
+      LocalDateTime savedTime = LocalDateTime.ofInstant(Files.getLastModifiedTime(snapshotFile).toInstant(), ZoneId.systemDefault());
+      publish(snapshot, savedTime);
+      logger.debug("Loaded snapshot of {} from {}", rootPath, snapshotFile);
+      return snapshot;
+    } catch (Throwable ex) {
+      logger.warn("Failed to load snapshot of {} from {}: ", rootPath, snapshotFile, ex);
+      return null;
+    }
+  }
+  
+  private void saveSnapshot() {
+    DirCacheTree.Directory root = state.get().getRoot();
+    if (snapshotFile == null || root == null) {
+      return;
+    }
+    try {
+      SnapshotFile.write(snapshotFile, root, ignore.pattern());
+      logger.debug("Saved snapshot of {} to {}", rootPath, snapshotFile);
+    } catch (Throwable ex) {
+      logger.warn("Failed to save snapshot of {} to {}: ", rootPath, snapshotFile, ex);
+    }
+  }
+  
+  private void reconcileWithCallback(DirCacheTree.Directory snapshot) {
+    if (reconcile(snapshot)) {
+      notifyListeners();
+    }
+  }
+  
+  /**
+   * Bring a tree loaded from a snapshot up to date with the disc, registering watches as it goes.
+   * 
+   * @param snapshot The tree loaded from the snapshot.
+   * @return true if the tree changed.
+   */
+  private boolean reconcile(DirCacheTree.Directory snapshot) {
+    LocalDateTime walkTime = LocalDateTime.now();
+    logger.trace("Reconciling snapshot of {}", rootPath);
+    synchronized (scanLock) {
+      Set<Path> dirsFound = new HashSet<>();
+      DirCacheTree.Directory newRoot;
+      try {
+        newRoot = reconcileDirectory(snapshot, dirsFound);
+      } catch (Throwable ex) {
+        if (stopped.get()) {
+          return false;
+        }
+        logger.info("Failed to reconcile snapshot of {}, falling back to full walk: ", rootPath, ex);
+        return walk("initialization");
+      }
+      if (stopped.get()) {
+        return false;
+      }
+      boolean changed = publish(newRoot, walkTime);
+      retainWatches(dirsFound);
+      return changed;
+    }
+  }
+  
+  private DirCacheTree.Directory reconcileDirectory(DirCacheTree.Directory previous, Set<Path> dirsFound) throws IOException {
+    Path dir = previous.getPath();
+    BasicFileAttributes dirAttrs;
+    try {
+      dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class);
+    } catch (IOException ex) {
+      logger.trace("{} no longer exists: ", dir, ex);
+      return null;
+    }
+    if (!dirAttrs.isDirectory() || stopped.get()) {
+      return null;
+    }
+    if (getLastModified(dirAttrs) != previous.getModifiedEpochNanos()) {
+      // Entries have been added or removed, so the directory has to be relisted
+      Visitor visitor = new Visitor(previous);
+      Files.walkFileTree(dir, EnumSet.of(FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+      dirsFound.addAll(visitor.getDirsFound());
+      return visitor.getRoot();
+    }
+    dirsFound.add(dir);
+    registerWatch(dir);
+    PathAndNodeList panl = new PathAndNodeList(dir, getLastModified(dirAttrs), previous);
+    for (DirCacheTree.Node child : previous.getChildren()) {
+      if (child instanceof DirCacheTree.Directory childDir) {
+        DirCacheTree.Directory reconciled = reconcileDirectory(childDir, dirsFound);
+        if (reconciled != null) {
+          panl.nodeList.add(reconciled);
+        }
+      } else {
+        Path childPath = panl.path.resolve(child.getName());
+        BasicFileAttributes attrs;
+        try {
+          attrs = readAttributes(childPath);
+        } catch (IOException ex) {
+          logger.trace("{} no longer exists: ", childPath, ex);
+          continue;
+        }
+        if (attrs.isDirectory()) {
+          Visitor visitor = new Visitor(null);
+          Files.walkFileTree(childPath, EnumSet.of(FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+          dirsFound.addAll(visitor.getDirsFound());
+          if (visitor.getRoot() != null) {
+            panl.nodeList.add(visitor.getRoot());
+          }
+        } else {
+          panl.nodeList.add(fileNode(panl.path, child.getName(), attrs, child));
+        }
+      }
+    }
+    return panl.toDirectory();
+  }
+
+  @Override
+  public DirCacheImpl setCallback(Runnable callback) {
+    this.callback = callback == null ? null : ListenerDispatcher.forCallback(callback, DEFAULT_LISTENER_EXECUTOR, this::recordListenerDuration);
+    return this;
+  }
+
+  @Override
+  public DirCacheImpl addListener(DirCacheListener listener) {
+    return addListener(listener, DEFAULT_LISTENER_EXECUTOR);
+  }
+
+  @Override
+  public DirCacheImpl addListener(DirCacheListener listener, Executor executor) {
+    listeners.add(ListenerDispatcher.forListener(listener, executor, this::recordListenerDuration));
+    return this;
+  }
+
+  @Override
+  public DirCacheImpl removeListener(DirCacheListener listener) {
+    for (ListenerDispatcher dispatcher : listeners) {
+      if (dispatcher.getListener() == listener) {
+        listeners.remove(dispatcher);
+        break;
+      }
+    }
+    return this;
+  }
+
+  @Override
+  public DirCacheImpl subscribe(Path prefix, DirCacheListener listener) {
+    String key = relativeKey(prefix);
+    if (key == null) {
+      throw new IllegalArgumentException("Path " + prefix + " is not within " + rootPath);
+    }
+    subscriptions.add(key, ListenerDispatcher.forListener(listener, DEFAULT_LISTENER_EXECUTOR, this::recordListenerDuration));
+    return this;
+  }
+
+  @Override
+  public DirCacheImpl subscribe(String glob, DirCacheListener listener) {
+    PathMatcher matcher = rootPath.getFileSystem().getPathMatcher("glob:" + glob);
+    Predicate<DirCacheTree.Node> filter = node -> matcher.matches(rootPath.relativize(node.getPath()));
+    subscriptions.add(globPrefix(glob), ListenerDispatcher.forListener(listener, DEFAULT_LISTENER_EXECUTOR, filter, this::recordListenerDuration));
+    return this;
+  }
+  
+  /**
+   * Get the longest path that contains everything that a glob can match, so that the subscription can be indexed by it.
+   * 
+   * @param glob A glob relative to the root of the tree.
+   * @return The leading segments of the glob that do not contain any special characters, as a key for the {@link PathIndex}.
+   */
+  static String globPrefix(String glob) {
+    StringBuilder prefix = new StringBuilder();
+    String[] segments = glob.split("/");
+    // The last segment names the Nodes themselves, so it is never part of the prefix
+    for (int i = 0; i < segments.length - 1; ++i) {
+      String segment = segments[i];
+      if (segment.chars().anyMatch(c -> "*?[]{}\\".indexOf(c) >= 0)) {
+        break;
+      }
+      if (prefix.length() > 0) {
+        prefix.append('/');
+      }
+      prefix.append(segment);
+    }
+    return PathIndex.key(prefix.toString());
+  }
+
+  @Override
+  public DirCacheImpl unsubscribe(DirCacheListener listener) {
+    subscriptions.remove(listener);
+    return this;
+  }
+
+  @Override
+  public Flow.Publisher<DirCacheChangeEvent> getChangePublisher() {
+    return changePublisher;
+  }
+
+  @Override
+  public Duration getMaxListenerDuration() {
+    return Duration.ofNanos(maxListenerNanos.get());
+  }
+  
+  private void recordListenerDuration(long nanos) {
+    maxListenerNanos.accumulateAndGet(nanos, Math::max);
+  }
+
+  @Override
+  public LocalDateTime getLastWalkTime() {
+    return state.get().getWalkTime();
+  }
+
+  @Override
+  public Duration getLastWalkDuration() {
+    return lastWalkDuration;
+  }
+
+  @Override
+  public long getIgnoredEventCount() {
+    return ignoredEvents.get();
+  }
   
   private void thread() {
     boolean active = false;
+    long deadline = 0;
+    long batchEnd = 0;
+    PendingChanges pending = new PendingChanges();
 
     while (!stopped.get()) {
-      // wait for key to be signaled
-      WatchKey key;
+      boolean wasRelevant = false;
+      boolean wasDelete = false;
+      boolean wasOnlyDeletes = true;
       try {
+        // wait for key to be signaled
+        WatchKey key;
         if (active) {
-          key = watcher.poll(stabilizationgLagMillis, TimeUnit.MILLISECONDS);
+          // Wait until the stabilization lag has passed since the last relevant event, or the batch has reached the maximum delay
+          long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+          key = remaining > 0 ? watcher.poll(remaining, TimeUnit.MILLISECONDS) : null;
         } else {
           key = watcher.take();
-          active = true;
+        }
+        // Drain every key that is already signaled into the same batch
+        while (key != null) {
+          Path dir = (Path) key.watchable();
+          List<WatchEvent<?>> events = relevantEvents(key.pollEvents());
+          if (!key.reset()) {
+            watches.remove(dir);
+          }
+          if (!events.isEmpty()) {
+            wasRelevant = true;
+            recordChange(dir);
+            for (WatchEvent<?> event : events) {
+              pending.add(dir, event);
+              // Pick up deletes immediately, everything else can wait
+              if (event.kind() == ENTRY_DELETE) {
+                wasDelete = true;
+              } else {
+                wasOnlyDeletes = false;
+              }
+            }
+          }
+          key = watcher.poll();
         }
       } catch (ClosedWatchServiceException x) {
         stopped.set(true);
@@ -206,80 +1140,288 @@ public class DirCacheImpl implements DirCache {
         continue ;
       }
 
-      boolean wasDeleteOrTimeout = false;
-      boolean wasOnlyDeletes = true;
-      if (key == null) {
-        wasDeleteOrTimeout = true;
-      } else {
-        for (WatchEvent<?> event : key.pollEvents()) {
-          // Pick up deletes immediately, everything else can wait
-          if (event.kind() == ENTRY_DELETE) {
-            wasDeleteOrTimeout = true;
-          } else {
-            wasOnlyDeletes = false;
-          }
+      long now = System.nanoTime();
+      if (wasRelevant && !(wasDelete && wasOnlyDeletes)) {
+        // Anything other than deletes restarts the stabilization lag, but not beyond the end of the batch
+        if (!active) {
+          active = true;
+          batchEnd = maxNotificationDelayMillis == Long.MAX_VALUE ? Long.MAX_VALUE : now + TimeUnit.MILLISECONDS.toNanos(maxNotificationDelayMillis);
         }
-        if (!key.reset()) {
-          watches.remove((Path) key.watchable());
+        deadline = now + TimeUnit.MILLISECONDS.toNanos(stabilizationgLagMillis);
+        if (batchEnd != Long.MAX_VALUE && deadline - batchEnd > 0) {
+          deadline = batchEnd;
         }
       }
       
-      if (wasDeleteOrTimeout) {
-        walk("change notification");
-        if (wasOnlyDeletes) {
+      try {
+        if (wasRelevant && wasDelete && wasOnlyDeletes) {
+          // Applying the deletes applies everything else pending too, so this ends the batch
+          applyChanges(pending);
           active = false;
-          if (callback != null) {
-            callback.run();
-          }
+          notifyListeners();
+        } else if (active && now - deadline >= 0) {
+          applyChanges(pending);
+          active = false;
+          notifyListeners();
+        } else if (wasDelete) {
+          applyChanges(pending);
         }
+      } catch (Throwable ex) {
+        // Carry on watching, the changes that failed will be picked up by the next walk
+        logger.warn("Failed to apply changes to dir cache of {}: ", rootPath, ex);
+        pending.clear();
+        active = false;
       }
     }
   }
 
+  /**
+   * Discard (and count) events for entries whose names match the ignore pattern.
+   * 
+   * @param events The events reported for a watched directory.
+   * @return The events that may affect the tree.
+   */
+  private List<WatchEvent<?>> relevantEvents(List<WatchEvent<?>> events) {
+    List<WatchEvent<?>> result = new ArrayList<>(events.size());
+    for (WatchEvent<?> event : events) {
+      if (event.context() instanceof Path entry && entry.getFileName() != null && ignore.matcher(entry.getFileName().toString()).matches()) {
+        ignoredEvents.incrementAndGet();
+      } else {
+        result.add(event);
+      }
+    }
+    return result;
+  }
+  
+  private void applyChanges(PendingChanges pending) {
+    if (pending.isFullWalk()) {
+      walk("change notification overflow");
+    } else if (!pending.isEmpty()) {
+      rescan(pending, "change notification");
+    }
+    pending.clear();
+  }
+  
+  /**
+   * Receive the events for a watched directory from the engine.
+   * 
+   * This is called on the engine's watch thread, the events are processed on the engine's scheduler.
+   * 
+   * @param dir The directory that the events relate to.
+   * @param events The events.
+   * @param valid False if the WatchKey for the directory is no longer valid.
+   */
+  void watchEvents(Path dir, List<WatchEvent<?>> events, boolean valid) {
+    if (!stopped.get() && stabilizationgLagMillis >= 0) {
+      lane.submit(() -> {
+        try {
+          processWatchEvents(dir, events, valid);
+        } catch (Throwable ex) {
+          logger.warn("Failed to apply changes to dir cache of {}: ", rootPath, ex);
+        }
+      });
+    }
+  }
+  
+  /**
+   * Equivalent of a single iteration of {@link #thread()} for a DirCache using an engine.
+   * 
+   * Deletes are applied immediately, anything else is queued until there have been no events for the stabilization lag,
+   * or the batch has reached the maximum notification delay.
+   */
+  private void processWatchEvents(Path dir, List<WatchEvent<?>> allEvents, boolean valid) {
+    synchronized (queuedChanges) {
+      if (stopped.get()) {
+        return;
+      }
+      if (!valid) {
+        watches.remove(dir);
+      }
+      List<WatchEvent<?>> events = relevantEvents(allEvents);
+      if (events.isEmpty()) {
+        return;
+      }
+      boolean wasDelete = false;
+      boolean wasOnlyDeletes = true;
+      recordChange(dir);
+      for (WatchEvent<?> event : events) {
+        queuedChanges.add(dir, event);
+        if (event.kind() == ENTRY_DELETE) {
+          wasDelete = true;
+        } else {
+          wasOnlyDeletes = false;
+        }
+      }
+      if (wasDelete) {
+        applyChanges(queuedChanges);
+        if (wasOnlyDeletes) {
+          if (quietTimer != null) {
+            quietTimer.cancel(false);
+            quietTimer = null;
+          }
+          batching = false;
+          notifyListeners();
+          return;
+        }
+      }
+      long now = System.nanoTime();
+      if (!batching) {
+        batching = true;
+        batchDeadline = maxNotificationDelayMillis == Long.MAX_VALUE ? Long.MAX_VALUE : now + TimeUnit.MILLISECONDS.toNanos(maxNotificationDelayMillis);
+      }
+      long delay = stabilizationgLagMillis;
+      if (batchDeadline != Long.MAX_VALUE) {
+        delay = Math.min(delay, Math.max(0, TimeUnit.NANOSECONDS.toMillis(batchDeadline - now)));
+      }
+      if (quietTimer != null) {
+        quietTimer.cancel(false);
+      }
+      quietTimer = lane.schedule(this::stabilized, delay);
+    }
+  }
+  
+  private void stabilized() {
+    synchronized (queuedChanges) {
+      if (stopped.get()) {
+        return;
+      }
+      quietTimer = null;
+      batching = false;
+      try {
+        applyChanges(queuedChanges);
+        notifyListeners();
+      } catch (Throwable ex) {
+        logger.warn("Failed to apply changes to dir cache of {}: ", rootPath, ex);
+        queuedChanges.clear();
+      }
+    }
+  }
+  
   private static class PathAndNodeList {
 
     public final Path path;
-    private final LocalDateTime lastModified;
+    private final long lastModified;
+    private final DirCacheTree.Directory previous;
     public final List<DirCacheTree.Node> nodeList;
 
-    PathAndNodeList(Path path, LocalDateTime lastModified) {
-      this.path = path;
+    PathAndNodeList(Path path, long lastModified, DirCacheTree.Directory previous) {
+      // Use the Path from the previous tree so that it is shared by all the files in the directory across snapshots
+      this.path = previous == null ? path : previous.getPath();
       this.lastModified = lastModified;
+      this.previous = previous;
       this.nodeList = new ArrayList<>();
     }
     
+    DirCacheTree.Node previousChild(String name) {
+      return previous == null ? null : previous.get(name);
+    }
+    
     void sort() {
-      nodeList.sort(DirCacheImpl::compareNodes);
+      nodeList.sort(DirCacheTree::compareNodes);
+    }
+    
+    DirCacheTree.Directory toDirectory() {
+      sort();
+      return directoryNode(path, lastModified, nodeList, previous);
     }
   }
   
-  static int compareNodes(DirCacheTree.Node o1, DirCacheTree.Node o2) {
-    if (o1 == o2) {
-      return 0;
+  /**
+   * Create a File Node, reusing the previous Node if nothing has changed.
+   * 
+   * If there is a previous Node its name is used for the new Node, so that names are not duplicated between snapshots.
+   * 
+   * @param parent The path to the directory containing the file.
+   * @param name The name of the file.
+   * @param attrs The attributes of the file.
+   * @param previous The Node with the same name in the previous tree, may be null.
+   * @return Either previous, or a new File Node.
+   */
+  static DirCacheTree.File fileNode(Path parent, String name, BasicFileAttributes attrs, DirCacheTree.Node previous) {
+    long modified = getLastModified(attrs);
+    if (previous instanceof DirCacheTree.File previousFile
+            && previousFile.getSize() == attrs.size()
+            && previousFile.getModifiedEpochNanos() == modified) {
+      return previousFile;
+    }
+    return new DirCacheTree.File(parent, previous == null ? name : previous.getName(), modified, attrs.size());
+  }
+  
+  /**
+   * Create a Directory Node, reusing the previous Node if nothing has changed.
+   * 
+   * The previous Node is only reused if its modified timestamp matches and its children are the same,
+   * so unchanged subtrees are shared between successive trees all the way up to the root.
+   * Children are compared by identity or, failing that, by name and digest, because the children of a Directory that is a view
+   * (such as those in a {@link ColumnarTree}) are new instances each time they are requested.
+   * 
+   * @param path The path to the directory.
+   * @param modified The modified timestamp of the directory, in nanoseconds since the epoch.
+   * @param children The (sorted) children of the directory.
+   * @param previous The Node with the same name in the previous tree, may be null.
+   * @return Either previous, or a new Directory Node.
+   */
+  static DirCacheTree.Directory directoryNode(Path path, long modified, List<DirCacheTree.Node> children, DirCacheTree.Node previous) {
+    if (previous instanceof DirCacheTree.Directory previousDir
+            && previousDir.getModifiedEpochNanos() == modified
+            && sameChildren(previousDir.getChildren(), children)) {
+      return previousDir;
     }
-    if (o1 instanceof DirCacheTree.Directory && o2 instanceof DirCacheTree.File) {
-      return -1;
-    } else if (o2 instanceof DirCacheTree.Directory && o1 instanceof DirCacheTree.File) {
-      return 1;
+    if (previous == null) {
+      return new DirCacheTree.Directory(path, path.getFileName().toString(), modified, children);
+    } else {
+      return new DirCacheTree.Directory(previous.getPath(), previous.getName(), modified, children);
     }
-    if (o1 == null) {
-      if (o2 != null) {
-        return -1;
-      } else {
-        return 0;
+  }
+  
+  private static boolean sameChildren(List<DirCacheTree.Node> a, List<DirCacheTree.Node> b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); ++i) {
+      DirCacheTree.Node first = a.get(i);
+      DirCacheTree.Node second = b.get(i);
+      if (first != second && (first.getDigest() != second.getDigest() || !first.getName().equals(second.getName()))) {
+        return false;
       }
-    } else if (o2 == null) {
-      return 1;
-    } 
-    return o1.getName().compareTo(o2.getName());
+    }
+    return true;
+  }
+  
+  private static long getLastModified(BasicFileAttributes attrs) {
+    return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+  }
+  
+  static int compareNodes(DirCacheTree.Node o1, DirCacheTree.Node o2) {
+    return DirCacheTree.compareNodes(o1, o2);
   }
 
   private class Visitor implements FileVisitor<Path> {
 
     private final List<Path> dirsFound = new ArrayList<>();
     private final Stack<PathAndNodeList> dirStack = new Stack<>();
+    private final DirCacheTree.Directory previousRoot;
+    private final Set<Path> complete;
     private DirCacheTree.Directory root;
 
+    /**
+     * Constructor.
+     * @param previousRoot The Directory that represented the starting point of the walk in the previous tree, used to reuse unchanged Nodes.
+     */
+    Visitor(DirCacheTree.Directory previousRoot) {
+      this(previousRoot, Set.of());
+    }
+
+    /**
+     * Constructor.
+     * @param previousRoot The Directory that represented the starting point of the walk in the previous tree, used to reuse unchanged Nodes.
+     * @param complete Directories below the starting point that have already been walked, their Nodes are taken from the previous tree without being walked again.
+     */
+    Visitor(DirCacheTree.Directory previousRoot, Set<Path> complete) {
+      this.previousRoot = previousRoot;
+      this.complete = complete;
+    }
+
     public DirCacheTree.Directory getRoot() {
       return root;
     }
@@ -288,10 +1430,6 @@ public class DirCacheImpl implements DirCache {
       return dirsFound;
     }
     
-    private LocalDateTime getLastModified(BasicFileAttributes attrs) {
-      return LocalDateTime.ofInstant(attrs.lastModifiedTime().toInstant(), ZoneOffset.UTC);
-    }
-
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
       if (ignore.matcher(dir.getFileName().toString()).matches()) {
@@ -299,16 +1437,16 @@ public class DirCacheImpl implements DirCache {
         return FileVisitResult.SKIP_SUBTREE;
       } else {
         logger.trace("preVisitDirectory({}, {})", dir, attrs.lastModifiedTime());
-        dirStack.add(new PathAndNodeList(dir, getLastModified(attrs)));
-        dirsFound.add(dir);
-        if (!watches.containsKey(dir)) {
-          try {
-            WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
-            watches.put(dir, key);
-          } catch (IOException ex) {
-            logger.warn("Failed to configure path watch for {}: ", dir, ex);
-          }
+        DirCacheTree.Node previous = dirStack.isEmpty() ? previousRoot : dirStack.peek().previousChild(dir.getFileName().toString());
+        DirCacheTree.Directory previousDir = previous instanceof DirCacheTree.Directory d ? d : null;
+        if (previousDir != null && !dirStack.isEmpty() && complete.contains(dir)) {
+          dirStack.peek().nodeList.add(previousDir);
+          addDirs(previousDir, dirsFound);
+          return FileVisitResult.SKIP_SUBTREE;
         }
+        dirStack.add(new PathAndNodeList(dir, getLastModified(attrs), previousDir));
+        dirsFound.add(dir);
+        registerWatch(dir);
         return FileVisitResult.CONTINUE;
       }
     }
@@ -318,7 +1456,8 @@ public class DirCacheImpl implements DirCache {
       if (!ignore.matcher(file.getFileName().toString()).matches()) {
         logger.trace("visitFile({}, {}) in {}", file, attrs.lastModifiedTime(), dirStack.peek());
         PathAndNodeList parent = dirStack.peek();
-        DirCacheTree.File thisFile = new DirCacheTree.File(file, getLastModified(attrs), attrs.size());
+        String name = file.getFileName().toString();
+        DirCacheTree.File thisFile = fileNode(parent.path, name, attrs, parent.previousChild(name));
         parent.nodeList.add(thisFile);
       }
       return FileVisitResult.CONTINUE;
@@ -335,8 +1474,7 @@ public class DirCacheImpl implements DirCache {
       logger.trace("postVisitDirectory({}, {})", dir, exc);
       PathAndNodeList panl = dirStack.pop();
       assert (dir.equals(panl.path));
-      panl.sort();
-      DirCacheTree.Directory thisDir = new DirCacheTree.Directory(dir, panl.lastModified, panl.nodeList);
+      DirCacheTree.Directory thisDir = panl.toDirectory();
       if (dirStack.isEmpty()) {
         root = thisDir;
       } else {
@@ -347,48 +1485,963 @@ public class DirCacheImpl implements DirCache {
     }
   }
 
-  @Override
-  public void refresh() {
-    walkWithCallback("manual refresh");
-  }
-  
-  private boolean walk(String reason) {
-    Visitor visitor = new Visitor();
-    LocalDateTime walkTime = LocalDateTime.now();
-    logger.trace("Scanning file tree for {}", reason);
-    boolean changed = false;
-    synchronized (scanLock) {
-      try {
-        Files.walkFileTree(rootPath, EnumSet.of(FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
-      } catch (Throwable ex) {
-        logger.warn("Failed to update dir cache of {}: ", rootPath, ex);
-      }
-      
-      synchronized (readLock) {
-        if (this.rootNode == null || !this.rootNode.equals(visitor.getRoot())) {
-          changed = true;
-          this.rootNode = visitor.getRoot();
-        }
-        this.lastWalkTime = walkTime;
+  private void registerWatch(Path dir) {
+    if (engine != null && stabilizationgLagMillis < 0) {
+      // Events would be discarded, so don't occupy the shared WatchService with them
+      return;
+    }
+    if (!watches.containsKey(dir) && !watchBudget.isCold(dir)) {
+      if (watches.size() >= watchBudget.getLimit()) {
+        logger.trace("Watch budget exhausted, {} will be polled", dir);
+        makeCold(dir);
+        return;
       }
-      Set<Path> dirsFound = new HashSet<>(visitor.getDirsFound());
-      for (Iterator<Entry<Path, WatchKey>> iter = watches.entrySet().iterator(); iter.hasNext();) {
-        Entry<Path, WatchKey> watching = iter.next();
-        if (!dirsFound.contains(watching.getKey())) {
-          logger.trace("Path {} no longer exists and is being removed from watches", watching.getKey());
-          iter.remove();
-        }
+      try {
+        WatchKey key = engine == null 
+                ? dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY) 
+                : engine.register(this, dir);
+        watches.put(dir, key);
+      } catch (IOException ex) {
+        logger.warn("Failed to configure path watch for {}, it will be polled instead: ", dir, ex);
+        makeCold(dir);
       }
-      return changed;
     }
   }
   
-  private void walkWithCallback(String reason) {
-    if (walk(reason)) {
-      Runnable cb = callback;
-      if (cb != null) {
-        cb.run();
+  /**
+   * Get the directories that are currently watched.
+   * @return the directories that are currently watched.
+   */
+  Set<Path> getWatchedDirs() {
+    return Set.copyOf(watches.keySet());
+  }
+  
+  /**
+   * Get the directories that are currently checked by polling.
+   * @return the directories that are currently checked by polling.
+   */
+  Set<Path> getColdDirs() {
+    return Set.copyOf(watchBudget.getCold());
+  }
+  
+  private void cancelWatch(WatchKey key) {
+    if (engine == null) {
+      key.cancel();
+    } else {
+      engine.unregister(this, key);
+    }
+  }
+  
+  /**
+   * Return true if changes to a directory will be picked up without walking it, because it is either watched or cold.
+   */
+  private boolean isMonitored(Path dir) {
+    WatchKey key = watches.get(dir);
+    return (key != null && key.isValid()) || watchBudget.isCold(dir);
+  }
+  
+  private void recordChange(Path dir) {
+    if (watchBudget.isLimited()) {
+      watchBudget.recordChange(dir);
+    }
+  }
+  
+  private void makeCold(Path dir) {
+    watchBudget.markCold(dir);
+    synchronized (coldCheckLock) {
+      if (stopped.get() || coldCheckTimer != null || coldCheckFuture != null) {
+        return;
+      }
+      if (engine == null) {
+        coldCheckTimer = new Timer();
+        coldCheckTimer.schedule(new ColdCheckTask(), coldCheckPeriodMillis, coldCheckPeriodMillis);
+      } else {
+        coldCheckFuture = lane.scheduleWithFixedDelay(new ColdCheckTask(), coldCheckPeriodMillis, coldCheckPeriodMillis);
+      }
+    }
+  }
+  
+  /**
+   * Check each cold directory for changes, by comparing its modified timestamp with the tree, and then rebalance the watches.
+   */
+  private void checkColdDirectories() {
+    if (stopped.get()) {
+      return;
+    }
+    boolean changed = false;
+    synchronized (scanLock) {
+      DirCacheTree.Directory root = state.get().getRoot();
+      if (root == null) {
+        return;
+      }
+      PendingChanges changes = new PendingChanges();
+      for (Path dir : watchBudget.nextCold(coldChecksPerPeriod)) {
+        List<DirCacheTree.Directory> ancestors = findAncestors(root, dir);
+        if (ancestors == null || !ancestors.get(ancestors.size() - 1).getPath().equals(dir)) {
+          continue;
+        }
+        long modified;
+        try {
+          modified = getLastModified(Files.readAttributes(dir, BasicFileAttributes.class));
+        } catch (IOException ex) {
+          logger.trace("Cold directory {} no longer exists: ", dir, ex);
+          modified = Long.MIN_VALUE;
+        }
+        if (modified != ancestors.get(ancestors.size() - 1).getModifiedEpochNanos()) {
+          logger.trace("Cold directory {} has changed", dir);
+          changes.relist(dir);
+          watchBudget.recordChange(dir);
+        }
+      }
+      if (!changes.isEmpty()) {
+        changed = rescan(changes, "cold directory check");
+      }
+      
+      WatchBudget.Rebalance rebalance = watchBudget.rebalance(watches.keySet());
+      for (Path dir : rebalance.getToUnwatch()) {
+        WatchKey key = watches.remove(dir);
+        if (key != null) {
+          logger.trace("Replacing watch of {} with polling", dir);
+          cancelWatch(key);
+          watchBudget.markCold(dir);
+        }
+      }
+      for (Path dir : rebalance.getToWatch()) {
+        logger.trace("Replacing polling of {} with watch", dir);
+        watchBudget.removeCold(dir);
+        registerWatch(dir);
+      }
+    }
+    if (changed) {
+      notifyListeners();
+    }
+  }
+
+  /**
+   * The chain of directories from the root of a parallel walk, used to detect symbolic link loops.
+   */
+  private static class Ancestor {
+
+    private final Path path;
+    private final Object fileKey;
+    private final Ancestor parent;
+
+    Ancestor(Path path, BasicFileAttributes attrs, Ancestor parent) {
+      this.path = path;
+      this.fileKey = attrs.fileKey();
+      this.parent = parent;
+    }
+
+    /**
+     * Return true if the directory is the same as this directory or any of its ancestors.
+     * The same check as {@link java.nio.file.Files#walkFileTree} makes before throwing a {@link java.nio.file.FileSystemLoopException}.
+     */
+    boolean isLoop(Path dir, BasicFileAttributes attrs) {
+      Object key = attrs.fileKey();
+      for (Ancestor ancestor = this; ancestor != null; ancestor = ancestor.parent) {
+        if (key != null && ancestor.fileKey != null) {
+          if (key.equals(ancestor.fileKey)) {
+            return true;
+          }
+        } else {
+          try {
+            if (Files.isSameFile(dir, ancestor.path)) {
+              return true;
+            }
+          } catch (IOException | SecurityException ex) {
+            // Assume that this is not a loop
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Parallel equivalent of the {@link Visitor}, each subdirectory is walked by a separate task.
+   */
+  private class WalkTask extends RecursiveTask<DirCacheTree.Directory> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient Path dir;
+    private final transient BasicFileAttributes attrs;
+    private final transient DirCacheTree.Directory previous;
+    private final transient Ancestor ancestor;
+    private final transient Set<Path> dirsFound;
+    private final transient Set<Path> complete;
+
+    WalkTask(Path dir, BasicFileAttributes attrs, DirCacheTree.Directory previous, Ancestor parent, Set<Path> dirsFound, Set<Path> complete) {
+      this.dir = dir;
+      this.attrs = attrs;
+      this.previous = previous;
+      this.ancestor = new Ancestor(dir, attrs, parent);
+      this.dirsFound = dirsFound;
+      this.complete = complete;
+    }
+
+    @Override
+    protected DirCacheTree.Directory compute() {
+      logger.trace("compute({}, {})", dir, attrs.lastModifiedTime());
+      dirsFound.add(dir);
+      registerWatch(dir);
+      DirectoryRead read = new DirectoryRead(this);
+      try {
+        // Wait for a permit without telling the pool, so that only the reads themselves count as blocked and earn compensating threads
+        ioPermits.acquire();
+        try {
+          ForkJoinPool.managedBlock(read);
+        } finally {
+          ioPermits.release();
+        }
+      } catch (InterruptedException ex) {
+        logger.warn("Interrupted whilst reading {}", dir);
+        Thread.currentThread().interrupt();
+      }
+      for (WalkTask subdir : invokeAll(read.subdirs)) {
+        read.panl.nodeList.add(subdir.join());
+      }
+      return read.panl.toDirectory();
+    }
+  }
+
+  /**
+   * Read the entries of a single directory, as a blocking operation so that the walkPool can compensate whilst it waits for the filesystem.
+   * 
+   * Files are added to the PathAndNodeList, subdirectories become new WalkTasks (that the caller must invoke).
+   */
+  private class DirectoryRead implements ForkJoinPool.ManagedBlocker {
+
+    private final WalkTask task;
+    private final PathAndNodeList panl;
+    private final List<WalkTask> subdirs = new ArrayList<>();
+    private boolean done;
+
+    DirectoryRead(WalkTask task) {
+      this.task = task;
+      this.panl = new PathAndNodeList(task.dir, getLastModified(task.attrs), task.previous);
+    }
+
+    @Override
+    public boolean block() throws InterruptedException {
+      read();
+      done = true;
+      return true;
+    }
+
+    @Override
+    public boolean isReleasable() {
+      return done;
+    }
+
+    private void read() {
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(task.dir)) {
+        for (Path child : stream) {
+          String name = child.getFileName().toString();
+          if (ignore.matcher(name).matches()) {
+            continue;
+          }
+          BasicFileAttributes childAttrs;
+          try {
+            childAttrs = readAttributes(child);
+          } catch (IOException ex) {
+            logger.trace("Failed to read attributes of {}: ", child, ex);
+            continue;
+          }
+          if (childAttrs.isDirectory()) {
+            if (task.ancestor.isLoop(child, childAttrs)) {
+              logger.trace("Not following {} as it is a loop", child);
+              continue;
+            }
+            DirCacheTree.Node previousChild = panl.previousChild(name);
+            DirCacheTree.Directory previousDir = previousChild instanceof DirCacheTree.Directory d ? d : null;
+            if (previousDir != null && task.complete.contains(child)) {
+              panl.nodeList.add(previousDir);
+              addDirs(previousDir, task.dirsFound);
+            } else {
+              subdirs.add(new WalkTask(child, childAttrs, previousDir, task.ancestor, task.dirsFound, task.complete));
+            }
+          } else {
+            panl.nodeList.add(fileNode(panl.path, name, childAttrs, panl.previousChild(name)));
+          }
+        }
+      } catch (IOException ex) {
+        logger.trace("Failed to list {}: ", task.dir, ex);
+      }
+    }
+  }
+
+  /**
+   * Walk the tree below a directory, using the walkPool if there is one.
+   * 
+   * @param dir The directory to walk.
+   * @param previous The Directory representing dir in the current tree, used to reuse unchanged Nodes, may be null.
+   * @param complete Directories below dir that have already been walked, their Nodes are taken from previous without being walked again.
+   * @param dirsFound Set to be populated with all the directories found.
+   * @return The new Directory, or null if dir is not a directory or is ignored.
+   * @throws IOException if the attributes of dir cannot be read, or the walk fails.
+   */
+  private DirCacheTree.Directory walkSubtree(Path dir, DirCacheTree.Directory previous, Set<Path> complete, Set<Path> dirsFound) throws IOException {
+    BasicFileAttributes attrs = Files.readAttributes(dir, BasicFileAttributes.class);
+    if (!attrs.isDirectory() || ignore.matcher(dir.getFileName().toString()).matches()) {
+      return null;
+    }
+    if (walkPool == null) {
+      Visitor visitor = new Visitor(previous, complete);
+      try {
+        Files.walkFileTree(dir, EnumSet.of(FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+      } finally {
+        dirsFound.addAll(visitor.getDirsFound());
+      }
+      return visitor.getRoot();
+    } else {
+      return walkPool.invoke(new WalkTask(dir, attrs, previous, null, dirsFound, complete));
+    }
+  }
+  
+  private static void addDirs(DirCacheTree.Directory dir, Collection<Path> dirsFound) {
+    dirsFound.add(dir.getPath());
+    for (DirCacheTree.Node child : dir.getChildren()) {
+      if (child instanceof DirCacheTree.Directory childDir) {
+        addDirs(childDir, dirsFound);
+      }
+    }
+  }
+
+  /**
+   * Walk one of the priority paths and publish a partial tree containing it (and any priority paths already walked).
+   * 
+   * Directories between the root and the priority path that have not been walked yet are represented by Directories with no modified timestamp
+   * that contain only the walked paths, they are replaced by the full walk.
+   * 
+   * @param dir The priority path to walk.
+   * @param complete The priority paths that have already been walked, dir will be added to this if it is walked.
+   * @return true if the tree changed.
+   */
+  private boolean walkPriorityPath(Path dir, Set<Path> complete) {
+    for (Path done : complete) {
+      if (dir.startsWith(done)) {
+        return false;
+      }
+    }
+    LocalDateTime walkTime = LocalDateTime.now();
+    logger.trace("Scanning priority path {}", dir);
+    synchronized (scanLock) {
+      DirCacheTree.Directory current = state.get().getRoot();
+      Path relative = rootPath.relativize(dir);
+      List<DirCacheTree.Directory> ancestors = current == null ? List.of() : findAncestors(current, dir);
+      DirCacheTree.Directory previous = ancestors.size() == relative.getNameCount() + 1 ? ancestors.get(ancestors.size() - 1) : null;
+      Set<Path> dirsFound = new HashSet<>();
+      DirCacheTree.Directory walked;
+      try {
+        walked = walkSubtree(dir, previous, complete, dirsFound);
+      } catch (Throwable ex) {
+        logger.debug("Failed to walk priority path {}: ", dir, ex);
+        return false;
+      }
+      if (walked == null || stopped.get()) {
+        return false;
+      }
+      complete.add(dir);
+      
+      DirCacheTree.Directory result = walked;
+      for (int i = relative.getNameCount() - 1; i >= 0; --i) {
+        DirCacheTree.Directory parent = i < ancestors.size() 
+                ? ancestors.get(i) 
+                : new DirCacheTree.Directory(i == 0 ? rootPath : rootPath.resolve(relative.subpath(0, i)), (LocalDateTime) null, List.of());
+        result = replaceChild(parent, result);
+      }
+      return publish(result, walkTime);
+    }
+  }
+
+  /**
+   * Bring the tree up to date by checking the modified timestamp of every directory, without stat'ing any files in unchanged directories.
+   * 
+   * @return true if the tree changed.
+   */
+  private boolean pollIncrementally() {
+    LocalDateTime walkTime = LocalDateTime.now();
+    logger.trace("Polling directories of {}", rootPath);
+    synchronized (scanLock) {
+      DirCacheTree.Directory root = state.get().getRoot();
+      if (root == null) {
+        return walk("poll");
+      }
+      long start = System.nanoTime();
+      Set<Path> dirsFound = new HashSet<>();
+      DirCacheTree.Directory newRoot;
+      try {
+        newRoot = pollDirectory(root, dirsFound);
+      } catch (Throwable ex) {
+        logger.debug("Failed to poll {}, falling back to full walk: ", rootPath, ex);
+        return walk("poll");
+      }
+      lastWalkDuration = Duration.ofNanos(System.nanoTime() - start);
+      boolean changed = publish(newRoot, walkTime);
+      retainWatches(dirsFound);
+      return changed;
+    }
+  }
+  
+  private DirCacheTree.Directory pollDirectory(DirCacheTree.Directory previous, Set<Path> dirsFound) throws IOException {
+    Path dir = previous.getPath();
+    BasicFileAttributes dirAttrs;
+    try {
+      dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class);
+    } catch (IOException ex) {
+      logger.trace("{} no longer exists: ", dir, ex);
+      return null;
+    }
+    if (!dirAttrs.isDirectory() || stopped.get()) {
+      return null;
+    }
+    dirsFound.add(dir);
+    long modified = getLastModified(dirAttrs);
+    PathAndNodeList panl = new PathAndNodeList(dir, modified, previous);
+    if (modified == previous.getModifiedEpochNanos()) {
+      // No entries have been added or removed, files are left to the rolling scan
+      for (DirCacheTree.Node child : previous.getChildren()) {
+        if (child instanceof DirCacheTree.Directory childDir) {
+          DirCacheTree.Directory polled = pollDirectory(childDir, dirsFound);
+          if (polled != null) {
+            panl.nodeList.add(polled);
+          }
+        } else {
+          panl.nodeList.add(child);
+        }
+      }
+      return panl.toDirectory();
+    }
+    logger.trace("{} has changed and will be relisted", dir);
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path child : stream) {
+        String name = child.getFileName().toString();
+        if (ignore.matcher(name).matches()) {
+          continue;
+        }
+        BasicFileAttributes attrs;
+        try {
+          attrs = readAttributes(child);
+        } catch (IOException ex) {
+          logger.trace("Failed to read attributes of {}: ", child, ex);
+          continue;
+        }
+        DirCacheTree.Node existing = previous.get(name);
+        if (attrs.isDirectory()) {
+          DirCacheTree.Directory polled;
+          if (existing instanceof DirCacheTree.Directory existingDir) {
+            polled = pollDirectory(existingDir, dirsFound);
+          } else {
+            Visitor visitor = new Visitor(null);
+            Files.walkFileTree(child, EnumSet.of(FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+            dirsFound.addAll(visitor.getDirsFound());
+            polled = visitor.getRoot();
+          }
+          if (polled != null) {
+            panl.nodeList.add(polled);
+          }
+        } else {
+          panl.nodeList.add(fileNode(panl.path, name, attrs, existing));
+        }
+      }
+    }
+    return panl.toDirectory();
+  }
+  
+  /**
+   * Stat the next batch of files in the tree, continuing from where the previous batch finished.
+   */
+  private void rollingScan() {
+    if (stopped.get()) {
+      return;
+    }
+    boolean changed = false;
+    synchronized (scanLock) {
+      DirCacheTree.Directory root = state.get().getRoot();
+      if (root == null) {
+        return;
+      }
+      RollingScan scan = new RollingScan(rollingScanCursor == null ? null : root.getPath().relativize(rollingScanCursor), rollingScanBatch);
+      rollingScanCursor = scan.scan(root) ? null : scan.last;
+      if (!scan.changes.isEmpty()) {
+        changed = rescan(scan.changes, "rolling scan");
+      }
+    }
+    if (changed) {
+      notifyListeners();
+    }
+  }
+  
+  /**
+   * A single batch of the rolling scan of files, in depth first order.
+   * 
+   * The batch starts at the first file that comes after the cursor in the order of the tree (directories first, then by name),
+   * whether or not the file (or any of the directories above it) named by the cursor is still in the tree.
+   */
+  static class RollingScan {
+    
+    private final Path cursor;
+    final PendingChanges changes = new PendingChanges();
+    private boolean passed;
+    private long remaining;
+    Path last;
+
+    /**
+     * Constructor.
+     * @param cursor The path, relative to the root of the tree, of the last file checked by the previous batch, or null to start from the beginning.
+     * @param batch The number of files to check.
+     */
+    RollingScan(Path cursor, long batch) {
+      this.cursor = cursor;
+      this.passed = cursor == null;
+      this.remaining = batch;
+    }
+    
+    /**
+     * Check the files in a directory (and its subdirectories) that come after the cursor.
+     * @param dir The root of the tree to check.
+     * @return false if the batch was completed before the end of the directory.
+     */
+    boolean scan(DirCacheTree.Directory dir) {
+      return scan(dir, 0);
+    }
+    
+    private boolean scan(DirCacheTree.Directory dir, int depth) {
+      for (DirCacheTree.Node child : dir.getChildren()) {
+        if (!passed) {
+          int cmp = compareToCursor(child, depth);
+          if (cmp < 0) {
+            continue;
+          } else if (cmp == 0) {
+            // On the path to the cursor, so everything after this child is after the cursor
+            if (child instanceof DirCacheTree.Directory childDir && !scan(childDir, depth + 1)) {
+              return false;
+            }
+            passed = true;
+            continue;
+          }
+          passed = true;
+        }
+        if (child instanceof DirCacheTree.Directory childDir) {
+          if (!scan(childDir, depth + 1)) {
+            return false;
+          }
+        } else {
+          if (remaining <= 0) {
+            return false;
+          }
+          --remaining;
+          last = child.getPath();
+          check(dir, (DirCacheTree.File) child);
+        }
+      }
+      return true;
+    }
+    
+    /**
+     * Compare a Node with the element of the cursor at the same depth, in the order given by {@link DirCacheTree#compareNodes}.
+     * 
+     * Every element of the cursor except the last is a directory.
+     */
+    private int compareToCursor(DirCacheTree.Node child, int depth) {
+      boolean cursorIsDir = depth < cursor.getNameCount() - 1;
+      boolean childIsDir = child instanceof DirCacheTree.Directory;
+      if (childIsDir != cursorIsDir) {
+        return childIsDir ? -1 : 1;
+      }
+      return child.getName().compareTo(cursor.getName(depth).toString());
+    }
+    
+    private void check(DirCacheTree.Directory dir, DirCacheTree.File file) {
+      BasicFileAttributes attrs;
+      try {
+        attrs = readAttributes(file.getPath());
+      } catch (IOException ex) {
+        changes.change(dir.getPath(), file.getName());
+        return;
+      }
+      if (attrs.isDirectory() || attrs.size() != file.getSize() || getLastModified(attrs) != file.getModifiedEpochNanos()) {
+        changes.change(dir.getPath(), file.getName());
+      }
+    }
+  }
+
+  @Override
+  public void refresh() {
+    walkWithCallback("manual refresh");
+  }
+  
+  private boolean walk(String reason) {
+    return walk(reason, Set.of());
+  }
+  
+  private boolean walk(String reason, Set<Path> complete) {
+    LocalDateTime walkTime = LocalDateTime.now();
+    logger.trace("Scanning file tree for {}", reason);
+    synchronized (scanLock) {
+      long start = System.nanoTime();
+      DirCacheTree.Directory newRoot = null;
+      Set<Path> dirsFound = walkPool == null ? new HashSet<>() : ConcurrentHashMap.newKeySet();
+      try {
+        newRoot = walkSubtree(rootPath, state.get().getRoot(), complete, dirsFound);
+      } catch (Throwable ex) {
+        logger.warn("Failed to update dir cache of {}: ", rootPath, ex);
+      }
+      if (stopped.get() && newRoot == null) {
+        return false;
+      }
+      lastWalkDuration = Duration.ofNanos(System.nanoTime() - start);
+      
+      boolean changed = publish(newRoot, walkTime);
+      retainWatches(dirsFound);
+      return changed;
+    }
+  }
+  
+  private void retainWatches(Set<Path> dirsFound) {
+    watchBudget.retainCold(dirsFound);
+    for (Iterator<Entry<Path, WatchKey>> iter = watches.entrySet().iterator(); iter.hasNext();) {
+      Entry<Path, WatchKey> watching = iter.next();
+      if (!dirsFound.contains(watching.getKey())) {
+        logger.trace("Path {} no longer exists and is being removed from watches", watching.getKey());
+        iter.remove();
+        if (engine != null) {
+          engine.unregister(this, watching.getValue());
+        }
+      }
+    }
+  }
+  
+  private boolean publish(DirCacheTree.Directory newRoot, LocalDateTime walkTime) {
+    boolean changed = false;
+    synchronized (readLock) {
+      DirCacheSnapshot current = state.get();
+      DirCacheTree.Directory root = current.getRoot();
+      long generation = current.getGeneration();
+      // Unchanged trees are usually the same instance, otherwise the digests decide without walking either tree.
+      // A null tree (the root has gone or cannot be read) is published as it is.
+      if (root != newRoot && (root == null || newRoot == null || root.getDigest() != newRoot.getDigest() || !root.equals(newRoot))) {
+        changed = true;
+        DirCacheTree.Directory stored = store(newRoot);
+        if (this.index != null) {
+          this.index = this.index.update(root, stored);
+        }
+        if (this.fileIndexes != null) {
+          this.fileIndexes = this.fileIndexes.update(root, stored);
+        }
+        root = stored;
+        ++generation;
+      }
+      state.set(new DirCacheSnapshot(root, walkTime, generation, fileIndexes));
+    }
+    return changed;
+  }
+  
+  /**
+   * Convert a newly walked tree into the form in which it will be held until the next change.
+   * 
+   * The default implementation holds the tree as it is, subclasses may hold it in a different form (such as {@link ColumnarDirCache}).
+   * The result must represent the same tree as newRoot.
+   * 
+   * @param newRoot The root of the tree that has just been walked.
+   * @return The root of the tree to be returned by {@link #getRoot()}.
+   */
+  protected DirCacheTree.Directory store(DirCacheTree.Directory newRoot) {
+    return newRoot;
+  }
+  
+  /**
+   * Apply the changes reported by the WatchService to the current tree.
+   * 
+   * Where the WatchEvents identify individual entries just those entries are stat'd and the new Nodes replace the old ones,
+   * by copying only the nodes on the path to the root.
+   * Otherwise each changed directory is relisted (without recursing into subdirectories that are already known and watched)
+   * and any new subdirectories are walked in full.
+   * Unchanged subtrees are shared with the previous tree.
+   * If anything cannot be resolved against the current tree a full walk is performed instead.
+   * 
+   * @param pending The changes reported by the WatchService.
+   * @param reason The reason for the scan, for logging.
+   * @return true if the tree changed.
+   */
+  private boolean rescan(PendingChanges pending, String reason) {
+    LocalDateTime walkTime = LocalDateTime.now();
+    logger.trace("Rescanning {} for {}", pending, reason);
+    synchronized (scanLock) {
+      DirCacheTree.Directory root = state.get().getRoot();
+      if (root == null) {
+        return walk(reason);
+      }
+      for (Entry<Path, Set<String>> changed : pending.getEntries().entrySet()) {
+        Path changedDir = changed.getKey();
+        try {
+          if (pending.isRelistRequired(changedDir)) {
+            root = rescanDirectory(root, changedDir);
+          } else {
+            root = updateEntries(root, changedDir, changed.getValue());
+          }
+        } catch (Throwable ex) {
+          logger.debug("Failed to rescan {}, falling back to full walk: ", changedDir, ex);
+          return walk(reason);
+        }
+        if (root == null) {
+          return walk(reason);
+        }
+      }
+      return publish(root, walkTime);
+    }
+  }
+  
+  /**
+   * Find the Directories in the tree on the path from the root to the given directory.
+   * 
+   * @param root The current root of the tree.
+   * @param dir The directory being sought.
+   * @return The Directories from the root down to the deepest ancestor of dir that is in the tree, or null if dir is not under the root.
+   */
+  private List<DirCacheTree.Directory> findAncestors(DirCacheTree.Directory root, Path dir) {
+    if (!dir.startsWith(rootPath)) {
+      return null;
+    }
+    Path relative = rootPath.relativize(dir);
+    List<DirCacheTree.Directory> ancestors = new ArrayList<>(relative.getNameCount() + 1);
+    ancestors.add(root);
+    if (!relative.toString().isEmpty()) {
+      for (Path name : relative) {
+        DirCacheTree.Directory child = ancestors.get(ancestors.size() - 1).getDir(name.toString());
+        if (child == null) {
+          break;
+        }
+        ancestors.add(child);
+      }
+    }
+    return ancestors;
+  }
+  
+  private static DirCacheTree.Directory spliceIntoAncestors(List<DirCacheTree.Directory> ancestors, DirCacheTree.Directory replacement) {
+    DirCacheTree.Directory result = replacement;
+    for (int i = ancestors.size() - 2; i >= 0; --i) {
+      result = replaceChild(ancestors.get(i), result);
+    }
+    return result;
+  }
+
+  /**
+   * Update individual entries in a directory, without listing the directory.
+   * 
+   * Each named entry is stat'd (just the one call per entry) and the resulting Node replaces the existing one, or is removed if the entry no longer exists.
+   * New subdirectories are walked in full.
+   * 
+   * @param root The current root of the tree.
+   * @param dir The watched directory that the entries are in.
+   * @param names The names of the entries reported as changed.
+   * @return The new root of the tree, or null if the directory could not be resolved against the tree.
+   * @throws IOException if a new subdirectory cannot be walked.
+   */
+  private DirCacheTree.Directory updateEntries(DirCacheTree.Directory root, Path dir, Set<String> names) throws IOException {
+    List<DirCacheTree.Directory> ancestors = findAncestors(root, dir);
+    if (ancestors == null) {
+      return null;
+    }
+    DirCacheTree.Directory existing = ancestors.get(ancestors.size() - 1);
+    BasicFileAttributes dirAttrs;
+    try {
+      dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class);
+    } catch (IOException ex) {
+      dirAttrs = null;
+    }
+    if (!existing.getPath().equals(dir) || dirAttrs == null || !dirAttrs.isDirectory()) {
+      // The directory is new, or has gone, so the event cannot be resolved to individual entries
+      return rescanDirectory(root, dir);
+    }
+    
+    Map<String, DirCacheTree.Node> children = new HashMap<>(existing.getChildren().size() * 2);
+    existing.getChildren().forEach(n -> children.put(n.getName(), n));
+    for (String name : names) {
+      if (ignore.matcher(name).matches()) {
+        continue;
+      }
+      Path child = dir.resolve(name);
+      DirCacheTree.Node previous = children.remove(name);
+      BasicFileAttributes attrs;
+      try {
+        attrs = readAttributes(child);
+      } catch (IOException ex) {
+        logger.trace("{} no longer exists: ", child, ex);
+        attrs = null;
+      }
+      if (previous instanceof DirCacheTree.Directory && (attrs == null || !attrs.isDirectory())) {
+        removeWatches(child);
+      }
+      if (attrs == null) {
+        continue;
+      }
+      DirCacheTree.Node replacement;
+      if (attrs.isDirectory()) {
+        if (previous instanceof DirCacheTree.Directory previousDir && isMonitored(child)) {
+          // Changes within the subdirectory are reported by its own watch (or cold check), this can only be a change to the directory itself
+          replacement = directoryNode(child, getLastModified(attrs), previousDir.getChildren(), previousDir);
+        } else {
+          Visitor visitor = new Visitor(previous instanceof DirCacheTree.Directory d ? d : null);
+          Files.walkFileTree(child, EnumSet.of(FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+          replacement = visitor.getRoot();
+        }
+      } else {
+        replacement = fileNode(existing.getPath(), name, attrs, previous);
+      }
+      if (replacement != null) {
+        children.put(name, replacement);
+      }
+    }
+    List<DirCacheTree.Node> nodeList = new ArrayList<>(children.values());
+    nodeList.sort(DirCacheTree::compareNodes);
+    DirCacheTree.Directory updated = directoryNode(dir, getLastModified(dirAttrs), nodeList, existing);
+    return spliceIntoAncestors(ancestors, updated);
+  }
+  
+  /**
+   * Rescan a single directory and return a new root with the rebuilt directory spliced into it.
+   * 
+   * If the directory is not in the current tree (it is new) or no longer exists on disc the nearest ancestor that is in the tree is rescanned instead.
+   * 
+   * @param root The current root of the tree.
+   * @param changedDir The directory reported by the WatchService.
+   * @return The new root of the tree, or null if the directory could not be resolved against the tree.
+   * @throws IOException if the directory cannot be listed.
+   */
+  private DirCacheTree.Directory rescanDirectory(DirCacheTree.Directory root, Path changedDir) throws IOException {
+    List<DirCacheTree.Directory> ancestors = findAncestors(root, changedDir);
+    if (ancestors == null) {
+      return null;
+    }
+    // Find the deepest directory that is both in the tree and still a directory on disc
+    while (ancestors.size() > 1 && !Files.isDirectory(ancestors.get(ancestors.size() - 1).getPath())) {
+      ancestors.remove(ancestors.size() - 1);
+    }
+    DirCacheTree.Directory target = ancestors.get(ancestors.size() - 1);
+    return spliceIntoAncestors(ancestors, listDirectory(target));
+  }
+  
+  /**
+   * Relist a single directory, reusing the existing Nodes for subdirectories that are still being watched.
+   * 
+   * @param previous The current Directory in the tree.
+   * @return A new Directory representing the current state of the directory on disc.
+   * @throws IOException if the directory cannot be listed.
+   */
+  private DirCacheTree.Directory listDirectory(DirCacheTree.Directory previous) throws IOException {
+    Path dir = previous.getPath();
+    BasicFileAttributes dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class);
+    PathAndNodeList panl = new PathAndNodeList(dir, getLastModified(dirAttrs), previous);
+    Set<String> subdirsFound = new HashSet<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path child : stream) {
+        String name = child.getFileName().toString();
+        if (ignore.matcher(name).matches()) {
+          continue;
+        }
+        BasicFileAttributes attrs;
+        try {
+          attrs = readAttributes(child);
+        } catch (IOException ex) {
+          logger.trace("Failed to read attributes of {}: ", child, ex);
+          continue;
+        }
+        if (attrs.isDirectory()) {
+          subdirsFound.add(name);
+          DirCacheTree.Directory existing = previous.getDir(name);
+          if (existing != null && isMonitored(child)) {
+            panl.nodeList.add(existing);
+          } else {
+            Visitor visitor = new Visitor(existing);
+            Files.walkFileTree(child, EnumSet.of(FOLLOW_LINKS), Integer.MAX_VALUE, visitor);
+            if (visitor.getRoot() != null) {
+              panl.nodeList.add(visitor.getRoot());
+            }
+          }
+        } else {
+          panl.nodeList.add(fileNode(panl.path, name, attrs, previous.get(name)));
+        }
+      }
+    }
+    for (DirCacheTree.Node child : previous.getChildren()) {
+      if (child instanceof DirCacheTree.Directory && !subdirsFound.contains(child.getName())) {
+        removeWatches(child.getPath());
+      }
+    }
+    return panl.toDirectory();
+  }
+  
+  private static BasicFileAttributes readAttributes(Path path) throws IOException {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException ex) {
+      // Same behaviour as walkFileTree for broken links
+      return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+    }
+  }
+  
+  private void removeWatches(Path dir) {
+    watchBudget.removeColdUnder(dir);
+    for (Iterator<Entry<Path, WatchKey>> iter = watches.entrySet().iterator(); iter.hasNext();) {
+      Entry<Path, WatchKey> watching = iter.next();
+      if (watching.getKey().startsWith(dir)) {
+        logger.trace("Path {} no longer exists and is being removed from watches", watching.getKey());
+        iter.remove();
+        if (engine != null) {
+          engine.unregister(this, watching.getValue());
+        }
+      }
+    }
+  }
+  
+  /**
+   * Create a copy of a Directory with a single child replaced (or added).
+   * 
+   * @param parent The Directory to copy.
+   * @param child The new child, which replaces any existing child with the same name.
+   * @return A copy of parent with child replaced.
+   */
+  static DirCacheTree.Directory replaceChild(DirCacheTree.Directory parent, DirCacheTree.Node child) {
+    List<DirCacheTree.Node> children = new ArrayList<>(parent.getChildren().size() + 1);
+    for (DirCacheTree.Node existing : parent.getChildren()) {
+      if (!existing.getName().equals(child.getName())) {
+        children.add(existing);
+      }
+    }
+    children.add(child);
+    children.sort(DirCacheTree::compareNodes);
+    return new DirCacheTree.Directory(parent.getPath(), parent.getName(), parent.getModifiedEpochNanos(), children);
+  }
+  
+  private void walkWithCallback(String reason) {
+    if (walk(reason)) {
+      notifyListeners();
+    }
+  }
+  
+  /**
+   * Pass the current tree to the callback and listeners.
+   * 
+   * This does not wait for them, each is run on its own Executor so that a slow listener cannot delay the detection of changes.
+   * Notifications are serialized, and the snapshot is read once the lock is held, so no listener is ever passed a tree older than
+   * one it has already been given (each ListenerDispatcher keeps only the latest tree it has been passed).
+   */
+  private void notifyListeners() {
+    synchronized (notifyLock) {
+      DirCacheSnapshot snapshot = state.get();
+      DirCacheTree.Directory current = snapshot.getRoot();
+      DirCacheTree.Directory previous = lastNotifiedRoot.getAndSet(current);
+      ListenerDispatcher cb = callback;
+      if (cb != null) {
+        cb.notify(previous, current);
+      }
+      for (ListenerDispatcher listener : listeners) {
+        listener.notify(previous, current);
       }
+      subscriptions.notify(previous, current);
+      changePublisher.publish(snapshot);
     }
   }
 
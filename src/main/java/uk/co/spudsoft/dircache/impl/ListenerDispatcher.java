@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.spudsoft.dircache.ChangeSet;
+import uk.co.spudsoft.dircache.DirCacheListener;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * Deliver notifications to a single listener (or the callback) on its own Executor.
+ *
+ * At most one delivery to the listener is running or queued on the Executor at any time.
+ * Notifications that arrive whilst a delivery is running are coalesced: the next delivery reports the differences between the tree
+ * the listener last saw and the most recent tree, so a slow listener misses intermediate trees rather than building up a queue.
+ *
+ * @author jtalbut
+ */
+final class ListenerDispatcher {
+
+  private static final Logger logger = LoggerFactory.getLogger(ListenerDispatcher.class);
+
+  private static final Object UNSET = new Object();
+
+  private final DirCacheListener listener;
+  private final Runnable callback;
+  private final Executor executor;
+  private final Predicate<DirCacheTree.Node> filter;
+  private final LongConsumer durationRecorder;
+
+  private Object delivered = UNSET;
+  private DirCacheTree.Directory pending;
+  private boolean hasPending;
+  private boolean running;
+
+  private ListenerDispatcher(DirCacheListener listener, Runnable callback, Executor executor, Predicate<DirCacheTree.Node> filter, LongConsumer durationRecorder) {
+    this.listener = listener;
+    this.callback = callback;
+    this.executor = executor;
+    this.filter = filter;
+    this.durationRecorder = durationRecorder;
+  }
+
+  /**
+   * Create a dispatcher for a listener, which is only called when the tree has changed.
+   *
+   * @param listener The listener.
+   * @param executor The Executor on which the listener is to be called.
+   * @param durationRecorder Called with the time taken (in nanoseconds) by each call to the listener.
+   * @return a newly created ListenerDispatcher.
+   */
+  static ListenerDispatcher forListener(DirCacheListener listener, Executor executor, LongConsumer durationRecorder) {
+    return new ListenerDispatcher(listener, null, executor, null, durationRecorder);
+  }
+
+  /**
+   * Create a dispatcher for a listener that is only told about changed Nodes that match a filter.
+   *
+   * @param listener The listener.
+   * @param executor The Executor on which the listener is to be called.
+   * @param filter The test for the changed Nodes to pass to the listener, the listener is not called if no changed Nodes match.
+   * @param durationRecorder Called with the time taken (in nanoseconds) by each call to the listener.
+   * @return a newly created ListenerDispatcher.
+   */
+  static ListenerDispatcher forListener(DirCacheListener listener, Executor executor, Predicate<DirCacheTree.Node> filter, LongConsumer durationRecorder) {
+    return new ListenerDispatcher(listener, null, executor, filter, durationRecorder);
+  }
+
+  /**
+   * Create a dispatcher for a callback, which is called after every notification whether or not the tree has changed.
+   *
+   * @param callback The callback.
+   * @param executor The Executor on which the callback is to be called.
+   * @param durationRecorder Called with the time taken (in nanoseconds) by each call to the callback.
+   * @return a newly created ListenerDispatcher.
+   */
+  static ListenerDispatcher forCallback(Runnable callback, Executor executor, LongConsumer durationRecorder) {
+    return new ListenerDispatcher(null, callback, executor, null, durationRecorder);
+  }
+
+  DirCacheListener getListener() {
+    return listener;
+  }
+
+  /**
+   * Notify the listener of a new tree, without waiting for it to be called.
+   *
+   * @param previous The tree at the previous notification, used as the starting point for the first notification to this listener.
+   * @param current The current tree.
+   */
+  void notify(DirCacheTree.Directory previous, DirCacheTree.Directory current) {
+    synchronized (this) {
+      if (delivered == UNSET) {
+        delivered = previous;
+      }
+      pending = current;
+      hasPending = true;
+      if (running) {
+        return;
+      }
+      running = true;
+    }
+    try {
+      executor.execute(this::drain);
+    } catch (RejectedExecutionException ex) {
+      logger.warn("Executor for {} rejected notification: ", this, ex);
+      synchronized (this) {
+        running = false;
+      }
+    }
+  }
+
+  private void drain() {
+    while (true) {
+      DirCacheTree.Directory previous;
+      DirCacheTree.Directory current;
+      synchronized (this) {
+        if (!hasPending) {
+          running = false;
+          return;
+        }
+        previous = (DirCacheTree.Directory) delivered;
+        current = pending;
+        delivered = current;
+        pending = null;
+        hasPending = false;
+      }
+      deliver(previous, current);
+    }
+  }
+
+  private void deliver(DirCacheTree.Directory previous, DirCacheTree.Directory current) {
+    ChangeSet changes = null;
+    if (listener != null) {
+      if (previous == current) {
+        return;
+      }
+      changes = ChangeSet.diff(previous, current);
+      if (filter != null) {
+        changes = changes.filter(filter);
+      }
+      if (changes.isEmpty()) {
+        return;
+      }
+    }
+    long start = System.nanoTime();
+    try {
+      if (listener != null) {
+        listener.changed(changes);
+      } else {
+        callback.run();
+      }
+    } catch (Throwable ex) {
+      logger.warn("Listener {} failed: ", this, ex);
+    }
+    long duration = System.nanoTime() - start;
+    logger.trace("Listener {} took {}ns", this, duration);
+    durationRecorder.accept(duration);
+  }
+
+  @Override
+  public String toString() {
+    return String.valueOf(listener == null ? callback : listener);
+  }
+
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.util.Arrays;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * An immutable index of every Node in a tree by its path relative to the root of the tree.
+ *
+ * Keys are the names of the Nodes from the root down, separated by '/', with the root itself having the empty key.
+ *
+ * The index is a hash array mapped trie, so a new index that differs from its predecessor in a few keys shares almost all of its structure.
+ * Lookups do not allocate.
+ *
+ * @author jtalbut
+ */
+final class PathIndex {
+
+  static final PathIndex EMPTY = new PathIndex(BitmapNode.EMPTY, 0);
+
+  private final TrieNode root;
+  private final int size;
+
+  private PathIndex(TrieNode root, int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+  /**
+   * Create an index of all the Nodes in a tree.
+   * @param root The root of the tree, may be null.
+   * @return An index of all the Nodes in the tree.
+   */
+  static PathIndex build(DirCacheTree.Directory root) {
+    return EMPTY.update(null, root);
+  }
+
+  /**
+   * Create a new index reflecting the differences between two trees.
+   *
+   * This index must be the index of the previous tree.
+   * Subtrees that are the same instance in both trees, or that are equal (which for a Directory means having the same digest), are skipped,
+   * so the cost is proportional to the number of Nodes that have changed.
+   * For a skipped subtree the index keeps the equal Node from the previous tree.
+   *
+   * @param previous The root of the tree that this index represents, may be null.
+   * @param current The root of the new tree, may be null.
+   * @return An index of all the Nodes in the new tree.
+   */
+  PathIndex update(DirCacheTree.Directory previous, DirCacheTree.Directory current) {
+    return diff("", previous, current);
+  }
+
+  /**
+   * Get the number of Nodes in the index.
+   * @return the number of Nodes in the index.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Get a Node by its key.
+   * @param key The path of the Node relative to the root of the tree, with '/' separators.
+   * @return The Node, or null if it is not in the index.
+   */
+  DirCacheTree.Node get(String key) {
+    return root.get(key, spread(key.hashCode()), 0);
+  }
+
+  /**
+   * Create a new index with the key mapped to the Node.
+   * @param key The path of the Node relative to the root of the tree, with '/' separators.
+   * @param value The Node.
+   * @return A new index, or this if the key was already mapped to the same Node.
+   */
+  PathIndex put(String key, DirCacheTree.Node value) {
+    Change change = new Change();
+    TrieNode newRoot = root.put(key, spread(key.hashCode()), 0, value, change);
+    return newRoot == root ? this : new PathIndex(newRoot, change.added ? size + 1 : size);
+  }
+
+  /**
+   * Create a new index without the key.
+   * @param key The path of the Node relative to the root of the tree, with '/' separators.
+   * @return A new index, or this if the key was not in the index.
+   */
+  PathIndex remove(String key) {
+    TrieNode newRoot = root.remove(key, spread(key.hashCode()), 0);
+    if (newRoot == root) {
+      return this;
+    }
+    return new PathIndex(newRoot == null ? BitmapNode.EMPTY : newRoot, size - 1);
+  }
+
+  /**
+   * Convert a relative path into a key.
+   *
+   * Leading, trailing and repeated separators and "." segments are removed, if there are none the relativePath is returned without allocating.
+   *
+   * @param relativePath The path relative to the root of the tree, with '/' separators.
+   * @return The key for the relativePath.
+   * @throws IllegalArgumentException if the relativePath contains a ".." segment.
+   */
+  static String key(String relativePath) {
+    int len = relativePath.length();
+    boolean normal = true;
+    int start = 0;
+    for (int i = 0; i <= len; ++i) {
+      if (i == len || relativePath.charAt(i) == '/') {
+        int segmentLength = i - start;
+        if (segmentLength == 2 && relativePath.charAt(start) == '.' && relativePath.charAt(start + 1) == '.') {
+          throw new IllegalArgumentException("Path may not contain \"..\"");
+        } else if ((segmentLength == 0 && len > 0) || (segmentLength == 1 && relativePath.charAt(start) == '.')) {
+          normal = false;
+        }
+        start = i + 1;
+      }
+    }
+    if (normal) {
+      return relativePath;
+    }
+    StringBuilder result = new StringBuilder(len);
+    for (String segment : relativePath.split("/")) {
+      if (!segment.isEmpty() && !".".equals(segment)) {
+        if (result.length() > 0) {
+          result.append('/');
+        }
+        result.append(segment);
+      }
+    }
+    return result.toString();
+  }
+
+  static String childKey(String parentKey, String name) {
+    return parentKey.isEmpty() ? name : parentKey + '/' + name;
+  }
+
+  private PathIndex diff(String key, DirCacheTree.Node before, DirCacheTree.Node after) {
+    if (before == after || (before != null && before.equals(after))) {
+      return this;
+    }
+    if (after == null) {
+      return removeAll(key, before);
+    }
+    PathIndex result = put(key, after);
+    DirCacheTree.Directory beforeDir = before instanceof DirCacheTree.Directory d ? d : null;
+    if (after instanceof DirCacheTree.Directory afterDir) {
+      for (DirCacheTree.Node child : afterDir.getChildren()) {
+        result = result.diff(childKey(key, child.getName()), beforeDir == null ? null : beforeDir.get(child.getName()), child);
+      }
+      if (beforeDir != null) {
+        for (DirCacheTree.Node child : beforeDir.getChildren()) {
+          if (afterDir.get(child.getName()) == null) {
+            result = result.removeAll(childKey(key, child.getName()), child);
+          }
+        }
+      }
+    } else if (beforeDir != null) {
+      for (DirCacheTree.Node child : beforeDir.getChildren()) {
+        result = result.removeAll(childKey(key, child.getName()), child);
+      }
+    }
+    return result;
+  }
+
+  private PathIndex removeAll(String key, DirCacheTree.Node node) {
+    PathIndex result = remove(key);
+    if (node instanceof DirCacheTree.Directory dir) {
+      for (DirCacheTree.Node child : dir.getChildren()) {
+        result = result.removeAll(childKey(key, child.getName()), child);
+      }
+    }
+    return result;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static class Change {
+    private boolean added;
+  }
+
+  private abstract static class TrieNode {
+
+    abstract DirCacheTree.Node get(String key, int hash, int shift);
+
+    abstract TrieNode put(String key, int hash, int shift, DirCacheTree.Node value, Change change);
+
+    /**
+     * Remove a key.
+     * @return this if the key was not found, null if the node is now empty, otherwise the new node.
+     */
+    abstract TrieNode remove(String key, int hash, int shift);
+
+    /**
+     * Return the key if this node contains just one key (and no sub-nodes), so that the parent can hold it directly.
+     */
+    abstract String singleKey();
+
+    abstract DirCacheTree.Node singleValue();
+  }
+
+  /**
+   * Node holding up to 32 entries, each of which is either a key and value or a sub-node (with a null key).
+   */
+  private static final class BitmapNode extends TrieNode {
+
+    private static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    private final int bitmap;
+    private final Object[] array;
+
+    BitmapNode(int bitmap, Object[] array) {
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    private int index(int bit) {
+      return 2 * Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    DirCacheTree.Node get(String key, int hash, int shift) {
+      int bit = 1 << ((hash >>> shift) & 31);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      int idx = index(bit);
+      Object k = array[idx];
+      if (k == null) {
+        return ((TrieNode) array[idx + 1]).get(key, hash, shift + 5);
+      }
+      return key.equals(k) ? (DirCacheTree.Node) array[idx + 1] : null;
+    }
+
+    @Override
+    TrieNode put(String key, int hash, int shift, DirCacheTree.Node value, Change change) {
+      int bit = 1 << ((hash >>> shift) & 31);
+      int idx = index(bit);
+      if ((bitmap & bit) == 0) {
+        change.added = true;
+        Object[] newArray = new Object[array.length + 2];
+        System.arraycopy(array, 0, newArray, 0, idx);
+        newArray[idx] = key;
+        newArray[idx + 1] = value;
+        System.arraycopy(array, idx, newArray, idx + 2, array.length - idx);
+        return new BitmapNode(bitmap | bit, newArray);
+      }
+      Object k = array[idx];
+      Object v = array[idx + 1];
+      if (k == null) {
+        TrieNode sub = ((TrieNode) v).put(key, hash, shift + 5, value, change);
+        return sub == v ? this : with(idx, null, sub);
+      }
+      if (key.equals(k)) {
+        return v == value ? this : with(idx, k, value);
+      }
+      change.added = true;
+      return with(idx, null, pair(shift + 5, (String) k, (DirCacheTree.Node) v, key, hash, value));
+    }
+
+    @Override
+    TrieNode remove(String key, int hash, int shift) {
+      int bit = 1 << ((hash >>> shift) & 31);
+      if ((bitmap & bit) == 0) {
+        return this;
+      }
+      int idx = index(bit);
+      Object k = array[idx];
+      Object v = array[idx + 1];
+      if (k == null) {
+        TrieNode sub = ((TrieNode) v).remove(key, hash, shift + 5);
+        if (sub == v) {
+          return this;
+        } else if (sub == null) {
+          return without(idx, bit);
+        }
+        String single = sub.singleKey();
+        return single == null ? with(idx, null, sub) : with(idx, single, sub.singleValue());
+      }
+      if (!key.equals(k)) {
+        return this;
+      }
+      return without(idx, bit);
+    }
+
+    @Override
+    String singleKey() {
+      return array.length == 2 ? (String) array[0] : null;
+    }
+
+    @Override
+    DirCacheTree.Node singleValue() {
+      return (DirCacheTree.Node) array[1];
+    }
+
+    private BitmapNode with(int idx, Object key, Object value) {
+      Object[] newArray = array.clone();
+      newArray[idx] = key;
+      newArray[idx + 1] = value;
+      return new BitmapNode(bitmap, newArray);
+    }
+
+    private BitmapNode without(int idx, int bit) {
+      if (bitmap == bit) {
+        return null;
+      }
+      Object[] newArray = new Object[array.length - 2];
+      System.arraycopy(array, 0, newArray, 0, idx);
+      System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+      return new BitmapNode(bitmap ^ bit, newArray);
+    }
+
+    private static TrieNode pair(int shift, String key1, DirCacheTree.Node value1, String key2, int hash2, DirCacheTree.Node value2) {
+      int hash1 = spread(key1.hashCode());
+      if (hash1 == hash2) {
+        return new CollisionNode(hash1, new String[] {key1, key2}, new DirCacheTree.Node[] {value1, value2});
+      }
+      Change ignored = new Change();
+      return EMPTY.put(key1, hash1, shift, value1, ignored).put(key2, hash2, shift, value2, ignored);
+    }
+  }
+
+  /**
+   * Node holding entries whose keys have exactly the same hash.
+   */
+  private static final class CollisionNode extends TrieNode {
+
+    private final int hash;
+    private final String[] keys;
+    private final DirCacheTree.Node[] values;
+
+    CollisionNode(int hash, String[] keys, DirCacheTree.Node[] values) {
+      this.hash = hash;
+      this.keys = keys;
+      this.values = values;
+    }
+
+    private int indexOf(String key) {
+      for (int i = 0; i < keys.length; ++i) {
+        if (keys[i].equals(key)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    DirCacheTree.Node get(String key, int hash, int shift) {
+      if (hash != this.hash) {
+        return null;
+      }
+      int idx = indexOf(key);
+      return idx < 0 ? null : values[idx];
+    }
+
+    @Override
+    TrieNode put(String key, int hash, int shift, DirCacheTree.Node value, Change change) {
+      if (hash != this.hash) {
+        BitmapNode wrapper = new BitmapNode(1 << ((this.hash >>> shift) & 31), new Object[] {null, this});
+        return wrapper.put(key, hash, shift, value, change);
+      }
+      int idx = indexOf(key);
+      if (idx >= 0) {
+        if (values[idx] == value) {
+          return this;
+        }
+        DirCacheTree.Node[] newValues = values.clone();
+        newValues[idx] = value;
+        return new CollisionNode(hash, keys, newValues);
+      }
+      change.added = true;
+      String[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+      DirCacheTree.Node[] newValues = Arrays.copyOf(values, values.length + 1);
+      newKeys[keys.length] = key;
+      newValues[values.length] = value;
+      return new CollisionNode(hash, newKeys, newValues);
+    }
+
+    @Override
+    TrieNode remove(String key, int hash, int shift) {
+      int idx = hash == this.hash ? indexOf(key) : -1;
+      if (idx < 0) {
+        return this;
+      }
+      if (keys.length == 1) {
+        return null;
+      }
+      String[] newKeys = new String[keys.length - 1];
+      DirCacheTree.Node[] newValues = new DirCacheTree.Node[values.length - 1];
+      System.arraycopy(keys, 0, newKeys, 0, idx);
+      System.arraycopy(keys, idx + 1, newKeys, idx, keys.length - idx - 1);
+      System.arraycopy(values, 0, newValues, 0, idx);
+      System.arraycopy(values, idx + 1, newValues, idx, values.length - idx - 1);
+      return new CollisionNode(hash, newKeys, newValues);
+    }
+
+    @Override
+    String singleKey() {
+      return keys.length == 1 ? keys[0] : null;
+    }
+
+    @Override
+    DirCacheTree.Node singleValue() {
+      return values[0];
+    }
+  }
+
+}
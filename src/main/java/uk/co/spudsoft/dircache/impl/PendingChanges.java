@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Path;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import java.nio.file.WatchEvent;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes reported by a WatchService that have not yet been applied to the tree.
+ *
+ * Changes are recorded at three levels of detail:
+ * <ul>
+ * <li>Individual entries within a watched directory, taken from the context of each WatchEvent.
+ * <li>Whole directories that must be relisted, when an event cannot be attributed to a single entry.
+ * <li>A full walk, when the WatchService has overflowed and events have been lost.
+ * </ul>
+ *
+ * This class is not thread safe, it is only accessed by the watch thread (or, with a {@link DirCacheEngine}, whilst holding its own monitor).
+ *
+ * @author jtalbut
+ */
+class PendingChanges {
+
+  private final Map<Path, Set<String>> entries = new LinkedHashMap<>();
+  private final Set<Path> dirs = new HashSet<>();
+  private boolean fullWalk;
+
+  /**
+   * Record a single event reported for a watched directory.
+   * @param dir The watched directory (the watchable of the WatchKey).
+   * @param event The event reported.
+   */
+  void add(Path dir, WatchEvent<?> event) {
+    if (event.kind() == OVERFLOW) {
+      fullWalk = true;
+    } else if (event.context() instanceof Path entry && entry.getFileName() != null) {
+      entries.computeIfAbsent(dir, k -> new HashSet<>()).add(entry.getFileName().toString());
+    } else {
+      dirs.add(dir);
+      entries.computeIfAbsent(dir, k -> new HashSet<>());
+    }
+  }
+
+  /**
+   * Record that a single entry has changed, without any event having been reported for it.
+   * @param dir The directory containing the entry.
+   * @param name The name of the entry.
+   */
+  void change(Path dir, String name) {
+    entries.computeIfAbsent(dir, k -> new HashSet<>()).add(name);
+  }
+
+  /**
+   * Record that a directory must be relisted, without any event having been reported for it.
+   * @param dir The directory to relist.
+   */
+  void relist(Path dir) {
+    dirs.add(dir);
+    entries.computeIfAbsent(dir, k -> new HashSet<>());
+  }
+
+  /**
+   * Return true if events have been lost and a full walk is required.
+   * @return true if events have been lost and a full walk is required.
+   */
+  boolean isFullWalk() {
+    return fullWalk;
+  }
+
+  /**
+   * Return true if there are no pending changes.
+   * @return true if there are no pending changes.
+   */
+  boolean isEmpty() {
+    return !fullWalk && entries.isEmpty();
+  }
+
+  /**
+   * Get the names of the changed entries in each changed directory, in the order in which the directories were first reported.
+   * @return the names of the changed entries in each changed directory.
+   */
+  Map<Path, Set<String>> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Return true if the directory must be relisted, rather than just having individual entries updated.
+   * @param dir The directory being considered.
+   * @return true if the directory must be relisted.
+   */
+  boolean isRelistRequired(Path dir) {
+    return dirs.contains(dir);
+  }
+
+  /**
+   * Discard all pending changes.
+   */
+  void clear() {
+    entries.clear();
+    dirs.clear();
+    fullWalk = false;
+  }
+
+  @Override
+  public String toString() {
+    return fullWalk ? "full walk" : entries.toString();
+  }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import uk.co.spudsoft.dircache.DirCacheIndex;
+import uk.co.spudsoft.dircache.DirCacheSnapshot;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * Immutable secondary indexes of the Files in a tree, by extension, by modified timestamp and by size.
+ *
+ * Each index is a persistent treap ordered by (value, path).
+ * Updates copy only the path from the root of the treap to the changed entry, so a new set of indexes shares almost all of its structure
+ * with its predecessor and every snapshot can keep its own indexes.
+ * Like {@link PathIndex} the indexes are updated by walking the previous and current trees together, skipping subtrees that are the same,
+ * so the cost of an update is proportional to the number of changed Files (times log n), not the size of the tree.
+ *
+ * @author jtalbut
+ */
+final class SecondaryIndexes implements DirCacheSnapshot.FileIndexes {
+
+  /**
+   * A node of a persistent treap.
+   */
+  private static final class Entry {
+
+    private final long number;
+    private final String text;
+    private final String path;
+    private final DirCacheTree.File file;
+    private final int priority;
+    private final Entry left;
+    private final Entry right;
+
+    Entry(long number, String text, String path, DirCacheTree.File file, int priority, Entry left, Entry right) {
+      this.number = number;
+      this.text = text;
+      this.path = path;
+      this.file = file;
+      this.priority = priority;
+      this.left = left;
+      this.right = right;
+    }
+
+    Entry withChildren(Entry newLeft, Entry newRight) {
+      return newLeft == left && newRight == right ? this : new Entry(number, text, path, file, priority, newLeft, newRight);
+    }
+
+    int compareTo(long otherNumber, String otherText, String otherPath) {
+      int cmp = comparePrimary(otherNumber, otherText);
+      return cmp != 0 ? cmp : path.compareTo(otherPath);
+    }
+
+    int comparePrimary(long otherNumber, String otherText) {
+      int cmp = Long.compare(number, otherNumber);
+      return cmp != 0 ? cmp : text.compareTo(otherText);
+    }
+  }
+
+  private final boolean byExtension;
+  private final boolean byModified;
+  private final boolean bySize;
+  private final Entry extensions;
+  private final Entry modifieds;
+  private final Entry sizes;
+
+  private SecondaryIndexes(boolean byExtension, boolean byModified, boolean bySize, Entry extensions, Entry modifieds, Entry sizes) {
+    this.byExtension = byExtension;
+    this.byModified = byModified;
+    this.bySize = bySize;
+    this.extensions = extensions;
+    this.modifieds = modifieds;
+    this.sizes = sizes;
+  }
+
+  /**
+   * Create empty indexes.
+   *
+   * @param indexes The indexes to maintain.
+   * @return Empty indexes, or null if no indexes are to be maintained.
+   */
+  static SecondaryIndexes empty(Set<DirCacheIndex> indexes) {
+    if (indexes.isEmpty()) {
+      return null;
+    }
+    return new SecondaryIndexes(indexes.contains(DirCacheIndex.EXTENSION), indexes.contains(DirCacheIndex.MODIFIED), indexes.contains(DirCacheIndex.SIZE), null, null, null);
+  }
+
+  /**
+   * Get the extension of a file name, as used by the extension index.
+   *
+   * @param name The file name.
+   * @return The part of the name after the last '.', in lower case, or the empty string if there is no '.' (other than at the start of the name).
+   */
+  static String extension(String name) {
+    int dot = name.lastIndexOf('.');
+    return dot <= 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Mutable state for an update, holding the roots of the treaps as they are modified.
+   */
+  private final class Update {
+
+    private Entry extensions = SecondaryIndexes.this.extensions;
+    private Entry modifieds = SecondaryIndexes.this.modifieds;
+    private Entry sizes = SecondaryIndexes.this.sizes;
+
+    void add(String key, DirCacheTree.File file) {
+      int priority = priority(key);
+      if (byExtension) {
+        extensions = insert(extensions, 0, extension(file.getName()), key, file, priority);
+      }
+      if (byModified) {
+        modifieds = insert(modifieds, file.getModifiedEpochNanos(), "", key, file, priority);
+      }
+      if (bySize) {
+        sizes = insert(sizes, file.getSize(), "", key, file, priority);
+      }
+    }
+
+    void remove(String key, DirCacheTree.File file) {
+      if (byExtension) {
+        extensions = delete(extensions, 0, extension(file.getName()), key);
+      }
+      if (byModified) {
+        modifieds = delete(modifieds, file.getModifiedEpochNanos(), "", key);
+      }
+      if (bySize) {
+        sizes = delete(sizes, file.getSize(), "", key);
+      }
+    }
+
+    void addAll(String key, DirCacheTree.Node node) {
+      if (node instanceof DirCacheTree.File file) {
+        add(key, file);
+      } else if (node instanceof DirCacheTree.Directory dir) {
+        for (DirCacheTree.Node child : dir.getChildren()) {
+          addAll(PathIndex.childKey(key, child.getName()), child);
+        }
+      }
+    }
+
+    void removeAll(String key, DirCacheTree.Node node) {
+      if (node instanceof DirCacheTree.File file) {
+        remove(key, file);
+      } else if (node instanceof DirCacheTree.Directory dir) {
+        for (DirCacheTree.Node child : dir.getChildren()) {
+          removeAll(PathIndex.childKey(key, child.getName()), child);
+        }
+      }
+    }
+
+    void diff(String key, DirCacheTree.Node previous, DirCacheTree.Node current) {
+      if (previous == current || (previous != null && previous.equals(current))) {
+        return;
+      }
+      if (previous instanceof DirCacheTree.Directory previousDir && current instanceof DirCacheTree.Directory currentDir) {
+        for (DirCacheTree.Node child : currentDir.getChildren()) {
+          diff(PathIndex.childKey(key, child.getName()), previousDir.get(child.getName()), child);
+        }
+        for (DirCacheTree.Node child : previousDir.getChildren()) {
+          if (currentDir.get(child.getName()) == null) {
+            removeAll(PathIndex.childKey(key, child.getName()), child);
+          }
+        }
+      } else {
+        removeAll(key, previous);
+        addAll(key, current);
+      }
+    }
+  }
+
+  /**
+   * Create new indexes reflecting the differences between two trees.
+   *
+   * These indexes must be the indexes of the previous tree.
+   *
+   * @param previous The root of the tree that these indexes represent, may be null.
+   * @param current The root of the new tree, may be null.
+   * @return Indexes of all the Files in the new tree.
+   */
+  SecondaryIndexes update(DirCacheTree.Directory previous, DirCacheTree.Directory current) {
+    Update update = new Update();
+    update.diff("", previous, current);
+    if (update.extensions == extensions && update.modifieds == modifieds && update.sizes == sizes) {
+      return this;
+    }
+    return new SecondaryIndexes(byExtension, byModified, bySize, update.extensions, update.modifieds, update.sizes);
+  }
+
+  @Override
+  public List<DirCacheTree.File> withExtension(String extension) {
+    if (!byExtension) {
+      return null;
+    }
+    List<DirCacheTree.File> result = new ArrayList<>();
+    range(extensions, 0, extension, 0, extension, result);
+    return result;
+  }
+
+  @Override
+  public List<DirCacheTree.File> modifiedBetween(long fromEpochNanos, long toEpochNanos) {
+    if (!byModified) {
+      return null;
+    }
+    List<DirCacheTree.File> result = new ArrayList<>();
+    range(modifieds, fromEpochNanos, "", toEpochNanos, "", result);
+    return result;
+  }
+
+  @Override
+  public List<DirCacheTree.File> sizeBetween(long minSize, long maxSize) {
+    if (!bySize) {
+      return null;
+    }
+    List<DirCacheTree.File> result = new ArrayList<>();
+    range(sizes, minSize, "", maxSize, "", result);
+    return result;
+  }
+
+  /**
+   * Get the number of Files in the index with the most entries.
+   * @return the number of Files in the index with the most entries.
+   */
+  int size() {
+    return Math.max(count(extensions), Math.max(count(modifieds), count(sizes)));
+  }
+
+  private static int count(Entry entry) {
+    return entry == null ? 0 : 1 + count(entry.left) + count(entry.right);
+  }
+
+  private static int priority(String key) {
+    // The priority only needs to be well distributed and deterministic, so the same File has the same priority in every index
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  private static Entry insert(Entry entry, long number, String text, String path, DirCacheTree.File file, int priority) {
+    if (entry == null) {
+      return new Entry(number, text, path, file, priority, null, null);
+    }
+    int cmp = entry.compareTo(number, text, path);
+    if (cmp == 0) {
+      return new Entry(number, text, path, file, entry.priority, entry.left, entry.right);
+    }
+    if (priority > entry.priority) {
+      Entry[] parts = split(entry, number, text, path);
+      return new Entry(number, text, path, file, priority, parts[0], parts[1]);
+    }
+    if (cmp > 0) {
+      return entry.withChildren(insert(entry.left, number, text, path, file, priority), entry.right);
+    } else {
+      return entry.withChildren(entry.left, insert(entry.right, number, text, path, file, priority));
+    }
+  }
+
+  /**
+   * Split a treap into the entries before a key and the entries after it (there is no entry with the key).
+   */
+  private static Entry[] split(Entry entry, long number, String text, String path) {
+    if (entry == null) {
+      return new Entry[2];
+    }
+    if (entry.compareTo(number, text, path) < 0) {
+      Entry[] parts = split(entry.right, number, text, path);
+      parts[0] = entry.withChildren(entry.left, parts[0]);
+      return parts;
+    } else {
+      Entry[] parts = split(entry.left, number, text, path);
+      parts[1] = entry.withChildren(parts[1], entry.right);
+      return parts;
+    }
+  }
+
+  private static Entry delete(Entry entry, long number, String text, String path) {
+    if (entry == null) {
+      return null;
+    }
+    int cmp = entry.compareTo(number, text, path);
+    if (cmp == 0) {
+      return merge(entry.left, entry.right);
+    } else if (cmp > 0) {
+      return entry.withChildren(delete(entry.left, number, text, path), entry.right);
+    } else {
+      return entry.withChildren(entry.left, delete(entry.right, number, text, path));
+    }
+  }
+
+  /**
+   * Merge two treaps, where every entry in the first is before every entry in the second.
+   */
+  private static Entry merge(Entry first, Entry second) {
+    if (first == null) {
+      return second;
+    } else if (second == null) {
+      return first;
+    } else if (first.priority > second.priority) {
+      return first.withChildren(first.left, merge(first.right, second));
+    } else {
+      return second.withChildren(merge(first, second.left), second.right);
+    }
+  }
+
+  private static void range(Entry entry, long fromNumber, String fromText, long toNumber, String toText, List<DirCacheTree.File> result) {
+    if (entry == null) {
+      return;
+    }
+    boolean afterFrom = entry.comparePrimary(fromNumber, fromText) >= 0;
+    boolean beforeTo = entry.comparePrimary(toNumber, toText) <= 0;
+    if (afterFrom) {
+      range(entry.left, fromNumber, fromText, toNumber, toText, result);
+    }
+    if (afterFrom && beforeTo) {
+      result.add(entry.file);
+    }
+    if (beforeTo) {
+      range(entry.right, fromNumber, fromText, toNumber, toText, result);
+    }
+  }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * Reading and writing of a tree to a compact binary file, so that a DirCache can be made available immediately on startup.
+ *
+ * The file contains a header identifying the root path and ignore pattern that the tree was walked with and the number of Nodes below the root,
+ * followed by the Nodes in depth first order.
+ * Each Node is written as its type, name and modified timestamp, followed by its size (for a File) or the number of children (for a Directory).
+ * Digests are not written, they are recalculated as the tree is read.
+ *
+ * The counts in the file are checked against the header and the length of the file before anything is allocated for them,
+ * so a corrupt or truncated snapshot is reported as an IOException rather than exhausting the heap.
+ *
+ * @author jtalbut
+ */
+final class SnapshotFile {
+
+  private static final int MAGIC = 0x44435331;
+  private static final int VERSION = 2;
+  private static final byte TYPE_DIR = 0;
+  private static final byte TYPE_FILE = 1;
+  /**
+   * The smallest number of bytes that a Node can take: type, empty name, modified timestamp and child count.
+   */
+  private static final int MIN_NODE_BYTES = 1 + 2 + 8 + 4;
+
+  private SnapshotFile() {
+  }
+
+  /**
+   * Write a tree to a snapshot file.
+   *
+   * The snapshot is written to a temporary file that then replaces the target, so a failure part way through does not leave a corrupt snapshot.
+   *
+   * @param file The file to write.
+   * @param root The root of the tree to write.
+   * @param ignore The ignore pattern used when walking the tree.
+   * @throws IOException if the file cannot be written.
+   */
+  static void write(Path file, DirCacheTree.Directory root, String ignore) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeUTF(root.getPath().toAbsolutePath().normalize().toString());
+      out.writeUTF(ignore);
+      out.writeLong(root.getFileCount() + root.getDirectoryCount());
+      writeNode(out, root);
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void writeNode(DataOutputStream out, DirCacheTree.Node node) throws IOException {
+    if (node instanceof DirCacheTree.Directory dir) {
+      List<DirCacheTree.Node> children = dir.getChildren();
+      out.writeByte(TYPE_DIR);
+      out.writeUTF(node.getName());
+      out.writeLong(node.getModifiedEpochNanos());
+      out.writeInt(children.size());
+      for (DirCacheTree.Node child : children) {
+        writeNode(out, child);
+      }
+    } else {
+      out.writeByte(TYPE_FILE);
+      out.writeUTF(node.getName());
+      out.writeLong(node.getModifiedEpochNanos());
+      out.writeLong(((DirCacheTree.File) node).getSize());
+    }
+  }
+
+  /**
+   * Read a tree from a snapshot file.
+   *
+   * @param file The file to read.
+   * @param rootPath The root path of the DirCache, which must match the root path that the snapshot was written for.
+   * @param ignore The ignore pattern of the DirCache, which must match the ignore pattern that the snapshot was written with.
+   * @return The root of the tree, or null if the snapshot was written for a different root path or ignore pattern.
+   * @throws IOException if the file cannot be read or is not a valid snapshot.
+   */
+  static DirCacheTree.Directory read(Path file, Path rootPath, String ignore) throws IOException {
+    long length = Files.size(file);
+    try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+            DataInputStream in = new DataInputStream(counter)) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a valid snapshot file: " + file);
+      }
+      if (!in.readUTF().equals(rootPath.toAbsolutePath().normalize().toString()) || !in.readUTF().equals(ignore)) {
+        return null;
+      }
+      long nodes = in.readLong();
+      if (nodes < 0 || nodes > (length - counter.position) / MIN_NODE_BYTES) {
+        throw new IOException("Invalid node count in snapshot file " + file + ": " + nodes);
+      }
+      if (in.readByte() != TYPE_DIR) {
+        throw new IOException("Not a valid snapshot file: " + file);
+      }
+      in.readUTF();
+      SnapshotReader reader = new SnapshotReader(file, in, counter, length, nodes);
+      DirCacheTree.Directory root = reader.readDirectory(rootPath, in.readLong());
+      if (reader.nodesRemaining != 0 || counter.position != length) {
+        throw new IOException("Snapshot file " + file + " does not match its header");
+      }
+      return root;
+    }
+  }
+
+  /**
+   * The state of a single read of a snapshot file, used to check each count before it is trusted.
+   */
+  private static final class SnapshotReader {
+
+    private final Path file;
+    private final DataInputStream in;
+    private final CountingInputStream counter;
+    private final long length;
+    private long nodesRemaining;
+
+    SnapshotReader(Path file, DataInputStream in, CountingInputStream counter, long length, long nodes) {
+      this.file = file;
+      this.in = in;
+      this.counter = counter;
+      this.length = length;
+      this.nodesRemaining = nodes;
+    }
+
+    DirCacheTree.Directory readDirectory(Path path, long modified) throws IOException {
+      int count = in.readInt();
+      if (count < 0 || count > nodesRemaining || count > (length - counter.position) / MIN_NODE_BYTES) {
+        throw new IOException("Invalid child count in snapshot file " + file + " for " + path + ": " + count);
+      }
+      nodesRemaining -= count;
+      List<DirCacheTree.Node> children = new ArrayList<>(count);
+      for (int i = 0; i < count; ++i) {
+        byte type = in.readByte();
+        String name = in.readUTF();
+        long childModified = in.readLong();
+        if (type == TYPE_DIR) {
+          children.add(readDirectory(path.resolve(name), childModified));
+        } else if (type == TYPE_FILE) {
+          children.add(new DirCacheTree.File(path, name, childModified, in.readLong()));
+        } else {
+          throw new IOException("Invalid node type in snapshot file: " + type);
+        }
+      }
+      return new DirCacheTree.Directory(path, path.getFileName().toString(), modified, children);
+    }
+  }
+
+  /**
+   * InputStream that records how many bytes have been read through it.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+
+    private long position;
+
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result >= 0) {
+        ++position;
+      }
+      return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int result = super.read(b, off, len);
+      if (result > 0) {
+        position += result;
+      }
+      return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long result = super.skip(n);
+      position += result;
+      return result;
+    }
+  }
+
+}
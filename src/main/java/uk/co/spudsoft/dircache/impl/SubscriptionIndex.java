@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import uk.co.spudsoft.dircache.DirCacheListener;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * Subscriptions to changes within subtrees of a DirCache, indexed by the path of the subtree.
+ *
+ * The index is a trie with one level per path segment.
+ * When the tree changes the index is walked alongside the previous and current trees, and any part of the index whose Directory
+ * is the same (the same instance, or with the same digest) in both trees is skipped.
+ * The cost of routing a change is thus proportional to the number of subscriptions on the path to the changed Nodes,
+ * not to the total number of subscriptions.
+ *
+ * @author jtalbut
+ */
+final class SubscriptionIndex {
+
+  private final Entry root = new Entry();
+
+  /**
+   * A level of the trie, holding the subscriptions to the subtree at one path.
+   */
+  private static final class Entry {
+
+    private final Map<String, Entry> children = new ConcurrentHashMap<>();
+    private final List<ListenerDispatcher> subscribers = new CopyOnWriteArrayList<>();
+
+    boolean isEmpty() {
+      return children.isEmpty() && subscribers.isEmpty();
+    }
+  }
+
+  /**
+   * Add a subscription.
+   *
+   * @param key The path of the subtree relative to the root of the tree, as returned by {@link PathIndex#key(java.lang.String)}.
+   * @param dispatcher The dispatcher to be notified of changes to the subtree.
+   */
+  synchronized void add(String key, ListenerDispatcher dispatcher) {
+    Entry entry = root;
+    if (!key.isEmpty()) {
+      for (String segment : key.split("/")) {
+        entry = entry.children.computeIfAbsent(segment, s -> new Entry());
+      }
+    }
+    entry.subscribers.add(dispatcher);
+  }
+
+  /**
+   * Remove all subscriptions for a listener.
+   *
+   * @param listener The listener that was subscribed.
+   * @return true if any subscriptions were removed.
+   */
+  synchronized boolean remove(DirCacheListener listener) {
+    return remove(root, listener);
+  }
+
+  private static boolean remove(Entry entry, DirCacheListener listener) {
+    boolean removed = entry.subscribers.removeIf(dispatcher -> dispatcher.getListener() == listener);
+    for (Map.Entry<String, Entry> child : entry.children.entrySet()) {
+      if (remove(child.getValue(), listener)) {
+        removed = true;
+        if (child.getValue().isEmpty()) {
+          entry.children.remove(child.getKey());
+        }
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Notify the subscribers to every subtree that differs between two trees.
+   *
+   * Each subscriber is passed the previous and current Directory at its path, either of which may be null if the Directory does not exist.
+   *
+   * @param previous The root of the previous tree, may be null.
+   * @param current The root of the current tree, may be null.
+   */
+  void notify(DirCacheTree.Directory previous, DirCacheTree.Directory current) {
+    notify(root, previous, current);
+  }
+
+  private static void notify(Entry entry, DirCacheTree.Directory previous, DirCacheTree.Directory current) {
+    if (previous == current || (previous != null && previous.equals(current))) {
+      return;
+    }
+    for (ListenerDispatcher dispatcher : entry.subscribers) {
+      dispatcher.notify(previous, current);
+    }
+    for (Map.Entry<String, Entry> child : entry.children.entrySet()) {
+      String name = child.getKey();
+      DirCacheTree.Directory previousChild = previous == null ? null : previous.getDir(name);
+      DirCacheTree.Directory currentChild = current == null ? null : current.getDir(name);
+      notify(child.getValue(), previousChild, currentChild);
+    }
+  }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ * Queries that walk a tree lazily, skipping any subtree that cannot contain a result.
+ *
+ * The walk is depth first, with each Directory reported before its contents, and it only goes as far as the consumer of the Stream needs,
+ * so a query that is limited (or uses findFirst) does not visit the rest of the tree.
+ *
+ * @author jtalbut
+ */
+final class TreeQuery {
+
+  private TreeQuery() {
+  }
+
+  /**
+   * Find the Nodes below a Directory that match a predicate.
+   *
+   * @param start The Directory to search, which is not itself tested, may be null.
+   * @param descend Predicate that a Directory must match for its contents to be searched.
+   * @param predicate Predicate that a Node must match to be included in the results.
+   * @return A lazy Stream of the matching Nodes.
+   */
+  static Stream<DirCacheTree.Node> find(DirCacheTree.Directory start, Predicate<? super DirCacheTree.Directory> descend, Predicate<? super DirCacheTree.Node> predicate) {
+    if (start == null) {
+      return Stream.empty();
+    }
+    return StreamSupport.stream(new NodeSpliterator(start, descend, predicate), false);
+  }
+
+  /**
+   * Find the Nodes whose paths relative to the root of the tree match a glob.
+   *
+   * The search starts at the Directory named by the literal prefix of the glob (see {@link DirCacheImpl#globPrefix(java.lang.String)}).
+   * Below that, if the glob does not contain "**", a Directory is only searched if its own path could be the start of a match,
+   * segment by segment, so "a/*&#47;c/*.txt" only looks at the children of Directories called "c" two levels below "a".
+   *
+   * @param root The root of the tree, may be null.
+   * @param glob The glob, in the syntax of {@link java.nio.file.FileSystem#getPathMatcher(java.lang.String)}.
+   * @return A lazy Stream of the matching Nodes.
+   */
+  static Stream<DirCacheTree.Node> glob(DirCacheTree.Directory root, String glob) {
+    if (root == null) {
+      return Stream.empty();
+    }
+    Path rootPath = root.getPath();
+    FileSystem fileSystem = rootPath.getFileSystem();
+    PathMatcher matcher = fileSystem.getPathMatcher("glob:" + glob);
+
+    DirCacheTree.Directory start = root;
+    String prefix = DirCacheImpl.globPrefix(glob);
+    if (!prefix.isEmpty()) {
+      for (String name : prefix.split("/")) {
+        start = start.getDir(name);
+        if (start == null) {
+          return Stream.empty();
+        }
+      }
+    }
+
+    String[] segments = glob.split("/");
+    // A brace group can contain '/', in which case the segments cannot be matched one at a time
+    boolean spanning = bracesSpanSegments(glob);
+    boolean bounded = !spanning && !glob.contains("**");
+    int checked = spanning ? 0 : segments.length;
+    PathMatcher[] segmentMatchers = new PathMatcher[checked];
+    for (int i = 0; i < checked; ++i) {
+      if (segments[i].contains("**")) {
+        checked = i;
+        break;
+      }
+      segmentMatchers[i] = fileSystem.getPathMatcher("glob:" + segments[i]);
+    }
+    int checkedSegments = checked;
+
+    Predicate<DirCacheTree.Directory> descend = dir -> {
+      Path relative = rootPath.relativize(dir.getPath());
+      int depth = relative.getNameCount();
+      if (bounded && depth >= segments.length) {
+        return false;
+      }
+      return depth > checkedSegments || segmentMatchers[depth - 1].matches(relative.getFileName());
+    };
+    return find(start, descend, node -> matcher.matches(rootPath.relativize(node.getPath())));
+  }
+
+  private static boolean bracesSpanSegments(String glob) {
+    int depth = 0;
+    for (int i = 0; i < glob.length(); ++i) {
+      char c = glob.charAt(i);
+      if (c == '\\') {
+        ++i;
+      } else if (c == '{') {
+        ++depth;
+      } else if (c == '}') {
+        --depth;
+      } else if (c == '/' && depth > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Depth first walk of a tree, holding only an iterator for each Directory on the current path.
+   */
+  private static final class NodeSpliterator extends Spliterators.AbstractSpliterator<DirCacheTree.Node> {
+
+    private final Predicate<? super DirCacheTree.Directory> descend;
+    private final Predicate<? super DirCacheTree.Node> predicate;
+    private final Deque<Iterator<DirCacheTree.Node>> stack = new ArrayDeque<>();
+
+    NodeSpliterator(DirCacheTree.Directory start, Predicate<? super DirCacheTree.Directory> descend, Predicate<? super DirCacheTree.Node> predicate) {
+      super(Long.MAX_VALUE, Spliterator.NONNULL | Spliterator.DISTINCT | Spliterator.ORDERED);
+      this.descend = descend;
+      this.predicate = predicate;
+      this.stack.push(start.getChildren().iterator());
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super DirCacheTree.Node> action) {
+      while (!stack.isEmpty()) {
+        Iterator<DirCacheTree.Node> children = stack.peek();
+        if (!children.hasNext()) {
+          stack.pop();
+          continue;
+        }
+        DirCacheTree.Node node = children.next();
+        if (node instanceof DirCacheTree.Directory dir && descend.test(dir)) {
+          stack.push(dir.getChildren().iterator());
+        }
+        if (predicate.test(node)) {
+          action.accept(node);
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Decide which directories are watched by the WatchService and which are polled, when there is a limit on the number of watches.
+ *
+ * Directories that are not watched are "cold", they are checked periodically by comparing their modified timestamp with the tree.
+ * The cold directories are checked in slices, in path order, resuming after the last directory checked, so the cost of each check is bounded
+ * however many directories are cold.
+ * Each observed change to a directory (whether from a WatchEvent or a cold check) adds to its activity, which decays over time.
+ * On each rebalance the most active cold directories are promoted to watches, either into free slots or in place of
+ * watched directories that are significantly less active; if no cold directory has changed since the last rebalance there is nothing to promote.
+ *
+ * Directories are also cold if their watch could not be registered (for example because the kernel limit on watches has been reached),
+ * even when there is no limit here.
+ * Without a limit, once a cold directory has changed every cold directory with some activity is offered for watching again,
+ * so such directories are watched when the kernel has room for them.
+ *
+ * @author jtalbut
+ */
+class WatchBudget {
+
+  /**
+   * A cold directory must be this many times more active than a watched directory to replace it, to prevent directories thrashing between the two.
+   */
+  static final double PROMOTION_FACTOR = 2.0;
+
+  /**
+   * The factor applied to the activity of every directory on each rebalance.
+   */
+  static final double DECAY = 0.5;
+
+  private static final double FORGOTTEN = 0.01;
+
+  private final int limit;
+  private final NavigableSet<Path> cold = new ConcurrentSkipListSet<>();
+  private final Map<Path, Double> activity = new HashMap<>();
+  private Path coldCursor;
+  private boolean coldChanged;
+
+  /**
+   * Constructor.
+   * @param limit The maximum number of directories to watch, Integer.MAX_VALUE for no limit.
+   */
+  WatchBudget(int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Watch budget may not be negative");
+    }
+    this.limit = limit;
+  }
+
+  /**
+   * Get the maximum number of directories to watch.
+   * @return the maximum number of directories to watch.
+   */
+  int getLimit() {
+    return limit;
+  }
+
+  /**
+   * Return true if there is a limit on the number of watches, and thus directories may move between being watched and being cold.
+   * @return true if there is a limit on the number of watches.
+   */
+  boolean isLimited() {
+    return limit != Integer.MAX_VALUE;
+  }
+
+  /**
+   * Get the directories that are not watched and must be checked by polling.
+   * @return the directories that are not watched and must be checked by polling.
+   */
+  Set<Path> getCold() {
+    return cold;
+  }
+
+  /**
+   * Get the next slice of cold directories to check, continuing after the last directory returned by the previous call
+   * and wrapping around to the start.
+   * 
+   * The slice continues from where the previous one stopped even if that directory is no longer cold.
+   * 
+   * @param max The maximum number of directories to return.
+   * @return Up to max cold directories, each directory at most once.
+   */
+  synchronized List<Path> nextCold(int max) {
+    List<Path> result = new ArrayList<>(Math.min(max, cold.size()));
+    Iterator<Path> iter = (coldCursor == null ? cold : cold.tailSet(coldCursor, false)).iterator();
+    while (result.size() < max && iter.hasNext()) {
+      result.add(iter.next());
+    }
+    if (coldCursor != null) {
+      iter = cold.headSet(coldCursor, true).iterator();
+      while (result.size() < max && iter.hasNext()) {
+        result.add(iter.next());
+      }
+    }
+    coldCursor = result.isEmpty() ? null : result.get(result.size() - 1);
+    return result;
+  }
+
+  boolean isCold(Path dir) {
+    return cold.contains(dir);
+  }
+
+  void markCold(Path dir) {
+    cold.add(dir);
+  }
+
+  void removeCold(Path dir) {
+    cold.remove(dir);
+  }
+
+  /**
+   * Forget a directory and any directories within it, because it no longer exists.
+   * @param dir The directory that no longer exists.
+   */
+  void removeColdUnder(Path dir) {
+    cold.removeIf(p -> p.startsWith(dir));
+  }
+
+  /**
+   * Forget all the cold directories that are not in a set of directories found by a walk.
+   * @param dirsFound The directories found by a walk.
+   */
+  void retainCold(Set<Path> dirsFound) {
+    cold.retainAll(dirsFound);
+  }
+
+  /**
+   * Forget everything.
+   */
+  synchronized void clear() {
+    cold.clear();
+    activity.clear();
+    coldCursor = null;
+    coldChanged = false;
+  }
+
+  /**
+   * Record that a change has been observed in a directory.
+   * @param dir The directory that changed.
+   */
+  synchronized void recordChange(Path dir) {
+    activity.merge(dir, 1.0, Double::sum);
+    if (cold.contains(dir)) {
+      coldChanged = true;
+    }
+  }
+
+  synchronized double getActivity(Path dir) {
+    return activity.getOrDefault(dir, 0.0);
+  }
+
+  /**
+   * The changes to make to the watched directories.
+   */
+  static class Rebalance {
+
+    private final List<Path> toWatch;
+    private final List<Path> toUnwatch;
+
+    Rebalance(List<Path> toWatch, List<Path> toUnwatch) {
+      this.toWatch = toWatch;
+      this.toUnwatch = toUnwatch;
+    }
+
+    /**
+     * Get the cold directories that should be watched.
+     * @return the cold directories that should be watched.
+     */
+    List<Path> getToWatch() {
+      return toWatch;
+    }
+
+    /**
+     * Get the watched directories that should become cold, to make space for the directories in {@link #getToWatch()}.
+     * @return the watched directories that should become cold.
+     */
+    List<Path> getToUnwatch() {
+      return toUnwatch;
+    }
+  }
+
+  /**
+   * Work out which directories should move between being watched and being cold, then decay the activity of all directories.
+   *
+   * Only directories with some activity are considered, and the watched directories are only ranked if there are more candidates than free slots,
+   * so a rebalance when no cold directory has changed costs no more than the decay.
+   * Without a limit all the cold directories with some activity are returned to be watched, and none are unwatched.
+   *
+   * @param watched The directories that are currently watched.
+   * @return The directories that should move between being watched and being cold.
+   */
+  synchronized Rebalance rebalance(Collection<Path> watched) {
+    List<Path> toWatch = new ArrayList<>();
+    List<Path> toUnwatch = new ArrayList<>();
+    if (coldChanged && !isLimited()) {
+      // Without a limit directories are only cold because their watches could not be registered, so try them again
+      for (Path dir : activity.keySet()) {
+        if (cold.contains(dir)) {
+          toWatch.add(dir);
+        }
+      }
+    } else if (coldChanged) {
+      Comparator<Path> byActivity = Comparator.comparingDouble(this::getActivity);
+      List<Path> candidates = new ArrayList<>();
+      for (Path dir : activity.keySet()) {
+        if (cold.contains(dir)) {
+          candidates.add(dir);
+        }
+      }
+      candidates.sort(byActivity.reversed());
+      int free = Math.max(0, limit - watched.size());
+      List<Path> victims = new ArrayList<>();
+      if (candidates.size() > free) {
+        victims.addAll(watched);
+        victims.sort(byActivity);
+      }
+
+      int victim = 0;
+      for (Path candidate : candidates) {
+        if (free > 0) {
+          toWatch.add(candidate);
+          --free;
+        } else if (victim < victims.size() && getActivity(candidate) > PROMOTION_FACTOR * getActivity(victims.get(victim))) {
+          toUnwatch.add(victims.get(victim++));
+          toWatch.add(candidate);
+        } else {
+          break;
+        }
+      }
+    }
+    coldChanged = false;
+
+    for (Iterator<Map.Entry<Path, Double>> iter = activity.entrySet().iterator(); iter.hasNext();) {
+      Map.Entry<Path, Double> entry = iter.next();
+      double value = entry.getValue() * DECAY;
+      if (value < FORGOTTEN) {
+        iter.remove();
+      } else {
+        entry.setValue(value);
+      }
+    }
+    return new Rebalance(toWatch, toUnwatch);
+  }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class ChangeSetTest {
+
+  private static final LocalDateTime TS = LocalDateTime.of(1971, Month.MAY, 6, 10, 10);
+  private static final LocalDateTime TS2 = LocalDateTime.of(1971, Month.MAY, 6, 10, 11);
+
+  @Test
+  public void testIdentical() {
+    DirCacheTree.Directory sub = new DirCacheTree.Directory(Path.of("root", "sub"), TS, Arrays.asList(new DirCacheTree.File(Path.of("root", "sub", "file"), TS, 1)));
+    DirCacheTree.Directory root1 = new DirCacheTree.Directory(Path.of("root"), TS, Arrays.asList(sub));
+    DirCacheTree.Directory root2 = new DirCacheTree.Directory(Path.of("root"), TS, Arrays.asList(sub));
+
+    assertTrue(ChangeSet.diff(root1, root1).isEmpty());
+    assertTrue(ChangeSet.diff(root1, root2).isEmpty());
+  }
+
+  @Test
+  public void testNulls() {
+    DirCacheTree.Directory root = new DirCacheTree.Directory(Path.of("root"), TS, Arrays.asList());
+
+    assertTrue(ChangeSet.diff(null, null).isEmpty());
+    ChangeSet added = ChangeSet.diff(null, root);
+    assertEquals(Arrays.asList(root), added.getAdded());
+    ChangeSet removed = ChangeSet.diff(root, null);
+    assertEquals(Arrays.asList(root), removed.getRemoved());
+  }
+
+  @Test
+  public void testChanges() {
+    DirCacheTree.File unchanged = new DirCacheTree.File(Path.of("root", "sub", "unchanged"), TS, 1);
+    DirCacheTree.File before = new DirCacheTree.File(Path.of("root", "sub", "changed"), TS, 1);
+    DirCacheTree.File after = new DirCacheTree.File(Path.of("root", "sub", "changed"), TS, 2);
+    DirCacheTree.File gone = new DirCacheTree.File(Path.of("root", "sub", "gone"), TS, 1);
+    DirCacheTree.File arrived = new DirCacheTree.File(Path.of("root", "sub", "arrived"), TS, 1);
+    DirCacheTree.Directory other = new DirCacheTree.Directory(Path.of("root", "other"), TS, Arrays.asList(new DirCacheTree.File(Path.of("root", "other", "file"), TS, 1)));
+    DirCacheTree.File typeChangeBefore = new DirCacheTree.File(Path.of("root", "flip"), TS, 1);
+    DirCacheTree.Directory typeChangeAfter = new DirCacheTree.Directory(Path.of("root", "flip"), TS, Arrays.asList());
+
+    DirCacheTree.Directory root1 = new DirCacheTree.Directory(Path.of("root"), TS, Arrays.asList(
+            other
+            , new DirCacheTree.Directory(Path.of("root", "sub"), TS, Arrays.asList(before, gone, unchanged))
+            , typeChangeBefore
+    ));
+    DirCacheTree.Directory root2 = new DirCacheTree.Directory(Path.of("root"), TS, Arrays.asList(
+            typeChangeAfter
+            , other
+            , new DirCacheTree.Directory(Path.of("root", "sub"), TS2, Arrays.asList(arrived, after, unchanged))
+    ));
+
+    ChangeSet changes = ChangeSet.diff(root1, root2);
+    assertFalse(changes.isEmpty());
+    assertSame(root1, changes.getPrevious());
+    assertSame(root2, changes.getCurrent());
+    assertEquals(Arrays.asList(typeChangeAfter, arrived), changes.getAdded());
+    assertEquals(Arrays.asList(typeChangeBefore, gone), changes.getRemoved());
+    assertEquals(Arrays.asList(root2.getDir("sub"), after), changes.getModified());
+
+    ChangeSet files = changes.filter(node -> node instanceof DirCacheTree.File);
+    assertSame(root2, files.getCurrent());
+    assertEquals(Arrays.asList(arrived), files.getAdded());
+    assertEquals(Arrays.asList(typeChangeBefore, gone), files.getRemoved());
+    assertEquals(Arrays.asList(after), files.getModified());
+    assertTrue(changes.filter(node -> false).isEmpty());
+  }
+
+}
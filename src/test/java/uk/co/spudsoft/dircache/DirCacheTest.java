@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class DirCacheTest {
+
+  /**
+   * An implementation of DirCache written against the original interface.
+   */
+  private static class MinimalDirCache implements DirCache {
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public DirCacheTree.Directory getRoot() {
+      return null;
+    }
+
+    @Override
+    public DirCache start() {
+      return this;
+    }
+
+    @Override
+    public DirCache stop() {
+      return this;
+    }
+
+    @Override
+    public DirCache setCallback(Runnable callback) {
+      return this;
+    }
+
+    @Override
+    public LocalDateTime getLastWalkTime() {
+      return null;
+    }
+
+    @Override
+    public void refresh() {
+    }
+  }
+
+  @Test
+  public void testDefaults() {
+    DirCache dirCache = new MinimalDirCache();
+    assertNull(dirCache.getLastWalkDuration());
+    assertEquals(0, dirCache.getIgnoredEventCount());
+    assertEquals(Duration.ZERO, dirCache.getMaxListenerDuration());
+    assertThrows(UnsupportedOperationException.class, () -> dirCache.getSnapshot());
+    assertThrows(UnsupportedOperationException.class, () -> dirCache.hasChangedSince(0));
+    assertThrows(UnsupportedOperationException.class, () -> dirCache.lookup("a"));
+    assertThrows(UnsupportedOperationException.class, () -> dirCache.lookup(Path.of("a")));
+    assertThrows(UnsupportedOperationException.class, () -> dirCache.find("*"));
+    assertThrows(UnsupportedOperationException.class, () -> dirCache.addListener(changes -> { }));
+    assertThrows(UnsupportedOperationException.class, () -> dirCache.subscribe("*", changes -> { }));
+    assertThrows(UnsupportedOperationException.class, () -> dirCache.getChangePublisher());
+  }
+
+}
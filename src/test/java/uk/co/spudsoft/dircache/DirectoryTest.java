@@ -61,6 +61,39 @@ public class DirectoryTest {
     assertNull(instance.getDir("second"));
   }
 
+  /**
+   * Test of the aggregates of Files and Directories below a Directory.
+   */
+  @Test
+  public void testAggregates() {
+    LocalDateTime ts = LocalDateTime.of(1971, Month.MAY, 06, 10, 10);
+    DirCacheTree.Directory sub = new DirCacheTree.Directory(Path.of("first", "sub"), ts, Arrays.asList(
+            new DirCacheTree.Directory(Path.of("first", "sub", "empty"), ts, Arrays.asList()),
+            new DirCacheTree.File(Path.of("first", "sub", "old"), ts.minusDays(1), 10),
+            new DirCacheTree.File(Path.of("first", "sub", "undated"), null, 100)
+    ));
+    DirCacheTree.Directory instance = new DirCacheTree.Directory(Path.of("first"), ts, Arrays.asList(sub, new DirCacheTree.File(Path.of("first", "new"), ts.plusDays(1), 1)));
+
+    assertEquals(111, instance.getTotalSize());
+    assertEquals(3, instance.getFileCount());
+    assertEquals(2, instance.getDirectoryCount());
+    assertEquals(ts.minusDays(1), instance.getOldestFileModified());
+    assertEquals(ts.plusDays(1), instance.getNewestFileModified());
+
+    assertEquals(110, sub.getTotalSize());
+    assertEquals(2, sub.getFileCount());
+    assertEquals(1, sub.getDirectoryCount());
+    assertEquals(ts.minusDays(1), sub.getOldestFileModified());
+    assertEquals(ts.minusDays(1), sub.getNewestFileModified());
+
+    DirCacheTree.Directory empty = sub.getDir("empty");
+    assertEquals(0, empty.getTotalSize());
+    assertEquals(0, empty.getFileCount());
+    assertEquals(0, empty.getDirectoryCount());
+    assertNull(empty.getOldestFileModified());
+    assertNull(empty.getNewestFileModified());
+  }
+
   /**
    * Test of hashCode method, of class Directory.
    */
@@ -95,5 +128,52 @@ public class DirectoryTest {
     assertNotEquals(instance1, instance4);
     assertNotEquals(instance1, instance5);
   }
-  
+
+  /**
+   * Test of getDigest method, of class Directory.
+   */
+  @Test
+  public void testGetDigest() {
+    LocalDateTime ts = LocalDateTime.of(1971, Month.MAY, 06, 10, 10);
+    DirCacheTree.Directory sub1 = new DirCacheTree.Directory(Path.of("first", "sub"), ts, Arrays.asList(new DirCacheTree.File(Path.of("first", "sub", "deep"), ts, 1)));
+    DirCacheTree.Directory sub2 = new DirCacheTree.Directory(Path.of("first", "sub"), ts, Arrays.asList(new DirCacheTree.File(Path.of("first", "sub", "deep"), ts, 2)));
+    DirCacheTree.Directory sub3 = new DirCacheTree.Directory(Path.of("first", "sub"), ts, Arrays.asList(new DirCacheTree.File(Path.of("first", "sub", "deep"), ts, 1)));
+    DirCacheTree.Directory instance1 = new DirCacheTree.Directory(Path.of("first"), ts, Arrays.asList(sub1, new DirCacheTree.File(Path.of("first", "second"), ts, 1)));
+    DirCacheTree.Directory instance2 = new DirCacheTree.Directory(Path.of("first"), ts, Arrays.asList(sub2, new DirCacheTree.File(Path.of("first", "second"), ts, 1)));
+    DirCacheTree.Directory instance3 = new DirCacheTree.Directory(Path.of("first"), ts, Arrays.asList(sub3, new DirCacheTree.File(Path.of("first", "second"), ts, 1)));
+    DirCacheTree.Directory instance4 = new DirCacheTree.Directory(Path.of("first"), ts, Arrays.asList(sub1, new DirCacheTree.File(Path.of("first", "renamed"), ts, 1)));
+
+    assertEquals(instance1.getDigest(), instance3.getDigest());
+    // Changes deep in the tree change the digest of every ancestor
+    assertNotEquals(sub1.getDigest(), sub2.getDigest());
+    assertNotEquals(instance1.getDigest(), instance2.getDigest());
+    assertNotEquals(instance1.getDigest(), instance4.getDigest());
+    assertNotEquals(instance1, instance2);
+    assertEquals(instance1, instance3);
+  }
+
+  /**
+   * Test of get and getDir methods, of class Directory, with sorted and unsorted children.
+   */
+  @Test
+  public void testGetSearch() {
+    LocalDateTime ts = LocalDateTime.of(1971, Month.MAY, 06, 10, 10);
+    DirCacheTree.Directory d1 = new DirCacheTree.Directory(Path.of("first", "d1"), ts, Arrays.asList());
+    DirCacheTree.Directory d2 = new DirCacheTree.Directory(Path.of("first", "d2"), ts, Arrays.asList());
+    DirCacheTree.File a = new DirCacheTree.File(Path.of("first", "a"), ts, 1);
+    DirCacheTree.File z = new DirCacheTree.File(Path.of("first", "z"), ts, 1);
+    
+    DirCacheTree.Directory sorted = new DirCacheTree.Directory(Path.of("first"), ts, Arrays.asList(d1, d2, a, z));
+    DirCacheTree.Directory unsorted = new DirCacheTree.Directory(Path.of("first"), ts, Arrays.asList(z, d2, a, d1));
+    for (DirCacheTree.Directory instance : Arrays.asList(sorted, unsorted)) {
+      assertSame(d1, instance.get("d1"));
+      assertSame(d2, instance.getDir("d2"));
+      assertSame(a, instance.get("a"));
+      assertSame(z, instance.get("z"));
+      assertNull(instance.getDir("z"));
+      assertNull(instance.get("m"));
+    }
+    assertEquals(Arrays.asList(z, d2, a, d1), unsorted.getChildren());
+  }
+
 }
@@ -19,6 +19,8 @@ package uk.co.spudsoft.dircache;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.Month;
+import java.time.ZoneOffset;
+import java.util.Objects;
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -68,6 +70,49 @@ public class FileTest {
     assertNotEquals(instance1, "bob");
     assertNotEquals(instance1, instance4);
     assertNotEquals(instance1, instance5);
+    
+    // Subclasses compare as Files, in the same way as Directories
+    DirCacheTree.File subclass = new DirCacheTree.File(Path.of("first"), LocalDateTime.of(1971, Month.MAY, 06, 10, 10), 27) { };
+    assertEquals(instance1, subclass);
+    assertEquals(subclass, instance1);
+  }
+  
+  /**
+   * Test of the deprecated constructor of class DirCacheTree.Node.
+   */
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testDeprecatedNodeConstructor() {
+    LocalDateTime ts = LocalDateTime.of(1971, Month.MAY, 06, 10, 10, 10, 123456789);
+    DirCacheTree.Node node = new DirCacheTree.Node(Path.of("first", "second"), ts) {
+      @Override
+      public long getDigest() {
+        return Objects.hash(path, name);
+      }
+
+      @Override
+      public FileTree.NodeType getType() {
+        return FileTree.NodeType.file;
+      }
+    };
+    assertEquals("second", node.getName());
+    assertEquals(Path.of("first", "second"), node.getPath());
+    assertEquals(ts, node.getModified());
+    assertEquals(Objects.hash(Path.of("first", "second"), "second"), node.getDigest());
+  }
+  
+  /**
+   * Test of getPath and getModified methods, of class DirCacheTree.File.
+   */
+  @Test
+  public void testGetPathAndModified() {
+    LocalDateTime ts = LocalDateTime.of(1971, Month.MAY, 06, 10, 10, 10, 123456789);
+    DirCacheTree.File instance = new DirCacheTree.File(Path.of("first", "second"), ts, 27);
+    assertEquals(Path.of("first", "second"), instance.getPath());
+    assertEquals(Path.of("first"), new DirCacheTree.File(Path.of("first"), ts, 27).getPath());
+    assertEquals(ts, instance.getModified());
+    assertEquals(ts.toEpochSecond(ZoneOffset.UTC) * 1000000000L + 123456789, instance.getModifiedEpochNanos());
+    assertNull(new DirCacheTree.File(Path.of("first"), null, 27).getModified());
   }
   
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import uk.co.spudsoft.dircache.DirCacheChangeEvent;
+import uk.co.spudsoft.dircache.DirCacheSnapshot;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class ChangePublisherTest {
+
+  private static final LocalDateTime TS = LocalDateTime.of(1971, Month.MAY, 6, 10, 10);
+
+  private static class Recorder implements Flow.Subscriber<DirCacheChangeEvent> {
+
+    private Flow.Subscription subscription;
+    private final List<DirCacheChangeEvent> events = new ArrayList<>();
+    private Throwable error;
+    private boolean complete;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(DirCacheChangeEvent item) {
+      events.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      this.error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      this.complete = true;
+    }
+  }
+
+  private static DirCacheSnapshot snapshot(long generation, String... files) {
+    List<DirCacheTree.Node> children = new ArrayList<>();
+    for (String file : files) {
+      children.add(new DirCacheTree.File(Path.of("root", file), TS, 1));
+    }
+    return new DirCacheSnapshot(new DirCacheTree.Directory(Path.of("root"), TS, children), TS, generation);
+  }
+
+  @Test
+  public void testDemandAndCoalescing() {
+    AtomicReference<DirCacheSnapshot> current = new AtomicReference<>(snapshot(1, "a"));
+    ChangePublisher publisher = new ChangePublisher(Runnable::run, current::get);
+    Recorder recorder = new Recorder();
+    publisher.subscribe(recorder);
+    assertNotNull(recorder.subscription);
+
+    // No demand, so nothing is delivered
+    publisher.publish(snapshot(2, "a", "b"));
+    assertEquals(0, recorder.events.size());
+
+    recorder.subscription.request(1);
+    assertEquals(1, recorder.events.size());
+    DirCacheChangeEvent event = recorder.events.get(0);
+    assertEquals(1, event.getPreviousGeneration());
+    assertEquals(2, event.getGeneration());
+    assertFalse(event.isCoalesced());
+    assertEquals(Arrays.asList(Path.of("root", "b")), event.getPaths());
+
+    // Two changes whilst the subscriber has no demand are delivered as one event
+    publisher.publish(snapshot(3, "a", "b", "c"));
+    publisher.publish(snapshot(4, "b", "c", "d"));
+    assertEquals(1, recorder.events.size());
+    recorder.subscription.request(5);
+    assertEquals(2, recorder.events.size());
+    event = recorder.events.get(1);
+    assertEquals(2, event.getPreviousGeneration());
+    assertEquals(4, event.getGeneration());
+    assertTrue(event.isCoalesced());
+    assertTrue(event.getPaths().containsAll(Arrays.asList(Path.of("root", "a"), Path.of("root", "c"), Path.of("root", "d"))));
+
+    // Outstanding demand is used as soon as there is a change, but stale snapshots are ignored
+    publisher.publish(snapshot(3, "z"));
+    assertEquals(2, recorder.events.size());
+    publisher.publish(snapshot(5, "d"));
+    assertEquals(3, recorder.events.size());
+
+    publisher.complete();
+    assertTrue(recorder.complete);
+  }
+
+  @Test
+  public void testCancelAndInvalidRequest() {
+    AtomicReference<DirCacheSnapshot> current = new AtomicReference<>(snapshot(1, "a"));
+    ChangePublisher publisher = new ChangePublisher(Runnable::run, current::get);
+    Recorder cancelled = new Recorder();
+    Recorder invalid = new Recorder();
+    publisher.subscribe(cancelled);
+    publisher.subscribe(invalid);
+
+    cancelled.subscription.request(Long.MAX_VALUE);
+    cancelled.subscription.cancel();
+    publisher.publish(snapshot(2, "b"));
+    assertEquals(0, cancelled.events.size());
+
+    invalid.subscription.request(0);
+    assertTrue(invalid.error instanceof IllegalArgumentException);
+
+    publisher.complete();
+    assertFalse(cancelled.complete);
+    assertFalse(invalid.complete);
+  }
+
+}
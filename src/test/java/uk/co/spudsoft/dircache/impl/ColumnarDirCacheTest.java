@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.regex.Pattern;
+import static com.jayway.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.spudsoft.dircache.DirCache;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class ColumnarDirCacheTest {
+
+  private static final Logger logger = LoggerFactory.getLogger(ColumnarDirCacheTest.class);
+
+  @Test
+  public void testSameTree() throws Exception {
+    Path root = Path.of("target/ColumnarDirCacheTest/testSameTree");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+    DirCacheImplTest.copyTestFiles(root.resolve("b"));
+
+    try (DirCache onHeap = DirCache.cache(root, null, Pattern.compile("^uk.*"), null)) {
+      try (DirCache offHeap = DirCache.cacheOffHeap(root, null, Pattern.compile("^uk.*"), null)) {
+        DirCacheTree.Directory expected = onHeap.getRoot();
+        DirCacheTree.Directory actual = offHeap.getRoot();
+        logger.debug("Off heap: {}", actual);
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.getDigest(), actual.getDigest());
+        assertEquals(expected.getPath(), actual.getPath());
+
+        assertEquals(expected.getDir("a").getDir("aa").get("aab"), actual.getDir("a").getDir("aa").get("aab"));
+        assertEquals(expected.getDir("b").getDir("ab").getPath(), actual.getDir("b").getDir("ab").getPath());
+        assertNull(actual.getDir("a").getDir("ac"));
+        assertInstanceOf(DirCacheTree.File.class, actual.getDir("a").get("ac"));
+        assertNull(actual.getDir("a").get("missing"));
+
+        assertEquals(expected.flatten(f -> f.getPath()), actual.flatten(f -> f.getPath()));
+        assertEquals(mapNames(expected), mapNames(actual));
+      }
+    }
+  }
+
+  @Test
+  public void testReuseViews() throws Exception {
+    Path root = Path.of("target/ColumnarDirCacheTest/testReuseViews");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+
+    try (DirCache onHeap = DirCache.cache(root, null, Pattern.compile("^uk.*"), null)) {
+      DirCacheTree.Directory heapRoot = onHeap.getRoot();
+      DirCacheTree.Directory view = ColumnarTree.encode(heapRoot).getRoot();
+      // Children that are new views (or new heap Nodes) with the same digests let the previous view be reused
+      assertSame(view, DirCacheImpl.directoryNode(view.getPath(), view.getModifiedEpochNanos(), view.getChildren(), view));
+      assertSame(view, DirCacheImpl.directoryNode(view.getPath(), view.getModifiedEpochNanos(), heapRoot.getChildren(), view));
+      assertNotSame(view, DirCacheImpl.directoryNode(view.getPath(), view.getModifiedEpochNanos(), heapRoot.getDir("a").getChildren(), view));
+    }
+
+    try (DirCache offHeap = DirCache.cacheOffHeap(root, null, Pattern.compile("^uk.*"), null)) {
+      DirCacheTree.Directory first = offHeap.getRoot();
+      long generation = offHeap.getSnapshot().getGeneration();
+      offHeap.refresh();
+      assertSame(first, offHeap.getRoot());
+      assertEquals(generation, offHeap.getSnapshot().getGeneration());
+    }
+  }
+
+  private static String mapNames(DirCacheTree.Directory dir) {
+    return dir.<DirCacheTree.Node>map((d, c) -> new DirCacheTree.Directory(d.getPath(), d.getModified(), c), f -> f).toString();
+  }
+
+  @Test
+  public void testEncode() throws Exception {
+    Path root = Path.of("target/ColumnarDirCacheTest/testEncode");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+
+    try (DirCache onHeap = DirCache.cache(root, null, Pattern.compile("^uk.*"), null)) {
+      ColumnarTree tree = ColumnarTree.encode(onHeap.getRoot());
+      assertEquals(onHeap.getRoot().flatten(f -> f).size() + 4, tree.size());
+      assertEquals(onHeap.getRoot(), tree.getRoot());
+      // Views of the same Node are equal
+      assertEquals(tree.getRoot().getDir("a"), tree.getRoot().getDir("a"));
+      DirCacheTree.Directory expected = onHeap.getRoot().getDir("a");
+      DirCacheTree.Directory actual = tree.getRoot().getDir("a");
+      assertEquals(expected.getTotalSize(), actual.getTotalSize());
+      assertEquals(expected.getFileCount(), actual.getFileCount());
+      assertEquals(expected.getDirectoryCount(), actual.getDirectoryCount());
+      assertEquals(expected.getOldestFileModifiedEpochNanos(), actual.getOldestFileModifiedEpochNanos());
+      assertEquals(expected.getNewestFileModifiedEpochNanos(), actual.getNewestFileModifiedEpochNanos());
+      assertEquals(tree.size() - 1, tree.getRoot().getFileCount() + tree.getRoot().getDirectoryCount());
+    }
+  }
+
+  @Test
+  public void testChanges() throws Exception {
+    Path root = Path.of("target/ColumnarDirCacheTest/testChanges");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+
+    try (DirCache dirCache = DirCache.cacheOffHeap(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null)) {
+      LocalDateTime firstWalkTime = dirCache.getLastWalkTime();
+      assertNull(dirCache.getRoot().getDir("a").getDir("aa").get("columnar"));
+
+      Files.createFile(root.resolve("a/aa/columnar"));
+      await().atMost(5, SECONDS).until(() -> firstWalkTime.isBefore(dirCache.getLastWalkTime()) && dirCache.getRoot().getDir("a").getDir("aa").get("columnar") != null);
+      assertNotNull(dirCache.getRoot().getDir("a").getDir("aa").get("columnar"));
+    }
+  }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import static com.jayway.awaitility.Awaitility.await;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import uk.co.spudsoft.dircache.DirCache;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class DirCacheEngineTest {
+
+  @Test
+  public void testManyCaches() throws Exception {
+    Path base = Path.of("target/DirCacheEngineTest/testManyCaches");
+    List<Path> roots = new ArrayList<>();
+    for (int i = 0; i < 20; ++i) {
+      Path root = base.resolve("root" + i);
+      DirCacheImplTest.copyTestFiles(root.resolve("a"));
+      roots.add(root);
+    }
+
+    int threadsBefore = Thread.activeCount();
+    try (DirCacheEngine engine = new DirCacheEngine()) {
+      List<DirCache> caches = new ArrayList<>();
+      List<AtomicInteger> counters = new ArrayList<>();
+      for (Path root : roots) {
+        AtomicInteger counter = new AtomicInteger();
+        caches.add(engine.cache(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null).setCallback(counter::incrementAndGet));
+        counters.add(counter);
+      }
+      // A second cache of the same directory shares its watches
+      AtomicInteger sharedCounter = new AtomicInteger();
+      DirCache shared = engine.cache(roots.get(0), Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null).setCallback(sharedCounter::incrementAndGet);
+      
+      // One scheduler thread and one watch thread, however many caches there are
+      assertThat(Thread.activeCount() - threadsBefore, lessThanOrEqualTo(2));
+      int watchesPerCache = engine.getWatchCount() / roots.size();
+      assertEquals(roots.size() * watchesPerCache, engine.getWatchCount());
+
+      Files.createFile(roots.get(3).resolve("a/aa/fred"));
+      await().atMost(5, SECONDS).until(() -> counters.get(3).get() > 0);
+      assertNotNull(caches.get(3).getRoot().getDir("a").getDir("aa").get("fred"));
+      assertEquals(0, counters.get(4).get());
+      assertNull(caches.get(4).getRoot().getDir("a").getDir("aa").get("fred"));
+
+      // Deletes are applied immediately
+      Files.delete(roots.get(3).resolve("a/aa/fred"));
+      await().atMost(5, SECONDS).until(() -> caches.get(3).getRoot().getDir("a").getDir("aa").get("fred") == null);
+
+      Files.createFile(roots.get(0).resolve("a/aa/fred"));
+      await().atMost(5, SECONDS).until(() -> counters.get(0).get() > 0 && sharedCounter.get() > 0);
+      assertNotNull(shared.getRoot().getDir("a").getDir("aa").get("fred"));
+
+      // Stopping one cache leaves the shared watches in place for the other
+      shared.close();
+      assertEquals(roots.size() * watchesPerCache, engine.getWatchCount());
+      Files.createFile(roots.get(0).resolve("a/aa/bob"));
+      await().atMost(5, SECONDS).until(() -> caches.get(0).getRoot().getDir("a").getDir("aa").get("bob") != null);
+
+      for (DirCache cache : caches) {
+        cache.close();
+      }
+      assertEquals(0, engine.getWatchCount());
+    }
+  }
+
+  @Test
+  public void testPolling() throws Exception {
+    Path root = Path.of("target/DirCacheEngineTest/testPolling");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+    
+    try (DirCacheEngine engine = new DirCacheEngine()) {
+      try (DirCache dirCache = engine.cache(root, null, Pattern.compile("^uk.*"), Duration.of(100, ChronoUnit.MILLIS))) {
+        LocalDateTime firstWalkTime = dirCache.getLastWalkTime();
+        assertEquals(0, engine.getWatchCount());
+        Files.createFile(root.resolve("a/aa/fred"));
+        await().atMost(5, SECONDS).until(() -> firstWalkTime.isBefore(dirCache.getLastWalkTime()) 
+                && dirCache.getRoot().getDir("a").getDir("aa").get("fred") != null);
+      }
+    }
+  }
+  
+  @Test
+  public void testMaxNotificationDelay() throws Exception {
+    Path root = Path.of("target/DirCacheEngineTest/testMaxNotificationDelay");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+    AtomicInteger counter = new AtomicInteger();
+    
+    try (DirCacheEngine engine = new DirCacheEngine()) {
+      try (DirCache dirCache = new DirCacheImpl(root, Duration.of(500, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null)
+              .setEngine(engine)
+              .setMaxNotificationDelay(Duration.of(1, ChronoUnit.SECONDS))
+              .start()
+              .setCallback(counter::incrementAndGet)) {
+        AtomicInteger written = new AtomicInteger();
+        await().atMost(4, SECONDS).pollInterval(100, TimeUnit.MILLISECONDS).until(() -> {
+          Files.createFile(root.resolve("a/aa/busy-" + written.incrementAndGet()));
+          return counter.get() > 0;
+        });
+        assertNotNull(dirCache.getRoot().getDir("a").getDir("aa").get("busy-1"));
+      }
+    }
+  }
+  
+  @Test
+  public void testLaneSerializesWork() throws Exception {
+    ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+    try (DirCacheEngine engine = new DirCacheEngine(scheduler)) {
+      DirCacheEngine.Lane lane = engine.newLane();
+      AtomicInteger active = new AtomicInteger();
+      AtomicInteger maxActive = new AtomicInteger();
+      List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 50; ++i) {
+        int index = i;
+        futures.add(lane.submit(() -> {
+          maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException ex) {
+          }
+          order.add(index);
+          active.decrementAndGet();
+        }));
+      }
+      AtomicInteger periodic = new AtomicInteger();
+      ScheduledFuture<?> periodicFuture = lane.scheduleWithFixedDelay(() -> {
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        periodic.incrementAndGet();
+        active.decrementAndGet();
+      }, 0, 1);
+      for (Future<?> future : futures) {
+        future.get(5, SECONDS);
+      }
+      await().atMost(5, SECONDS).until(() -> periodic.get() > 5);
+      periodicFuture.cancel(false);
+      
+      assertEquals(1, maxActive.get());
+      for (int i = 0; i < 50; ++i) {
+        assertEquals(i, order.get(i));
+      }
+      
+      // A task that is cancelled whilst queued behind another does not run
+      CountDownLatch blocker = new CountDownLatch(1);
+      AtomicInteger ran = new AtomicInteger();
+      lane.submit(() -> {
+        try {
+          blocker.await();
+        } catch (InterruptedException ex) {
+        }
+      });
+      ScheduledFuture<?> cancelled = lane.schedule(ran::incrementAndGet, 0);
+      await().atMost(5, SECONDS).until(() -> cancelled.getDelay(TimeUnit.MILLISECONDS) <= 0);
+      Thread.sleep(50);
+      cancelled.cancel(false);
+      blocker.countDown();
+      lane.submit(() -> { }).get(5, SECONDS);
+      assertTrue(cancelled.isCancelled());
+      assertEquals(0, ran.get());
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+  
+}
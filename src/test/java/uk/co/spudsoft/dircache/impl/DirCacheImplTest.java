@@ -28,18 +28,43 @@ import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.spudsoft.dircache.ChangeSet;
 import uk.co.spudsoft.dircache.DirCache;
+import uk.co.spudsoft.dircache.DirCacheChangeEvent;
+import uk.co.spudsoft.dircache.DirCacheIndex;
+import uk.co.spudsoft.dircache.DirCacheListener;
+import uk.co.spudsoft.dircache.DirCacheSnapshot;
 import uk.co.spudsoft.dircache.DirCacheTree;
 
 /**
@@ -162,8 +187,9 @@ public class DirCacheImplTest {
     logger.debug("Result: {}", MAPPER.writeValueAsString(dirCache.getRoot()));
     assertNotNull(dirCache.getRoot().getDir("a").getDir("aa").get("bob"));
     LocalDateTime secondWalkTime = dirCache.getLastWalkTime();
+    // The callback is called asynchronously, so it may run after the new root is visible
+    await().atMost(5, SECONDS).until(() -> counter.get() > 0);
     int ctrAtCreation = counter.get();
-    assertThat(ctrAtCreation, greaterThan(0));
 
     int countOfDeleted = delete(root.resolve("a/aa").toFile());
     logger.debug("Deleted dir ({} deletes)", countOfDeleted);
@@ -171,13 +197,637 @@ public class DirCacheImplTest {
     logger.debug("Result: {}", MAPPER.writeValueAsString(dirCache.getRoot()));
     assertNull(dirCache.getRoot().getDir("a").getDir("aa"));
     LocalDateTime thirdWalkTime = dirCache.getLastWalkTime();
-    assertThat(counter.get(), greaterThan(ctrAtCreation));
+    await().atMost(5, SECONDS).until(() -> counter.get() > ctrAtCreation);
 
     dirCache.stop();
 
     Thread.sleep(2000);
   }
 
+  @Test
+  public void testIncrementalRescan() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testIncrementalRescan");
+    copyTestFiles(root.resolve("a"));
+
+    try (DirCache dirCache = DirCache.cache(root, Duration.ZERO, Pattern.compile("^uk.*"), null)) {
+      DirCacheTree.Directory firstRoot = dirCache.getRoot();
+      LocalDateTime firstWalkTime = dirCache.getLastWalkTime();
+
+      Files.createFile(root.resolve("a/aa/incremental"));
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("aa").get("incremental") != null);
+      assertThat(dirCache.getLastWalkTime(), greaterThan(firstWalkTime));
+
+      // Only the path from the changed directory to the root should have been rebuilt
+      DirCacheTree.Directory secondRoot = dirCache.getRoot();
+      assertNotSame(firstRoot, secondRoot);
+      assertNotSame(firstRoot.getDir("a"), secondRoot.getDir("a"));
+      assertSame(firstRoot.getDir("a").getDir("ab"), secondRoot.getDir("a").getDir("ab"));
+      assertSame(firstRoot.getDir("a").get("ac"), secondRoot.getDir("a").get("ac"));
+
+      Files.createDirectories(root.resolve("a/ab/abc/abca"));
+      Files.createFile(root.resolve("a/ab/abc/abca/deep"));
+      await().atMost(5, SECONDS).until(() -> {
+        DirCacheTree.Directory abca = dirCache.getRoot().getDir("a").getDir("ab").getDir("abc") == null
+                ? null
+                : dirCache.getRoot().getDir("a").getDir("ab").getDir("abc").getDir("abca");
+        return abca != null && abca.get("deep") != null;
+      });
+      assertSame(secondRoot.getDir("a").getDir("aa"), dirCache.getRoot().getDir("a").getDir("aa"));
+
+      delete(root.resolve("a/ab/abc").toFile());
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("ab").getDir("abc") == null);
+    }
+  }
+
+  @Test
+  public void testPointUpdate() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testPointUpdate");
+    copyTestFiles(root.resolve("a"));
+
+    try (DirCache dirCache = DirCache.cache(root, Duration.ZERO, Pattern.compile("^uk.*"), null)) {
+      DirCacheTree.Directory firstRoot = dirCache.getRoot();
+      DirCacheTree.File firstAab = (DirCacheTree.File) firstRoot.getDir("a").getDir("aa").get("aab");
+
+      Files.writeString(root.resolve("a/aa/aab"), "Changed content that is longer than the original");
+      await().atMost(5, SECONDS).until(() -> {
+        DirCacheTree.File aab = (DirCacheTree.File) dirCache.getRoot().getDir("a").getDir("aa").get("aab");
+        return aab.getSize() != firstAab.getSize();
+      });
+
+      // Only the changed file and its ancestors should have been replaced
+      DirCacheTree.Directory secondRoot = dirCache.getRoot();
+      assertSame(firstRoot.getDir("a").getDir("aa").get("aad"), secondRoot.getDir("a").getDir("aa").get("aad"));
+      assertSame(firstRoot.getDir("a").getDir("aa").get("aae"), secondRoot.getDir("a").getDir("aa").get("aae"));
+      assertSame(firstRoot.getDir("a").getDir("ab"), secondRoot.getDir("a").getDir("ab"));
+
+      delete(root.resolve("a/aa/aad").toFile());
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("aa").get("aad") == null);
+      assertSame(secondRoot.getDir("a").getDir("aa").get("aab"), dirCache.getRoot().getDir("a").getDir("aa").get("aab"));
+    }
+  }
+
+  @Test
+  public void testStructuralSharing() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testStructuralSharing");
+    copyTestFiles(root.resolve("a"));
+    AtomicInteger counter = new AtomicInteger();
+
+    try (DirCache dirCache = DirCache.cache(root, null, Pattern.compile("^uk.*"), null)) {
+      dirCache.setCallback(() -> counter.incrementAndGet());
+      DirCacheTree.Directory firstRoot = dirCache.getRoot();
+
+      // Nothing has changed, so the full walk should produce exactly the same instance
+      dirCache.refresh();
+      assertSame(firstRoot, dirCache.getRoot());
+      assertEquals(0, counter.get());
+
+      Files.writeString(root.resolve("a/ab/abb"), "Changed content that is longer than the original");
+      dirCache.refresh();
+      // The callback is run asynchronously
+      await().atMost(5, SECONDS).until(() -> counter.get() > 0);
+      assertEquals(1, counter.get());
+      DirCacheTree.Directory secondRoot = dirCache.getRoot();
+      assertNotSame(firstRoot, secondRoot);
+      assertNotSame(firstRoot.getDir("a").getDir("ab").get("abb"), secondRoot.getDir("a").getDir("ab").get("abb"));
+      assertSame(firstRoot.getDir("a").getDir("ab").get("aba"), secondRoot.getDir("a").getDir("ab").get("aba"));
+      assertSame(firstRoot.getDir("a").getDir("aa"), secondRoot.getDir("a").getDir("aa"));
+    }
+  }
+
+  @Test
+  public void testStartAsync() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testStartAsync");
+    copyTestFiles(root.resolve("a"));
+    
+    DirCacheTree.Directory expected;
+    try (DirCache dirCache = DirCache.cache(root, Duration.ZERO, Pattern.compile("^uk.*"), null)) {
+      expected = dirCache.getRoot();
+    }
+    
+    try (DirCache dirCache = DirCache.cacheAsync(root, Duration.ZERO, Pattern.compile("^uk.*"), null).get(5, SECONDS)) {
+      assertEquals(expected, dirCache.getRoot());
+    }
+
+    for (ForkJoinPool pool : Arrays.asList(null, new ForkJoinPool(4))) {
+      try (DirCache dirCache = DirCache.cache(root, Duration.ZERO, Pattern.compile("^uk.*"), null)) {
+        expected = dirCache.getRoot();
+      }
+      List<ChangeSet> changes = new CopyOnWriteArrayList<>();
+      DirCacheImpl impl = new DirCacheImpl(root, Duration.ZERO, Pattern.compile("^uk.*"), null, pool)
+              .setPriorityPaths(Arrays.asList("a/ab", "/a/aa/", "missing", "a/ab/aba"));
+      // A direct executor, so that each partial tree is seen rather than being coalesced
+      impl.addListener(changes::add, Runnable::run);
+      try (DirCache dirCache = impl.startAsync().get(5, SECONDS)) {
+        assertSame(impl, dirCache);
+        assertEquals(expected, dirCache.getRoot());
+        assertThat(changes.size(), greaterThan(2));
+
+        // First the partial tree containing just a/ab
+        DirCacheTree.Directory partial = changes.get(0).getCurrent();
+        assertEquals(1, partial.getChildren().size());
+        assertNull(partial.getModified());
+        assertEquals(Arrays.asList("ab"), partial.getDir("a").getChildren().stream().map(DirCacheTree.Node::getName).toList());
+        assertEquals(expected.getDir("a").getDir("ab"), partial.getDir("a").getDir("ab"));
+        assertNotNull(impl.lookup("a/ab/aba"));
+
+        // Then a/aa is added, without rewalking a/ab
+        DirCacheTree.Directory second = changes.get(1).getCurrent();
+        assertEquals(Arrays.asList("aa", "ab"), second.getDir("a").getChildren().stream().map(DirCacheTree.Node::getName).toList());
+        assertSame(partial.getDir("a").getDir("ab"), second.getDir("a").getDir("ab"));
+        assertSame(second.getDir("a").getDir("aa"), dirCache.getRoot().getDir("a").getDir("aa"));
+        
+        // Priority paths are watched before the full walk completes
+        Files.createFile(root.resolve("a/aa/afterStart"));
+        await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("aa").get("afterStart") != null);
+        Files.delete(root.resolve("a/aa/afterStart"));
+        await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("aa").get("afterStart") == null);
+      } finally {
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+    }
+    
+    assertThrows(IllegalArgumentException.class, () -> new DirCacheImpl(root, Duration.ZERO, Pattern.compile("^uk.*"), null).setPriorityPaths(Arrays.asList("a/../b")));
+    
+    // A root that is missing, or is not a directory, completes the future exceptionally
+    for (Path bad : Arrays.asList(root.resolve("missing"), root.resolve("a/ac"))) {
+      ExecutionException ex = assertThrows(ExecutionException.class, () -> DirCache.cacheAsync(bad, Duration.ZERO, Pattern.compile("^uk.*"), null).get(5, SECONDS));
+      assertInstanceOf(FileNotFoundException.class, ex.getCause());
+    }
+  }
+
+  @Test
+  public void testWatchBudget() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testWatchBudget");
+    copyTestFiles(root.resolve("a"));
+    
+    DirCacheImpl impl = new DirCacheImpl(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null)
+            .setWatchBudget(2, Duration.of(100, ChronoUnit.MILLIS));
+    try (DirCache dirCache = impl.start()) {
+      assertEquals(2, impl.getWatchedDirs().size());
+      assertEquals(2, impl.getColdDirs().size());
+      Path cold = impl.getColdDirs().iterator().next();
+      String relative = root.relativize(cold).toString().replace('\\', '/');
+      
+      // Changes to cold directories are found by polling
+      Files.createFile(cold.resolve("fred"));
+      await().atMost(5, SECONDS).until(() -> dirCache.lookup(relative + "/fred") != null);
+      
+      // Keep changing it until it is promoted to a watch
+      await().atMost(10, SECONDS).until(() -> {
+        Files.write(cold.resolve("fred" + System.nanoTime()), new byte[0]);
+        Thread.sleep(50);
+        return impl.getWatchedDirs().contains(cold);
+      });
+      assertEquals(2, impl.getWatchedDirs().size());
+      assertEquals(2, impl.getColdDirs().size());
+      
+      // And then it is watched
+      Files.createFile(cold.resolve("bob"));
+      await().atMost(5, SECONDS).until(() -> dirCache.lookup(relative + "/bob") != null);
+      
+      // Deleting a cold directory removes it from the tree
+      Path otherCold = impl.getColdDirs().stream().filter(p -> !p.equals(root) && !p.equals(root.resolve("a"))).findFirst().orElse(null);
+      if (otherCold != null) {
+        delete(otherCold.toFile());
+        await().atMost(5, SECONDS).until(() -> dirCache.lookup(root.relativize(otherCold).toString().replace('\\', '/')) == null);
+        await().atMost(5, SECONDS).until(() -> !impl.getColdDirs().contains(otherCold));
+      }
+    }
+  }
+
+  @Test
+  public void testIgnoredEvents() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testIgnoredEvents");
+    copyTestFiles(root.resolve("a"));
+    AtomicInteger counter = new AtomicInteger();
+
+    try (DirCache dirCache = DirCache.cache(root, Duration.of(500, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null)
+            .setCallback(() -> counter.incrementAndGet())) {
+      DirCacheTree.Directory firstRoot = dirCache.getRoot();
+      assertEquals(0, dirCache.getIgnoredEventCount());
+
+      Files.createFile(root.resolve("a/aa/uk-ignored-1"));
+      Files.createFile(root.resolve("a/aa/uk-ignored-2"));
+      await().atMost(5, SECONDS).until(() -> dirCache.getIgnoredEventCount() >= 2);
+      Thread.sleep(1000);
+      assertEquals(0, counter.get());
+      assertSame(firstRoot, dirCache.getRoot());
+
+      // A constant stream of ignored changes must not hold back the callback for a real change
+      Files.createFile(root.resolve("a/aa/real"));
+      AtomicInteger ignored = new AtomicInteger();
+      await().atMost(5, SECONDS).pollInterval(50, TimeUnit.MILLISECONDS).until(() -> {
+        Files.createFile(root.resolve("a/aa/uk-busy-" + ignored.incrementAndGet()));
+        return counter.get() > 0;
+      });
+      assertNotNull(dirCache.getRoot().getDir("a").getDir("aa").get("real"));
+      assertNull(dirCache.getRoot().getDir("a").getDir("aa").get("uk-busy-1"));
+    }
+  }
+
+  @Test
+  public void testMaxNotificationDelay() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testMaxNotificationDelay");
+    copyTestFiles(root.resolve("a"));
+    AtomicInteger counter = new AtomicInteger();
+
+    try (DirCache dirCache = new DirCacheImpl(root, Duration.of(500, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null)
+            .setMaxNotificationDelay(Duration.of(1, ChronoUnit.SECONDS))
+            .start()
+            .setCallback(() -> counter.incrementAndGet())) {
+      // Keep writing more often than the stabilization lag, the callback must still happen
+      AtomicInteger written = new AtomicInteger();
+      await().atMost(4, SECONDS).pollInterval(100, TimeUnit.MILLISECONDS).until(() -> {
+        Files.createFile(root.resolve("a/aa/busy-" + written.incrementAndGet()));
+        return counter.get() > 0;
+      });
+      assertNotNull(dirCache.getRoot().getDir("a").getDir("aa").get("busy-1"));
+    }
+    
+    assertThrows(IllegalArgumentException.class, () -> new DirCacheImpl(root, null, Pattern.compile("^uk.*"), null).setMaxNotificationDelay(Duration.ofMillis(-1)));
+  }
+
+  @Test
+  public void testConcurrentNotifications() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testConcurrentNotifications");
+    copyTestFiles(root.resolve("a"));
+    AtomicReference<DirCacheTree.Directory> latest = new AtomicReference<>();
+
+    try (DirCache dirCache = new DirCacheImpl(root, null, Pattern.compile("^uk.*"), null).start()) {
+      dirCache.addListener(changes -> latest.set(changes.getCurrent()));
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < 4; ++i) {
+        int thread = i;
+        threads.add(new Thread(() -> {
+          for (int j = 0; j < 20; ++j) {
+            try {
+              Files.createFile(root.resolve("a/aa/t" + thread + "_" + j));
+            } catch (IOException ex) {
+              throw new RuntimeException(ex);
+            }
+            dirCache.refresh();
+          }
+        }));
+      }
+      threads.forEach(Thread::start);
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      dirCache.refresh();
+      // However the refreshes interleave, the listener must end up with the latest tree
+      await().atMost(5, SECONDS).until(() -> latest.get() == dirCache.getRoot());
+      assertEquals(84, latest.get().getDir("a").getDir("aa").getChildren().size());
+    }
+  }
+
+  @Test
+  public void testSlowListener() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testSlowListener");
+    copyTestFiles(root.resolve("a"));
+    List<ChangeSet> slowChanges = new CopyOnWriteArrayList<>();
+    List<ChangeSet> fastChanges = new CopyOnWriteArrayList<>();
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try (DirCache dirCache = DirCache.cache(root, null, Pattern.compile("^uk.*"), null)) {
+      dirCache.addListener(changes -> {
+        slowChanges.add(changes);
+        try {
+          release.await();
+        } catch (InterruptedException ex) {
+        }
+      }, executor);
+      dirCache.addListener(fastChanges::add, Runnable::run);
+
+      // The slow listener does not hold up the detection of changes, or the other listener
+      Files.createFile(root.resolve("a/aa/first"));
+      dirCache.refresh();
+      await().atMost(5, SECONDS).until(() -> slowChanges.size() == 1 && fastChanges.size() == 1);
+      Files.createFile(root.resolve("a/aa/second"));
+      dirCache.refresh();
+      Files.createFile(root.resolve("a/aa/third"));
+      dirCache.refresh();
+      await().atMost(5, SECONDS).until(() -> fastChanges.size() == 3);
+      assertEquals(1, slowChanges.size());
+
+      // The changes that happened whilst the slow listener was busy are coalesced into a single call
+      release.countDown();
+      await().atMost(5, SECONDS).until(() -> slowChanges.size() == 2);
+      List<String> added = slowChanges.get(1).getAdded().stream().map(DirCacheTree.Node::getName).sorted().toList();
+      assertEquals(List.of("second", "third"), added);
+      assertThat(dirCache.getMaxListenerDuration(), greaterThan(Duration.ZERO));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSubscriptions() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testSubscriptions");
+    copyTestFiles(root.resolve("a"));
+    List<ChangeSet> aaChanges = new CopyOnWriteArrayList<>();
+    List<ChangeSet> abChanges = new CopyOnWriteArrayList<>();
+    List<ChangeSet> txtChanges = new CopyOnWriteArrayList<>();
+    DirCacheListener aaListener = aaChanges::add;
+
+    try (DirCache dirCache = DirCache.cache(root, null, Pattern.compile("^uk.*"), null)) {
+      dirCache.subscribe(Path.of("a/aa"), aaListener);
+      dirCache.subscribe(root.toAbsolutePath().resolve("a/ab"), abChanges::add);
+      dirCache.subscribe("a/**/*.txt", txtChanges::add);
+
+      Files.createFile(root.resolve("a/aa/new.txt"));
+      dirCache.refresh();
+      await().atMost(5, SECONDS).until(() -> aaChanges.size() == 1 && txtChanges.size() == 1);
+      assertEquals("aa", aaChanges.get(0).getCurrent().getName());
+      assertEquals(List.of("new.txt"), aaChanges.get(0).getAdded().stream().map(DirCacheTree.Node::getName).toList());
+      // The parent directory has changed too, but it does not match the glob
+      assertEquals(List.of("new.txt"), txtChanges.get(0).getAdded().stream().map(DirCacheTree.Node::getName).toList());
+      assertEquals(0, txtChanges.get(0).getModified().size());
+
+      Files.createFile(root.resolve("a/ab/other"));
+      dirCache.refresh();
+      await().atMost(5, SECONDS).until(() -> abChanges.size() == 1);
+      
+      dirCache.unsubscribe(aaListener);
+      Files.createFile(root.resolve("a/aa/more.txt"));
+      dirCache.refresh();
+      await().atMost(5, SECONDS).until(() -> txtChanges.size() == 2);
+      assertEquals(1, aaChanges.size());
+      assertEquals(1, abChanges.size());
+      
+      assertThrows(IllegalArgumentException.class, () -> dirCache.subscribe(Path.of("/elsewhere"), aaListener));
+    }
+    
+    assertEquals("a/b", DirCacheImpl.globPrefix("a/b/**/*.txt"));
+    assertEquals("a", DirCacheImpl.globPrefix("a/*/c"));
+    assertEquals("a", DirCacheImpl.globPrefix("a/b"));
+    assertEquals("", DirCacheImpl.globPrefix("*.txt"));
+    assertEquals("", DirCacheImpl.globPrefix("{a,b}/c"));
+  }
+
+  @Test
+  public void testChangePublisher() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testChangePublisher");
+    copyTestFiles(root.resolve("a"));
+    List<DirCacheChangeEvent> events = new CopyOnWriteArrayList<>();
+    AtomicInteger completions = new AtomicInteger();
+
+    try (DirCache dirCache = DirCache.cache(root, null, Pattern.compile("^uk.*"), null)) {
+      long start = dirCache.getSnapshot().getGeneration();
+      dirCache.getChangePublisher().subscribe(new Flow.Subscriber<>() {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+          subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(DirCacheChangeEvent item) {
+          events.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+          completions.incrementAndGet();
+        }
+      });
+      
+      Files.createFile(root.resolve("a/aa/published"));
+      dirCache.refresh();
+      await().atMost(5, SECONDS).until(() -> !events.isEmpty());
+      assertEquals(start, events.get(0).getPreviousGeneration());
+      assertEquals(dirCache.getSnapshot().getGeneration(), events.get(0).getGeneration());
+      assertTrue(events.get(0).getPaths().contains(root.resolve("a/aa/published")));
+    }
+    await().atMost(5, SECONDS).until(() -> completions.get() == 1);
+  }
+
+  @Test
+  public void testIndexes() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testIndexes");
+    copyTestFiles(root.resolve("a"));
+
+    try (DirCache dirCache = new DirCacheImpl(root, null, Pattern.compile("^uk.*"), null)
+            .setIndexes(DirCacheIndex.EXTENSION, DirCacheIndex.SIZE, DirCacheIndex.MODIFIED)
+            .start()) {
+      DirCacheSnapshot snapshot = dirCache.getSnapshot();
+      List<DirCacheTree.File> all = snapshot.getRoot().flatten(f -> f);
+      assertEquals(all.size(), snapshot.getFilesWithSizeBetween(0, Long.MAX_VALUE).size());
+      assertEquals(0, snapshot.getFilesWithExtension("json").size());
+
+      Files.writeString(root.resolve("a/aa/data.json"), "{}");
+      dirCache.refresh();
+      DirCacheSnapshot updated = dirCache.getSnapshot();
+      assertEquals(List.of("data.json"), updated.getFilesWithExtension(".json").stream().map(DirCacheTree.Node::getName).toList());
+      assertEquals(all.size() + 1, updated.getFilesModifiedBetween(null, null).size());
+      // The earlier snapshot is unchanged
+      assertEquals(0, snapshot.getFilesWithExtension("json").size());
+    }
+  }
+
+  @Test
+  public void testFind() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testFind");
+    copyTestFiles(root.resolve("a"));
+
+    try (DirCache dirCache = new DirCacheImpl(root, null, Pattern.compile("^uk.*"), null).start()) {
+      assertEquals(List.of("aaa", "aab"), dirCache.find("a/aa/aa[ab]").map(DirCacheTree.Node::getName).toList());
+      assertEquals(List.of("aa", "ab"), dirCache.find("a/a?").filter(n -> n instanceof DirCacheTree.Directory).map(DirCacheTree.Node::getName).toList());
+      assertEquals(dirCache.getRoot().flatten(f -> f).size(), dirCache.find("**").filter(n -> n instanceof DirCacheTree.File).count());
+      assertEquals(0, dirCache.find("missing/**").count());
+
+      Files.writeString(root.resolve("a/ab/found"), "found");
+      dirCache.refresh();
+      long since = dirCache.lookup("a/ab/found").getModifiedEpochNanos();
+      List<DirCacheTree.Node> found = dirCache.find(d -> d.getNewestFileModifiedEpochNanos() >= since
+              , n -> n instanceof DirCacheTree.File && n.getModifiedEpochNanos() >= since).toList();
+      assertEquals(List.of(root.resolve("a/ab/found")), found.stream().map(DirCacheTree.Node::getPath).toList());
+      assertEquals(found, dirCache.find(n -> n instanceof DirCacheTree.File && n.getModifiedEpochNanos() >= since).toList());
+    }
+  }
+
+  @Test
+  public void testGeneration() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testGeneration");
+    copyTestFiles(root.resolve("a"));
+
+    try (DirCache dirCache = DirCache.cache(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null)) {
+      DirCacheSnapshot first = dirCache.getSnapshot();
+      assertSame(dirCache.getRoot(), first.getRoot());
+      assertEquals(dirCache.getLastWalkTime(), first.getWalkTime());
+      assertEquals(first.getRoot().getDigest(), first.getDigest());
+      assertFalse(dirCache.hasChangedSince(first.getGeneration()));
+
+      // A walk that finds nothing new publishes a new walk time, but not a new generation
+      dirCache.refresh();
+      assertFalse(dirCache.hasChangedSince(first.getGeneration()));
+      assertSame(first.getRoot(), dirCache.getSnapshot().getRoot());
+
+      Files.createFile(root.resolve("a/aa/generation"));
+      await().atMost(5, SECONDS).until(() -> dirCache.hasChangedSince(first.getGeneration()));
+      DirCacheSnapshot second = dirCache.getSnapshot();
+      assertThat(second.getGeneration(), greaterThan(first.getGeneration()));
+      assertNotNull(second.getRoot().getDir("a").getDir("aa").get("generation"));
+      assertNotEquals(first.getDigest(), second.getDigest());
+    }
+  }
+
+  @Test
+  public void testListener() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testListener");
+    copyTestFiles(root.resolve("a"));
+    List<ChangeSet> changes = new CopyOnWriteArrayList<>();
+
+    try (DirCache dirCache = DirCache.cache(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null)) {
+      dirCache.addListener(changes::add);
+
+      Files.createFile(root.resolve("a/aa/listened"));
+      await().atMost(5, SECONDS).until(() -> !changes.isEmpty());
+      ChangeSet changeSet = changes.get(0);
+      assertEquals(1, changeSet.getAdded().size());
+      assertEquals("listened", changeSet.getAdded().get(0).getName());
+      assertEquals(0, changeSet.getRemoved().size());
+      // The parent directory has a new modified timestamp
+      assertEquals(1, changeSet.getModified().size());
+      assertEquals("aa", changeSet.getModified().get(0).getName());
+
+      delete(root.resolve("a/ab").toFile());
+      await().atMost(5, SECONDS).until(() -> changes.size() > 1);
+      changeSet = changes.get(changes.size() - 1);
+      assertEquals(0, changeSet.getAdded().size());
+      assertEquals(1, changeSet.getRemoved().size());
+      assertEquals("ab", changeSet.getRemoved().get(0).getName());
+      assertSame(dirCache.getRoot(), changeSet.getCurrent());
+    }
+  }
+
+  @Test
+  public void testParallelWalk() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testParallelWalk");
+    copyTestFiles(root.resolve("a"));
+    copyTestFiles(root.resolve("b"));
+    Files.createSymbolicLink(root.resolve("b/ab/loop"), root.toAbsolutePath());
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try (DirCache serial = DirCache.cache(root, Duration.ZERO, Pattern.compile("^uk.*"), null)) {
+      try (DirCache parallel = DirCache.cache(root, Duration.ZERO, Pattern.compile("^uk.*"), null, pool)) {
+        logger.debug("Result: {}", MAPPER.writeValueAsString(parallel.getRoot()));
+        assertEquals(serial.getRoot(), parallel.getRoot());
+        assertNull(parallel.getRoot().getDir("b").getDir("ab").get("loop"));
+
+        // Watches registered by the parallel walk must work
+        LocalDateTime firstWalkTime = parallel.getLastWalkTime();
+        Files.createFile(root.resolve("b/aa/parallel"));
+        await().atMost(5, SECONDS).until(() -> firstWalkTime.isBefore(parallel.getLastWalkTime()));
+        assertNotNull(parallel.getRoot().getDir("b").getDir("aa").get("parallel"));
+        
+        parallel.refresh();
+        serial.refresh();
+        assertEquals(serial.getRoot(), parallel.getRoot());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentIoWalk() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testConcurrentIoWalk");
+    copyTestFiles(root.resolve("a"));
+    copyTestFiles(root.resolve("b"));
+
+    ForkJoinPool pool = new ForkJoinPool(1);
+    try (DirCache serial = DirCache.cache(root, null, Pattern.compile("^uk.*"), null)) {
+      try (DirCache parallel = DirCache.cache(root, null, Pattern.compile("^uk.*"), null, pool, 8)) {
+        assertEquals(serial.getRoot(), parallel.getRoot());
+      }
+      assertThrows(IllegalArgumentException.class, () -> new DirCacheImpl(root, null, Pattern.compile("^uk.*"), null, pool, 0));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testConcurrentIoThreads() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testConcurrentIoThreads");
+    for (int i = 0; i < 20; ++i) {
+      for (int j = 0; j < 20; ++j) {
+        Files.createDirectories(root.resolve("d" + i).resolve("d" + j));
+      }
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(8);
+    try (DirCache dirCache = DirCache.cache(root, null, Pattern.compile("^uk.*"), null, pool, 1)) {
+      assertEquals(420, dirCache.getRoot().getDirectoryCount());
+      // Waiting for a permit is not a managed block, so only the reads themselves earn compensating threads
+      assertThat(pool.getPoolSize(), lessThanOrEqualTo(9));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testLookup() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testLookup");
+    copyTestFiles(root.resolve("a"));
+
+    try (DirCache dirCache = DirCache.cache(root, Duration.ZERO, Pattern.compile("^uk.*"), null)) {
+      assertSame(dirCache.getRoot(), dirCache.lookup(""));
+      assertSame(dirCache.getRoot(), dirCache.lookup("/"));
+      assertSame(dirCache.getRoot().getDir("a").getDir("aa").get("aab"), dirCache.lookup("a/aa/aab"));
+      assertSame(dirCache.getRoot().getDir("a").getDir("aa").get("aab"), dirCache.lookup("/a/./aa//aab"));
+      assertSame(dirCache.getRoot().getDir("a").getDir("aa"), dirCache.lookup(Path.of("a", "aa")));
+      assertSame(dirCache.getRoot().getDir("a").getDir("aa"), dirCache.lookup(root.toAbsolutePath().resolve("a/aa")));
+      assertNull(dirCache.lookup(Path.of("/somewhere/else")));
+      assertNull(dirCache.lookup("a/aa/lookup"));
+      assertThrows(IllegalArgumentException.class, () -> dirCache.lookup("a/../a"));
+      assertThrows(IllegalArgumentException.class, () -> dirCache.lookup(Path.of("a/../a")));
+
+      LocalDateTime firstWalkTime = dirCache.getLastWalkTime();
+      Files.createFile(root.resolve("a/aa/lookup"));
+      delete(root.resolve("a/ab").toFile());
+      await().atMost(5, SECONDS).until(() -> dirCache.lookup("a/aa/lookup") != null && dirCache.lookup("a/ab/aba") == null);
+      assertSame(dirCache.getRoot().getDir("a").getDir("aa").get("lookup"), dirCache.lookup("a/aa/lookup"));
+      assertNull(dirCache.lookup("a/ab"));
+    }
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testSnapshot");
+    Path snapshot = Path.of("target/DirCacheImplTest/testSnapshot.bin");
+    copyTestFiles(root.resolve("a"));
+
+    DirCacheTree.Directory saved;
+    try (DirCache dirCache = DirCache.cacheWithSnapshot(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null, snapshot, null)) {
+      saved = dirCache.getRoot();
+    }
+    assertTrue(Files.isRegularFile(snapshot));
+
+    // Changes whilst the cache is not running: a new file, a removed directory and a file modified in place
+    Files.createFile(root.resolve("a/aa/whilstDown"));
+    delete(root.resolve("a/ab").toFile());
+    Files.write(root.resolve("a/ac"), new byte[] {1, 2, 3});
+
+    List<ChangeSet> changes = new CopyOnWriteArrayList<>();
+    try (DirCache dirCache = DirCache.cacheWithSnapshot(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null, snapshot, changes::add)) {
+      await().atMost(5, SECONDS).until(() -> !changes.isEmpty());
+      assertEquals(saved, changes.get(0).getPrevious());
+      assertNotNull(dirCache.getRoot().getDir("a").getDir("aa").get("whilstDown"));
+      assertNull(dirCache.getRoot().getDir("a").getDir("ab"));
+      assertEquals(3, ((DirCacheTree.File) dirCache.getRoot().getDir("a").get("ac")).getSize());
+
+      // Watches are registered by the reconciliation
+      Files.createFile(root.resolve("a/aa/afterReconcile"));
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("aa").get("afterReconcile") != null);
+    }
+  }
+
   private int delete(File f) throws IOException {
     int count = 0;
     if (f.isDirectory()) {
@@ -191,6 +841,57 @@ public class DirCacheImplTest {
     return count + 1;
   }
 
+  @Test
+  public void testRootDeleted() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testRootDeleted");
+    copyTestFiles(root.resolve("a"));
+    AtomicInteger counter = new AtomicInteger();
+
+    try (DirCache dirCache = DirCache.cache(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null)) {
+      dirCache.setCallback(counter::incrementAndGet);
+      assertNotNull(dirCache.getRoot());
+      
+      delete(root.toFile());
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot() == null);
+      await().atMost(5, SECONDS).until(() -> counter.get() > 0);
+      
+      // The cache is still usable once the root comes back
+      dirCache.refresh();
+      assertNull(dirCache.getRoot());
+      copyTestFiles(root.resolve("a"));
+      dirCache.refresh();
+      assertNotNull(dirCache.getRoot().getDir("a").getDir("aa"));
+    }
+  }
+
+  @Test
+  public void testWatchSurvivesFailure() throws Exception {
+    Path root = Path.of("target/DirCacheImplTest/testWatchSurvivesFailure");
+    copyTestFiles(root.resolve("a"));
+    AtomicInteger failures = new AtomicInteger(1);
+
+    DirCacheImpl impl = new DirCacheImpl(root, Duration.of(100, ChronoUnit.MILLIS), Pattern.compile("^uk.*"), null) {
+      @Override
+      protected DirCacheTree.Directory store(DirCacheTree.Directory newRoot) {
+        if (failures.getAndDecrement() > 0) {
+          throw new IllegalStateException("Failing as requested");
+        }
+        return newRoot;
+      }
+    };
+    failures.set(0);
+    try (DirCache dirCache = impl.start()) {
+      failures.set(1);
+      Files.createFile(root.resolve("a/aa/fred"));
+      await().atMost(5, SECONDS).until(() -> failures.get() == 0);
+      assertNull(dirCache.getRoot().getDir("a").getDir("aa").get("fred"));
+      
+      // The watch thread is still running
+      Files.createFile(root.resolve("a/aa/bob"));
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("aa").get("bob") != null);
+    }
+  }
+
   @Test
   public void testComparator() {
     DirCacheTree.File file1 = new DirCacheTree.File(Path.of("target/test-classes/a"), LocalDateTime.MIN, 0);
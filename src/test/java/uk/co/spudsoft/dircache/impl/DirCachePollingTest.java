@@ -28,20 +28,25 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.Month;
 import java.time.temporal.ChronoUnit;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import static org.hamcrest.MatcherAssert.assertThat;
-import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.lessThan;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.co.spudsoft.dircache.DirCache;
+import uk.co.spudsoft.dircache.DirCacheTree;
 
 /**
  *
@@ -122,8 +127,9 @@ public class DirCachePollingTest {
     logger.debug("Result: {}", MAPPER.writeValueAsString(dirCache.getRoot()));
     assertNotNull(dirCache.getRoot().getDir("a").getDir("aa").get("fred"));
     LocalDateTime secondWalkTime = dirCache.getLastWalkTime();
+    // The callback is called asynchronously, so it may run after the new root is visible
+    await().atMost(5, SECONDS).until(() -> counter.get() > 0);
     int countAfterCreateingFile = counter.get();
-    assertThat(countAfterCreateingFile, greaterThan(0));
     assertThat(countAfterCreateingFile, lessThan(3));
     
 
@@ -132,13 +138,137 @@ public class DirCachePollingTest {
     await().atMost(5, SECONDS).until(() -> secondWalkTime.isBefore(dirCache.getLastWalkTime()));
     logger.debug("Result: {}", MAPPER.writeValueAsString(dirCache.getRoot()));
     assertNull(dirCache.getRoot().getDir("a").getDir("aa"));
-    assertThat(counter.get(), greaterThan(countAfterCreateingFile));
+    await().atMost(5, SECONDS).until(() -> counter.get() > countAfterCreateingFile);
     
     dirCache.stop();
     
     Thread.sleep(2000);
   }
   
+  @Test
+  public void testIncrementalPolling() throws Exception {
+    Path root = Path.of("target/DirCachePollingTest/testIncrementalPolling");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+    AtomicInteger counter = new AtomicInteger();    
+    
+    // Without a rolling scan only directory changes are seen
+    try (DirCache dirCache = new DirCacheImpl(root, null, Pattern.compile("^uk.*"), Duration.of(100, ChronoUnit.MILLIS)).setIncrementalPolling(0).start()) {
+      long size = ((DirCacheTree.File) dirCache.getRoot().getDir("a").getDir("aa").get("aaa")).getSize();
+      try (FileOutputStream fos = new FileOutputStream(root.resolve("a/aa/aaa").toFile())) {
+        fos.write("Changed".getBytes(StandardCharsets.UTF_8));
+      }
+      LocalDateTime firstWalkTime = dirCache.getLastWalkTime();
+      await().atMost(5, SECONDS).until(() -> firstWalkTime.isBefore(dirCache.getLastWalkTime()));
+      Thread.sleep(300);
+      assertEquals(size, ((DirCacheTree.File) dirCache.getRoot().getDir("a").getDir("aa").get("aaa")).getSize());
+      
+      Files.createFile(root.resolve("a/aa/fred"));
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("aa").get("fred") != null);
+      // Relisting the directory picks up the changed file too
+      assertEquals(7, ((DirCacheTree.File) dirCache.getRoot().getDir("a").getDir("aa").get("aaa")).getSize());
+    }
+
+    try (DirCache dirCache = new DirCacheImpl(root, null, Pattern.compile("^uk.*"), Duration.of(100, ChronoUnit.MILLIS)).setIncrementalPolling(20).start()) {
+      dirCache.setCallback(counter::incrementAndGet);
+      
+      // Content changes are picked up by the rolling scan
+      try (FileOutputStream fos = new FileOutputStream(root.resolve("a/ab/abb").toFile())) {
+        fos.write("Changed again".getBytes(StandardCharsets.UTF_8));
+      }
+      await().atMost(5, SECONDS).until(() -> ((DirCacheTree.File) dirCache.getRoot().getDir("a").getDir("ab").get("abb")).getSize() == 13);
+      await().atMost(5, SECONDS).until(() -> counter.get() > 0);
+      
+      Files.createDirectories(root.resolve("a/ad/ada"));
+      Files.createFile(root.resolve("a/ad/ada/adaa"));
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("ad") != null 
+              && dirCache.getRoot().getDir("a").getDir("ad").getDir("ada").get("adaa") != null);
+      
+      delete(root.resolve("a/ab").toFile());
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("ab") == null);
+
+      Files.delete(root.resolve("a/aa/fred"));
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot().getDir("a").getDir("aa").get("fred") == null);
+    }
+  }
+  
+  @Test
+  public void testPollingRootDeleted() throws Exception {
+    Path root = Path.of("target/DirCachePollingTest/testPollingRootDeleted");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+    
+    try (DirCache dirCache = DirCache.cache(root, null, Pattern.compile("^uk.*"), Duration.of(100, ChronoUnit.MILLIS))) {
+      assertNotNull(dirCache.getRoot());
+      delete(root.toFile());
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot() == null);
+      
+      // Polling carries on, so the root is found again when it comes back
+      DirCacheImplTest.copyTestFiles(root.resolve("a"));
+      await().atMost(5, SECONDS).until(() -> dirCache.getRoot() != null && dirCache.getRoot().getDir("a") != null);
+    }
+  }
+  
+  @Test
+  public void testRollingScanCursor() {
+    LocalDateTime ts = LocalDateTime.of(1971, Month.MAY, 6, 10, 10);
+    Path r = Path.of("target/DirCachePollingTest/testRollingScanCursor");
+    DirCacheTree.Directory root = new DirCacheTree.Directory(r, ts, List.of(
+            new DirCacheTree.Directory(r.resolve("a"), ts, List.of(new DirCacheTree.File(r.resolve("a/x"), ts, 1), new DirCacheTree.File(r.resolve("a/y"), ts, 1))),
+            new DirCacheTree.Directory(r.resolve("b"), ts, List.of(new DirCacheTree.File(r.resolve("b/x"), ts, 1))),
+            new DirCacheTree.File(r.resolve("z"), ts, 1)
+    ));
+    
+    Map<String, Path> expected = new LinkedHashMap<>();
+    expected.put("a/x", r.resolve("a/y"));
+    // Files and directories that are no longer in the tree resume from the next file in tree order
+    expected.put("a/xx", r.resolve("a/y"));
+    expected.put("a/zz", r.resolve("b/x"));
+    expected.put("aa/q", r.resolve("b/x"));
+    expected.put("aa/bb/q", r.resolve("b/x"));
+    expected.put("c/q", r.resolve("z"));
+    expected.put("y", r.resolve("z"));
+    expected.put("0", r.resolve("z"));
+    for (Map.Entry<String, Path> entry : expected.entrySet()) {
+      DirCacheImpl.RollingScan scan = new DirCacheImpl.RollingScan(Path.of(entry.getKey()), 1);
+      scan.scan(root);
+      assertEquals(entry.getValue(), scan.last, entry.getKey());
+    }
+    
+    DirCacheImpl.RollingScan scan = new DirCacheImpl.RollingScan(Path.of("zz"), 1);
+    assertTrue(scan.scan(root));
+    assertNull(scan.last);
+  }
+  
+  @Test
+  public void testPollDelay() {
+    // Fixed period
+    assertEquals(1000, DirCacheImpl.pollDelay(1000, 0, 5000, 0));
+    assertEquals(1100, DirCacheImpl.pollDelay(1000, 0, 5000, 1));
+    assertEquals(900, DirCacheImpl.pollDelay(1000, 0, 5000, -1));
+    // Adaptive period is bounded by the poll period and the max period
+    assertEquals(1000, DirCacheImpl.pollDelay(1000, 60000, 10, 0));
+    assertEquals(4000, DirCacheImpl.pollDelay(1000, 60000, 1000, 0));
+    assertEquals(60000, DirCacheImpl.pollDelay(1000, 60000, 100000, 0));
+    assertEquals(60000, DirCacheImpl.pollDelay(1000, 60000, Long.MAX_VALUE, 0));
+    assertEquals(66000, DirCacheImpl.pollDelay(1000, 60000, 100000, 1));
+  }
+  
+  @Test
+  public void testAdaptivePolling() throws Exception {
+    Path root = Path.of("target/DirCachePollingTest/testAdaptivePolling");
+    DirCacheImplTest.copyTestFiles(root.resolve("a"));
+    
+    try (DirCache dirCache = new DirCacheImpl(root, null, Pattern.compile("^uk.*"), Duration.of(50, ChronoUnit.MILLIS))
+            .setAdaptivePolling(Duration.of(1, ChronoUnit.SECONDS))
+            .start()) {
+      assertNotNull(dirCache.getLastWalkDuration());
+      LocalDateTime firstWalkTime = dirCache.getLastWalkTime();
+      Files.createFile(root.resolve("a/aa/fred"));
+      await().atMost(5, SECONDS).until(() -> firstWalkTime.isBefore(dirCache.getLastWalkTime()) 
+              && dirCache.getRoot().getDir("a").getDir("aa").get("fred") != null);
+      assertThat(dirCache.getLastWalkDuration(), lessThan(Duration.of(5, ChronoUnit.SECONDS)));
+    }
+  }
+  
   private int delete(File f) throws IOException {
     int count = 0;
     if (f.isDirectory()) {
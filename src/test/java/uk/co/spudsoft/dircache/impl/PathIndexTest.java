@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class PathIndexTest {
+
+  private static final LocalDateTime TS = LocalDateTime.of(1971, Month.MAY, 6, 10, 10);
+
+  private static DirCacheTree.File file(String name) {
+    return new DirCacheTree.File(Path.of(name), TS, 1);
+  }
+
+  @Test
+  public void testPutGetRemove() {
+    List<DirCacheTree.File> files = new ArrayList<>();
+    PathIndex index = PathIndex.EMPTY;
+    for (int i = 0; i < 5000; ++i) {
+      DirCacheTree.File f = file("f" + i);
+      files.add(f);
+      index = index.put("dir/f" + i, f);
+    }
+    assertEquals(5000, index.size());
+    for (int i = 0; i < 5000; ++i) {
+      assertSame(files.get(i), index.get("dir/f" + i));
+    }
+    assertNull(index.get("dir/f5000"));
+    assertSame(index, index.put("dir/f7", files.get(7)));
+    assertSame(index, index.remove("missing"));
+
+    PathIndex smaller = index;
+    for (int i = 0; i < 5000; i += 2) {
+      smaller = smaller.remove("dir/f" + i);
+    }
+    assertEquals(2500, smaller.size());
+    for (int i = 0; i < 5000; ++i) {
+      assertEquals(i % 2 == 0 ? null : files.get(i), smaller.get("dir/f" + i));
+      // The original is unchanged
+      assertSame(files.get(i), index.get("dir/f" + i));
+    }
+  }
+
+  @Test
+  public void testCollisions() {
+    // "Aa" and "BB" have the same hashCode
+    assertEquals("Aa".hashCode(), "BB".hashCode());
+    DirCacheTree.File aa = file("Aa");
+    DirCacheTree.File bb = file("BB");
+    PathIndex index = PathIndex.EMPTY.put("Aa", aa).put("BB", bb).put("AaAa", aa).put("BBBB", bb).put("AaBB", aa);
+    assertEquals(5, index.size());
+    assertSame(aa, index.get("Aa"));
+    assertSame(bb, index.get("BB"));
+    assertSame(aa, index.get("AaBB"));
+    assertNull(index.get("BBAa"));
+    index = index.remove("Aa");
+    assertNull(index.get("Aa"));
+    assertSame(bb, index.get("BB"));
+    index = index.remove("BB").remove("AaAa").remove("BBBB").remove("AaBB");
+    assertEquals(0, index.size());
+    assertNull(index.get("BB"));
+  }
+
+  @Test
+  public void testUpdate() {
+    DirCacheTree.File one = new DirCacheTree.File(Path.of("root", "sub", "one"), TS, 1);
+    DirCacheTree.File two = new DirCacheTree.File(Path.of("root", "sub", "two"), TS, 1);
+    DirCacheTree.Directory sub = new DirCacheTree.Directory(Path.of("root", "sub"), TS, Arrays.asList(one, two));
+    DirCacheTree.Directory other = new DirCacheTree.Directory(Path.of("root", "other"), TS, Arrays.asList());
+    DirCacheTree.Directory root1 = new DirCacheTree.Directory(Path.of("root"), TS, Arrays.asList(other, sub));
+
+    PathIndex index1 = PathIndex.build(root1);
+    assertEquals(5, index1.size());
+    assertSame(root1, index1.get(""));
+    assertSame(two, index1.get("sub/two"));
+
+    DirCacheTree.Directory otherReplaced = new DirCacheTree.Directory(Path.of("root", "other"), TS, Arrays.asList());
+    DirCacheTree.File three = new DirCacheTree.File(Path.of("root", "three"), TS, 1);
+    DirCacheTree.File flipped = new DirCacheTree.File(Path.of("root", "sub"), TS, 1);
+    DirCacheTree.Directory root2 = new DirCacheTree.Directory(Path.of("root"), TS, Arrays.asList(otherReplaced, flipped, three));
+
+    PathIndex index2 = index1.update(root1, root2);
+    assertEquals(4, index2.size());
+    assertSame(root2, index2.get(""));
+    assertSame(flipped, index2.get("sub"));
+    assertSame(three, index2.get("three"));
+    assertNull(index2.get("sub/one"));
+    assertNull(index2.get("sub/two"));
+    assertSame(two, index1.get("sub/two"));
+    // Equal subtrees are skipped, leaving the Node from the previous tree
+    assertSame(other, index2.get("other"));
+
+    // An equal tree that shares no instances needs no change at all
+    DirCacheTree.Directory root1Copy = new DirCacheTree.Directory(Path.of("root"), TS, Arrays.asList(
+            new DirCacheTree.Directory(Path.of("root", "other"), TS, Arrays.asList()),
+            new DirCacheTree.Directory(Path.of("root", "sub"), TS, Arrays.asList(
+                    new DirCacheTree.File(Path.of("root", "sub", "one"), TS, 1),
+                    new DirCacheTree.File(Path.of("root", "sub", "two"), TS, 1)
+            ))
+    ));
+    assertSame(index1, index1.update(root1, root1Copy));
+
+    assertEquals(0, index2.update(root2, null).size());
+  }
+
+  @Test
+  public void testKey() {
+    String normal = "a/b/c";
+    assertSame(normal, PathIndex.key(normal));
+    assertEquals("", PathIndex.key(""));
+    assertEquals("", PathIndex.key("/"));
+    assertEquals("a/b", PathIndex.key("/a//./b/"));
+    assertEquals("a/..b", PathIndex.key("a/..b"));
+    assertThrows(IllegalArgumentException.class, () -> PathIndex.key("a/../b"));
+    assertThrows(IllegalArgumentException.class, () -> PathIndex.key(".."));
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import uk.co.spudsoft.dircache.DirCacheIndex;
+import uk.co.spudsoft.dircache.DirCacheSnapshot;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class SecondaryIndexesTest {
+
+  private static final LocalDateTime TS = LocalDateTime.of(1971, Month.MAY, 6, 10, 10);
+
+  private static DirCacheTree.Directory tree(Random random, int dirs, int filesPerDir) {
+    List<DirCacheTree.Node> children = new ArrayList<>();
+    String[] extensions = {"json", "txt", "JSON", "", "tar.gz"};
+    for (int d = 0; d < dirs; ++d) {
+      Path dirPath = Path.of("root", "d" + d);
+      List<DirCacheTree.Node> files = new ArrayList<>();
+      for (int f = 0; f < filesPerDir; ++f) {
+        // Only some of the files vary between trees, so that updates have something to skip
+        int variant = random.nextInt(10) == 0 ? random.nextInt(3) : 0;
+        String ext = extensions[(d + f) % extensions.length];
+        String name = "f" + f + (ext.isEmpty() ? "" : "." + ext);
+        files.add(new DirCacheTree.File(dirPath, name, TS.plusSeconds(f + variant).toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L, (d * 7 + f * 13 + variant) % 100));
+      }
+      files.sort(DirCacheTree::compareNodes);
+      children.add(new DirCacheTree.Directory(dirPath, "d" + d, 0, files));
+    }
+    children.sort(DirCacheTree::compareNodes);
+    return new DirCacheTree.Directory(Path.of("root"), "root", 0, children);
+  }
+
+  private static List<Path> paths(List<DirCacheTree.File> files) {
+    return files.stream().map(DirCacheTree.File::getPath).sorted().toList();
+  }
+
+  private static void check(DirCacheTree.Directory root, SecondaryIndexes indexes) {
+    DirCacheSnapshot snapshot = new DirCacheSnapshot(root, TS, 0, indexes);
+    List<DirCacheTree.File> all = root.flatten(f -> f);
+    assertEquals(all.size(), indexes.size());
+
+    assertEquals(paths(all.stream().filter(f -> f.getName().toLowerCase().endsWith(".json")).toList()), paths(snapshot.getFilesWithExtension(".json")));
+    assertEquals(paths(all.stream().filter(f -> f.getName().endsWith(".gz")).toList()), paths(snapshot.getFilesWithExtension("gz")));
+    assertEquals(paths(all.stream().filter(f -> !f.getName().contains(".")).toList()), paths(snapshot.getFilesWithExtension("")));
+
+    List<DirCacheTree.File> bySize = snapshot.getFilesWithSizeBetween(20, 60);
+    assertEquals(paths(all.stream().filter(f -> f.getSize() >= 20 && f.getSize() <= 60).toList()), paths(bySize));
+    List<DirCacheTree.File> sorted = new ArrayList<>(bySize);
+    sorted.sort(Comparator.comparingLong(DirCacheTree.File::getSize));
+    assertEquals(sorted, bySize);
+
+    LocalDateTime from = TS.plusSeconds(5);
+    LocalDateTime to = TS.plusSeconds(10);
+    List<DirCacheTree.File> byModified = snapshot.getFilesModifiedBetween(from, to);
+    assertEquals(paths(all.stream().filter(f -> !f.getModified().isBefore(from) && !f.getModified().isAfter(to)).toList()), paths(byModified));
+    assertEquals(all.size(), snapshot.getFilesModifiedBetween(null, null).size());
+  }
+
+  @Test
+  public void testIncrementalUpdates() {
+    Random random = new Random(42);
+    SecondaryIndexes empty = SecondaryIndexes.empty(EnumSet.allOf(DirCacheIndex.class));
+    DirCacheTree.Directory previous = tree(random, 20, 30);
+    SecondaryIndexes indexes = empty.update(null, previous);
+    check(previous, indexes);
+    assertSame(indexes, indexes.update(previous, previous));
+
+    for (int i = 0; i < 20; ++i) {
+      DirCacheTree.Directory current = tree(random, 15 + random.nextInt(10), 20 + random.nextInt(20));
+      indexes = indexes.update(previous, current);
+      check(current, indexes);
+      previous = current;
+    }
+
+    indexes = indexes.update(previous, null);
+    assertEquals(0, indexes.size());
+  }
+
+  @Test
+  public void testDisabled() {
+    assertNull(SecondaryIndexes.empty(Set.of()));
+    SecondaryIndexes sizeOnly = SecondaryIndexes.empty(EnumSet.of(DirCacheIndex.SIZE));
+    DirCacheTree.Directory root = tree(new Random(1), 2, 3);
+    DirCacheSnapshot snapshot = new DirCacheSnapshot(root, TS, 0, sizeOnly.update(null, root));
+    assertEquals(6, snapshot.getFilesWithSizeBetween(0, Long.MAX_VALUE).size());
+    assertThrows(IllegalStateException.class, () -> snapshot.getFilesWithExtension("json"));
+    assertThrows(IllegalStateException.class, () -> snapshot.getFilesModifiedBetween(null, null));
+    assertThrows(IllegalStateException.class, () -> new DirCacheSnapshot(root, TS, 0).getFilesWithSizeBetween(0, 1));
+  }
+
+  @Test
+  public void testExtension() {
+    assertEquals("json", SecondaryIndexes.extension("a.JSON"));
+    assertEquals("gz", SecondaryIndexes.extension("a.tar.gz"));
+    assertEquals("", SecondaryIndexes.extension(".bashrc"));
+    assertEquals("", SecondaryIndexes.extension("README"));
+    assertEquals("", SecondaryIndexes.extension("trailing."));
+  }
+
+}
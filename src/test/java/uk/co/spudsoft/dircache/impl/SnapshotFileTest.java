@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class SnapshotFileTest {
+
+  private static final LocalDateTime TS = LocalDateTime.of(1971, Month.MAY, 6, 10, 10, 10, 123456789);
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Path dir = Path.of("target/SnapshotFileTest/testRoundTrip");
+    Files.createDirectories(dir);
+    Path file = dir.resolve("snapshot.bin");
+    Path root = Path.of("root");
+    DirCacheTree.Directory tree = new DirCacheTree.Directory(root, TS, Arrays.asList(
+            new DirCacheTree.Directory(root.resolve("sub"), TS, Arrays.asList(new DirCacheTree.File(root.resolve("sub").resolve("file2"), TS, 12)))
+            , new DirCacheTree.Directory(root.resolve("empty"), null, Arrays.asList())
+            , new DirCacheTree.File(root.resolve("file"), TS, Long.MAX_VALUE)
+    ));
+
+    SnapshotFile.write(file, tree, "^uk.*");
+    DirCacheTree.Directory read = SnapshotFile.read(file, root, "^uk.*");
+    assertEquals(tree, read);
+    assertEquals(tree.getDigest(), read.getDigest());
+
+    assertNull(SnapshotFile.read(file, Path.of("other"), "^uk.*"));
+    assertNull(SnapshotFile.read(file, root, "^us.*"));
+
+    Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    assertThrows(IOException.class, () -> SnapshotFile.read(file, root, "^uk.*"));
+  }
+
+  @Test
+  public void testCorruptCounts() throws IOException {
+    Path dir = Path.of("target/SnapshotFileTest/testCorruptCounts");
+    Files.createDirectories(dir);
+    Path file = dir.resolve("snapshot.bin");
+    Path root = Path.of("root");
+    DirCacheTree.Directory tree = new DirCacheTree.Directory(root, TS, Arrays.asList(
+            new DirCacheTree.Directory(root.resolve("sub"), TS, Arrays.asList(new DirCacheTree.File(root.resolve("sub").resolve("file2"), TS, 12)))
+            , new DirCacheTree.File(root.resolve("file"), TS, 7)
+    ));
+    SnapshotFile.write(file, tree, "^uk.*");
+    byte[] good = Files.readAllBytes(file);
+    
+    // Magic, version, root path, ignore pattern, node count
+    int nodeCountOffset = 4 + 4 + 2 + root.toAbsolutePath().normalize().toString().length() + 2 + "^uk.*".length();
+    // Type, name, modified timestamp
+    int rootChildCountOffset = nodeCountOffset + 8 + 1 + 2 + root.getFileName().toString().length() + 8;
+    assertEquals(3, ByteBuffer.wrap(good).getLong(nodeCountOffset));
+    assertEquals(2, ByteBuffer.wrap(good).getInt(rootChildCountOffset));
+
+    for (long nodes : new long[] {-1, 2, 4, 5, Long.MAX_VALUE}) {
+      Files.write(file, ByteBuffer.wrap(good.clone()).putLong(nodeCountOffset, nodes).array());
+      assertThrows(IOException.class, () -> SnapshotFile.read(file, root, "^uk.*"), Long.toString(nodes));
+    }
+    for (int count : new int[] {-1, 1, 3, 5, Integer.MAX_VALUE}) {
+      Files.write(file, ByteBuffer.wrap(good.clone()).putInt(rootChildCountOffset, count).array());
+      assertThrows(IOException.class, () -> SnapshotFile.read(file, root, "^uk.*"), Integer.toString(count));
+    }
+    Files.write(file, Arrays.copyOf(good, good.length - 1));
+    assertThrows(IOException.class, () -> SnapshotFile.read(file, root, "^uk.*"));
+    Files.write(file, Arrays.copyOf(good, good.length + 1));
+    assertThrows(IOException.class, () -> SnapshotFile.read(file, root, "^uk.*"));
+    
+    Files.write(file, good);
+    assertEquals(tree, SnapshotFile.read(file, root, "^uk.*"));
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import uk.co.spudsoft.dircache.DirCacheTree;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class TreeQueryTest {
+
+  private static final LocalDateTime TS = LocalDateTime.of(1971, Month.MAY, 6, 10, 10);
+
+  private static DirCacheTree.File file(Path parent, String name, int age) {
+    return new DirCacheTree.File(parent.resolve(name), TS.minusDays(age), 1);
+  }
+
+  private static DirCacheTree.Directory dir(Path path, DirCacheTree.Node... children) {
+    return new DirCacheTree.Directory(path, TS, List.of(children));
+  }
+
+  private static DirCacheTree.Directory tree() {
+    Path r = Path.of("r");
+    return dir(r
+            , dir(r.resolve("a")
+                    , dir(r.resolve("a/b"), file(r.resolve("a/b"), "x.txt", 5), file(r.resolve("a/b"), "y.json", 0))
+                    , dir(r.resolve("a/c"), file(r.resolve("a/c"), "x.txt", 5))
+                    , file(r.resolve("a"), "z.txt", 5)
+            )
+            , dir(r.resolve("d")
+                    , dir(r.resolve("d/e"), file(r.resolve("d/e"), "x.txt", 10))
+            )
+            , file(r, "top.txt", 10)
+    );
+  }
+
+  private static void all(DirCacheTree.Directory dir, List<DirCacheTree.Node> result) {
+    for (DirCacheTree.Node child : dir.getChildren()) {
+      result.add(child);
+      if (child instanceof DirCacheTree.Directory childDir) {
+        all(childDir, result);
+      }
+    }
+  }
+
+  private static List<String> names(List<DirCacheTree.Node> nodes) {
+    return nodes.stream().map(n -> Path.of("r").relativize(n.getPath()).toString()).toList();
+  }
+
+  @Test
+  public void testGlobMatchesBruteForce() {
+    DirCacheTree.Directory root = tree();
+    List<DirCacheTree.Node> all = new ArrayList<>();
+    all(root, all);
+    for (String glob : List.of("*.txt", "*", "a/*/x.txt", "**/x.txt", "a/**", "a/b/*", "{a,d}/*/x.txt", "{a/b,d/e}/*.txt", "a/?", "nothing/*", "a")) {
+      PathMatcher matcher = root.getPath().getFileSystem().getPathMatcher("glob:" + glob);
+      List<DirCacheTree.Node> expected = all.stream().filter(n -> matcher.matches(root.getPath().relativize(n.getPath()))).toList();
+      assertEquals(names(expected), names(TreeQuery.glob(root, glob).toList()), glob);
+    }
+    assertEquals(List.of("a/b/x.txt", "a/c/x.txt"), names(TreeQuery.glob(root, "a/*/x.txt").toList()));
+    assertEquals(0, TreeQuery.glob(null, "*").count());
+  }
+
+  @Test
+  public void testPruning() {
+    DirCacheTree.Directory root = tree();
+    long since = file(Path.of("r"), "t", 1).getModifiedEpochNanos();
+    assertEquals(file(Path.of("r"), "t", 0).getModifiedEpochNanos(), root.getNewestFileModifiedEpochNanos());
+    assertEquals(root.getDir("a").getDir("b").get("y.json").getModifiedEpochNanos(), root.getDir("a").getNewestFileModifiedEpochNanos());
+
+    AtomicInteger tested = new AtomicInteger();
+    List<DirCacheTree.Node> found = TreeQuery.find(root
+            , d -> d.getNewestFileModifiedEpochNanos() >= since
+            , n -> {
+              tested.incrementAndGet();
+              return n instanceof DirCacheTree.File && n.getModifiedEpochNanos() >= since;
+            }).toList();
+    assertEquals(List.of("a/b/y.json"), names(found));
+    // r/a, r/a/b and its 2 files, r/a/c (not entered), r/a/z.txt, r/d (not entered) and r/top.txt
+    assertEquals(8, tested.get());
+
+    // Without pruning every node is tested
+    tested.set(0);
+    assertEquals(1, TreeQuery.find(root, d -> true, n -> tested.incrementAndGet() > 0 && n.getName().equals("y.json")).count());
+    assertEquals(11, tested.get());
+  }
+
+  @Test
+  public void testLazy() {
+    DirCacheTree.Directory root = tree();
+    AtomicInteger tested = new AtomicInteger();
+    assertEquals("a", TreeQuery.find(root, d -> true, n -> tested.incrementAndGet() > 0).findFirst().get().getName());
+    assertEquals(1, tested.get());
+  }
+
+  @Test
+  public void testEmptyDirectory() {
+    DirCacheTree.Directory empty = dir(Path.of("r"));
+    assertEquals(Long.MIN_VALUE, empty.getNewestFileModifiedEpochNanos());
+    assertEquals(0, TreeQuery.find(empty, d -> true, n -> true).count());
+    assertEquals(0, TreeQuery.glob(empty, "**").count());
+  }
+
+}
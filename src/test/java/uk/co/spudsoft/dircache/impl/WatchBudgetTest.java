@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2022 jtalbut
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package uk.co.spudsoft.dircache.impl;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author jtalbut
+ */
+public class WatchBudgetTest {
+
+  private static final Path A = Path.of("root/a");
+  private static final Path B = Path.of("root/b");
+  private static final Path C = Path.of("root/c");
+  private static final Path D = Path.of("root/d");
+
+  @Test
+  public void testRebalance() {
+    assertThrows(IllegalArgumentException.class, () -> new WatchBudget(-1));
+    
+    WatchBudget budget = new WatchBudget(3);
+    assertTrue(budget.isLimited());
+    budget.markCold(C);
+    budget.markCold(D);
+
+    // Cold directories that have not changed are left alone, even if there is space
+    WatchBudget.Rebalance rebalance = budget.rebalance(Arrays.asList(A));
+    assertEquals(List.of(), rebalance.getToWatch());
+    assertEquals(List.of(), rebalance.getToUnwatch());
+
+    // Active cold directories fill the free slot, most active first
+    budget.recordChange(A);
+    budget.recordChange(B);
+    budget.recordChange(C);
+    budget.recordChange(D);
+    budget.recordChange(D);
+    rebalance = budget.rebalance(Arrays.asList(A, B));
+    assertEquals(List.of(D), rebalance.getToWatch());
+    assertEquals(List.of(), rebalance.getToUnwatch());
+    assertEquals(1.0, budget.getActivity(D));
+    assertEquals(0.5, budget.getActivity(C));
+
+    // When full a cold directory must be much more active than a watched directory to replace it
+    budget.removeCold(D);
+    budget.recordChange(A);
+    budget.recordChange(B);
+    budget.recordChange(D);
+    budget.recordChange(C);
+    rebalance = budget.rebalance(Arrays.asList(A, B, D));
+    assertEquals(List.of(), rebalance.getToWatch());
+    for (int i = 0; i < 4; ++i) {
+      budget.recordChange(C);
+    }
+    rebalance = budget.rebalance(Arrays.asList(A, B, D));
+    assertEquals(List.of(C), rebalance.getToWatch());
+    assertEquals(1, rebalance.getToUnwatch().size());
+    assertTrue(Set.of(A, B).contains(rebalance.getToUnwatch().get(0)));
+
+    // Activity is eventually forgotten
+    for (int i = 0; i < 10; ++i) {
+      budget.rebalance(List.of());
+    }
+    assertEquals(0.0, budget.getActivity(C));
+  }
+
+  @Test
+  public void testUnlimited() {
+    WatchBudget budget = new WatchBudget(Integer.MAX_VALUE);
+    assertFalse(budget.isLimited());
+    budget.markCold(A);
+    budget.markCold(Path.of("root/a/b"));
+    budget.markCold(B);
+    budget.recordChange(A);
+    WatchBudget.Rebalance rebalance = budget.rebalance(List.of());
+    assertEquals(List.of(A), rebalance.getToWatch());
+    assertEquals(List.of(), rebalance.getToUnwatch());
+    assertEquals(List.of(), budget.rebalance(List.of()).getToWatch());
+    
+    budget.removeColdUnder(A);
+    assertEquals(Set.of(B), budget.getCold());
+    budget.retainCold(Set.of(C));
+    assertEquals(Set.of(), budget.getCold());
+  }
+
+  @Test
+  public void testNextCold() {
+    WatchBudget budget = new WatchBudget(1);
+    assertEquals(List.of(), budget.nextCold(2));
+    budget.markCold(D);
+    budget.markCold(B);
+    budget.markCold(C);
+    budget.markCold(A);
+
+    // Slices rotate through the cold directories in path order
+    assertEquals(List.of(A, B), budget.nextCold(2));
+    assertEquals(List.of(C, D), budget.nextCold(2));
+    assertEquals(List.of(A, B, C), budget.nextCold(3));
+    assertEquals(List.of(D, A, B, C), budget.nextCold(10));
+
+    // Removing the last directory checked does not restart the rotation
+    assertEquals(List.of(D), budget.nextCold(1));
+    budget.removeCold(D);
+    budget.removeCold(A);
+    assertEquals(List.of(B), budget.nextCold(1));
+    budget.markCold(A);
+    assertEquals(List.of(C, A), budget.nextCold(2));
+  }
+
+  @Test
+  public void testRebalanceSkippedWhenNoColdChanges() {
+    WatchBudget budget = new WatchBudget(1);
+    budget.markCold(B);
+    budget.recordChange(B);
+    budget.recordChange(B);
+    budget.recordChange(B);
+    
+    // Changes to watched directories alone never cause a promotion
+    budget.removeCold(B);
+    budget.markCold(C);
+    budget.recordChange(A);
+    assertEquals(List.of(), budget.rebalance(List.of(A)).getToWatch());
+
+    // A cold directory that was active before still decays while nothing changes
+    budget.markCold(B);
+    assertEquals(1.5, budget.getActivity(B));
+    assertEquals(List.of(), budget.rebalance(List.of(A)).getToWatch());
+    assertEquals(0.75, budget.getActivity(B));
+    
+    // Once a cold directory changes the rebalance happens
+    budget.recordChange(C);
+    budget.recordChange(C);
+    assertEquals(List.of(C), budget.rebalance(List.of(A)).getToWatch());
+  }
+
+}